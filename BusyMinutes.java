@@ -0,0 +1,106 @@
+/*
+ * BusyMinutes
+ *
+ * Bitmap of the busy minutes of a day, one bit per minute. A day has 1440 minutes (plus
+ * minute 1440 itself, since events are closed intervals) which fit in 23 longs. An
+ * overlap check for a window is then an AND of a few masked words instead of a walk of
+ * the EventTree.
+ *
+ * Only events with 0 <= start <= end < MINUTES can be marked, see canMark.
+ *
+ * */
+
+public class BusyMinutes {
+
+	//number of minutes covered by the bitmap
+	public static final int MINUTES = 23*64;
+
+	//the bits, 64 minutes per word
+	private final long[] words;
+
+	/*
+	 * Default constructor for BusyMinutes, every minute starts out free.
+	 *
+	 * */
+	public BusyMinutes()
+	{
+		this.words = new long[MINUTES/64];
+	}
+
+	/*
+	 * Returns true if an event from startMin to endMin can be held by the bitmap.
+	 * */
+	public static boolean canMark(int startMin, int endMin)
+	{
+		return startMin >= 0 && startMin <= endMin && endMin < MINUTES;
+	}
+
+	/*
+	 * Marks the minutes startMin to endMin (inclusive) as busy.
+	 * */
+	public void mark(int startMin, int endMin)
+	{
+		int fromWord = startMin >> 6;
+		int toWord = endMin >> 6;
+
+		for (int word = fromWord; word <= toWord; word++)
+		{
+			words[word] |= mask(word, fromWord, toWord, startMin, endMin);
+		}
+	}
+
+	/*
+	 * Marks the minutes startMin to endMin (inclusive) as free.
+	 * */
+	public void clear(int startMin, int endMin)
+	{
+		int fromWord = startMin >> 6;
+		int toWord = endMin >> 6;
+
+		for (int word = fromWord; word <= toWord; word++)
+		{
+			words[word] &= ~mask(word, fromWord, toWord, startMin, endMin);
+		}
+	}
+
+	/*
+	 * Returns true if any minute from startMin to endMin (inclusive) is busy.
+	 * */
+	public boolean isBusy(int startMin, int endMin)
+	{
+		//Nothing can be marked outside of the bitmap
+		startMin = Math.max(startMin, 0);
+		endMin = Math.min(endMin, MINUTES - 1);
+		if (startMin > endMin)
+		{
+			return false;
+		}
+
+		int fromWord = startMin >> 6;
+		int toWord = endMin >> 6;
+
+		long busy = 0;
+		for (int word = fromWord; word <= toWord; word++)
+		{
+			busy |= words[word] & mask(word, fromWord, toWord, startMin, endMin);
+		}
+		return busy != 0;
+	}
+
+	/*
+	 * Bits of a word that lie between startMin and endMin.
+	 * */
+	private static long mask(int word, int fromWord, int toWord, int startMin, int endMin)
+	{
+		long mask = -1L;
+		if (word == fromWord)
+		{
+			mask &= -1L << (startMin & 63);
+		}
+		if (word == toWord)
+		{
+			mask &= -1L >>> (63 - (endMin & 63));
+		}
+		return mask;
+	}
+}
@@ -0,0 +1,1182 @@
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/*
+ * CalendarBenchmark
+ *
+ * Benchmarks for the hot paths of EventTree, Day and CalendarManager. Every benchmark is
+ * run for a few warmup rounds and then for a few measured rounds, and the median round is
+ * reported as time per operation (ns/op) and bytes allocated per operation (B/op) by the
+ * benchmark thread.
+ *
+ * Calendar sizes (number of events) are given on the command line, for example:
+ *
+ *		java CalendarBenchmark -sizes 10,1000,100000,1000000,10000000 tree manager
+ *
+ * Sizes past 1000000 need a larger heap (-Xmx4g for 10000000). Sections that can be
+ * chosen are listed in SECTIONS, all of them run when none is given.
+ *
+ * */
+
+public class CalendarBenchmark {
+
+	//sections that can be chosen on the command line
+	private static final String[] SECTIONS = {"tree", "small", "manager", "parallel", "concurrent", "freeslots", "exclusions", "import", "memory"};
+
+	private static final int WARMUP_ROUNDS = 2;
+	private static final int MEASURED_ROUNDS = 3;
+
+	//dates benchmark events are spread over, 2019-01-01 to 2028-12-31
+	private static final int FIRST_YEAR = 2019;
+	private static final int YEARS = 10;
+
+	//values computed by benchmarks end up here so the JIT cannot drop the work
+	private static volatile long sink;
+
+	/*
+	 * A benchmark run by measure(). setup is called before every round and is not timed,
+	 * run performs one round of ops operations.
+	 * */
+	private static abstract class Benchmark
+	{
+		protected void setup()
+		{
+		}
+
+		protected abstract long run(int ops);
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int[] sizes = {10, 1000, 100000};
+		Set<String> sections = new LinkedHashSet<String>();
+
+		for (int i = 0; i < args.length; i++)
+		{
+			if (args[i].equals("-sizes") && i + 1 < args.length)
+			{
+				String[] parts = args[++i].split(",");
+				sizes = new int[parts.length];
+				for (int j = 0; j < parts.length; j++)
+				{
+					sizes[j] = Integer.parseInt(parts[j].trim());
+				}
+			}
+			else
+			{
+				sections.add(args[i]);
+			}
+		}
+		if (sections.isEmpty())
+		{
+			sections.addAll(Arrays.asList(SECTIONS));
+		}
+
+		System.out.printf("%-56s %10s %14s %12s%n", "benchmark", "size", "ns/op", "B/op");
+
+		for (int size : sizes)
+		{
+			if (sections.contains("tree"))
+			{
+				treeBenchmarks(size);
+			}
+			if (sections.contains("manager"))
+			{
+				managerBenchmarks(size);
+			}
+			if (sections.contains("import"))
+			{
+				importBenchmarks(size);
+			}
+			if (sections.contains("memory"))
+			{
+				memoryFootprint(size);
+			}
+		}
+		if (sections.contains("small"))
+		{
+			smallCrossover();
+		}
+		if (sections.contains("parallel"))
+		{
+			parallelCrossover();
+		}
+		if (sections.contains("concurrent"))
+		{
+			concurrentThroughput();
+		}
+		if (sections.contains("freeslots"))
+		{
+			freeSlots();
+		}
+		if (sections.contains("exclusions"))
+		{
+			exclusionRanges();
+		}
+	}
+
+	/*
+	 * EventTree.insert in random and in sorted order, and EventTree.overlapSearch.
+	 * */
+	private static void treeBenchmarks(int size)
+	{
+		Random random = new Random(42);
+		final Event[] randomEvents = new Event[size];
+		for (int i = 0; i < size; i++)
+		{
+			randomEvents[i] = randomEvent(random, null, 1);
+		}
+
+		final Event[] sortedEvents = randomEvents.clone();
+		Arrays.sort(sortedEvents, (a, b) -> Integer.compare(a.getStart(), b.getStart()));
+
+		measure("EventTree.insert (random order)", size, size, new Benchmark()
+		{
+			private EventTree tree;
+
+			protected void setup()
+			{
+				tree = new EventTree();
+			}
+
+			protected long run(int ops)
+			{
+				for (int i = 0; i < ops; i++)
+				{
+					tree.insert(randomEvents[i]);
+				}
+				return tree.height();
+			}
+		});
+
+		measure("EventTree.insert (sorted order)", size, size, new Benchmark()
+		{
+			private EventTree tree;
+
+			protected void setup()
+			{
+				tree = new EventTree();
+			}
+
+			protected long run(int ops)
+			{
+				for (int i = 0; i < ops; i++)
+				{
+					tree.insert(sortedEvents[i]);
+				}
+				return tree.height();
+			}
+		});
+
+		final EventTree tree = new EventTree();
+		for (Event event : randomEvents)
+		{
+			tree.insert(event);
+		}
+		final Event[] queries = new Event[4096];
+		for (int i = 0; i < queries.length; i++)
+		{
+			queries[i] = randomEvent(random, null, 1);
+		}
+
+		measure("EventTree.overlapSearch", size, 1000000, new Benchmark()
+		{
+			protected long run(int ops)
+			{
+				long found = 0;
+				for (int i = 0; i < ops; i++)
+				{
+					if (tree.overlapSearch(queries[i & (queries.length - 1)]) != null)
+					{
+						found += 1;
+					}
+				}
+				return found;
+			}
+		});
+	}
+
+	/*
+	 * CalendarManager.addEvent and the occurrence queries on a calendar of size events
+	 * spread over YEARS years, with one day in ten of every weekday marked off.
+	 * */
+	private static void managerBenchmarks(int size)
+	{
+		Random random = new Random(7);
+		Date[] dates = dates();
+
+		final Event[] events = new Event[size];
+		for (int i = 0; i < size; i++)
+		{
+			events[i] = randomEvent(random, dates[random.nextInt(dates.length)], 0);
+		}
+
+		measure("CalendarManager.addEvent", size, size, new Benchmark()
+		{
+			private CalendarManager manager;
+
+			protected void setup()
+			{
+				manager = new CalendarManager("benchmark");
+			}
+
+			protected long run(int ops)
+			{
+				for (int i = 0; i < ops; i++)
+				{
+					manager.addEvent(events[i]);
+				}
+				return ops;
+			}
+		});
+
+		measure("CalendarManager.bulkAddEvents", size, size, new Benchmark()
+		{
+			private CalendarManager manager;
+
+			protected void setup()
+			{
+				manager = new CalendarManager("benchmark");
+			}
+
+			protected long run(int ops)
+			{
+				manager.bulkAddEvents(Arrays.asList(events).subList(0, ops));
+				return ops;
+			}
+		});
+
+		//Cancelled and moved meetings, from a manager holding every event
+		final Event[] moved = new Event[size];
+		for (int i = 0; i < size; i++)
+		{
+			moved[i] = randomEvent(random, dates[random.nextInt(dates.length)], 0);
+		}
+
+		measure("CalendarManager.removeEvent", size, size, new Benchmark()
+		{
+			private CalendarManager manager;
+
+			protected void setup()
+			{
+				manager = new CalendarManager("benchmark");
+				manager.bulkAddEvents(Arrays.asList(events));
+			}
+
+			protected long run(int ops)
+			{
+				long removed = 0;
+				for (int i = 0; i < ops; i++)
+				{
+					removed += manager.removeEvent(events[i]) ? 1 : 0;
+				}
+				return removed;
+			}
+		});
+
+		measure("CalendarManager.updateEvent", size, size, new Benchmark()
+		{
+			private CalendarManager manager;
+
+			protected void setup()
+			{
+				manager = new CalendarManager("benchmark");
+				manager.bulkAddEvents(Arrays.asList(events));
+			}
+
+			protected long run(int ops)
+			{
+				long updated = 0;
+				for (int i = 0; i < ops; i++)
+				{
+					updated += manager.updateEvent(events[i], moved[i]) ? 1 : 0;
+				}
+				return updated;
+			}
+		});
+
+		final CalendarManager manager = populatedManager(events, dates, random);
+
+		for (final int years : new int[] {1, 10})
+		{
+			final MeetingRequest[] requests = randomRequests(random, years, 1024);
+
+			measure("CalendarManager.checkOccurrencesSchedule (" + years + "y)", size, 20000/years,
+					new Benchmark()
+			{
+				protected long run(int ops)
+				{
+					long total = 0;
+					for (int i = 0; i < ops; i++)
+					{
+						total += manager.checkOccurrencesSchedule(requests[i & (requests.length - 1)]);
+					}
+					return total;
+				}
+			});
+
+			measure("CalendarManager.checkOccurrencesDaysOff (" + years + "y)", size, 20000,
+					new Benchmark()
+			{
+				protected long run(int ops)
+				{
+					long total = 0;
+					for (int i = 0; i < ops; i++)
+					{
+						total += manager.checkOccurrencesDaysOff(requests[i & (requests.length - 1)]);
+					}
+					return total;
+				}
+			});
+
+			measure("CalendarManager.conflicts (" + years + "y)", size, 20000/years,
+					new Benchmark()
+			{
+				protected long run(int ops)
+				{
+					long total = 0;
+					for (int i = 0; i < ops; i++)
+					{
+						Iterator<Conflict> conflicts = manager.conflicts(requests[i & (requests.length - 1)]);
+						while (conflicts.hasNext())
+						{
+							total += conflicts.next().getEvent().getStart();
+						}
+					}
+					return total;
+				}
+			});
+
+			measure("CalendarManager.firstConflicts k=1 (" + years + "y)", size, 20000,
+					new Benchmark()
+			{
+				protected long run(int ops)
+				{
+					long total = 0;
+					for (int i = 0; i < ops; i++)
+					{
+						total += manager.firstConflicts(requests[i & (requests.length - 1)], 1).size();
+					}
+					return total;
+				}
+			});
+		}
+
+		//Batch of 200 one year requests, reported per request
+		final List<MeetingRequest> batch = Arrays.asList(randomRequests(random, 1, 200));
+		measure("CalendarManager.checkOccurrencesSchedule batch/request", size, 20000, new Benchmark()
+		{
+			protected long run(int ops)
+			{
+				long total = 0;
+				for (int i = 0; i < ops; i += batch.size())
+				{
+					for (int count : manager.checkOccurrencesSchedule(batch))
+					{
+						total += count;
+					}
+				}
+				return total;
+			}
+		});
+
+		//First Tuesday of the month for 10 years, 120 occurrences per request
+		final MeetingRequest[] monthly = randomRequests(random, 10, 1024);
+		for (int i = 0; i < monthly.length; i++)
+		{
+			monthly[i] = new MeetingRequest(monthly[i].startDate, monthly[i].endDate, monthly[i].event,
+					RecurrenceRule.monthly(1, Calendar.TUESDAY));
+		}
+		measure("CalendarManager.checkOccurrencesSchedule (monthly, 10y)", size, 20000, new Benchmark()
+		{
+			protected long run(int ops)
+			{
+				long total = 0;
+				for (int i = 0; i < ops; i++)
+				{
+					total += manager.checkOccurrencesSchedule(monthly[i & (monthly.length - 1)]);
+				}
+				return total;
+			}
+		});
+
+		//A UI polling the same 64 one year requests, through the result cache
+		final MeetingRequest[] polled = randomRequests(random, 1, 64);
+		manager.setCacheCapacity(256);
+		measure("CalendarManager.checkOccurrencesSchedule (1y, cached)", size, 200000, new Benchmark()
+		{
+			protected long run(int ops)
+			{
+				long total = 0;
+				for (int i = 0; i < ops; i++)
+				{
+					total += manager.checkOccurrencesSchedule(polled[i & (polled.length - 1)]);
+				}
+				return total;
+			}
+		});
+		OccurrenceCache cache = manager.getCache();
+		System.out.println("  cache hits " + cache.getHits() + ", misses " + cache.getMisses()
+				+ ", evictions " + cache.getEvictions());
+		manager.setCacheCapacity(0);
+
+		//The 1y row again with CalendarMetrics listening, for the cost of the metrics
+		final MeetingRequest[] timed = randomRequests(random, 1, 1024);
+		CalendarMetrics metrics = CalendarMetrics.attach(manager);
+		measure("CalendarManager.checkOccurrencesSchedule (1y, metrics)", size, 20000, new Benchmark()
+		{
+			protected long run(int ops)
+			{
+				long total = 0;
+				for (int i = 0; i < ops; i++)
+				{
+					total += manager.checkOccurrencesSchedule(timed[i & (timed.length - 1)]);
+				}
+				return total;
+			}
+		});
+		System.out.println("  mean " + String.format("%.2f", metrics.getMeanMicros("checkOccurrencesSchedule"))
+				+ " us, p99 " + metrics.getScheduleQueryP99Micros() + " us");
+		manager.setListener(null);
+
+		//What-if planning: copying the manager once against forking a VersionedCalendar
+		measure("VersionedCalendar.copyOf", size, 1, new Benchmark()
+		{
+			protected long run(int ops)
+			{
+				long total = 0;
+				for (int i = 0; i < ops; i++)
+				{
+					total += VersionedCalendar.copyOf(manager).getDayCount();
+				}
+				return total;
+			}
+		});
+
+		final VersionedCalendar versioned = VersionedCalendar.copyOf(manager);
+		final List<Event> tentative = Arrays.asList(events).subList(0, Math.min(40, events.length));
+		measure("VersionedCalendar fork + 40 addEvent", size, 20000, new Benchmark()
+		{
+			protected long run(int ops)
+			{
+				long total = 0;
+				for (int i = 0; i < ops; i++)
+				{
+					VersionedCalendar fork = versioned.fork();
+					fork.addEvents(tentative);
+					total += fork.getVersion();
+				}
+				return total;
+			}
+		});
+
+		final MeetingRequest[] forked = randomRequests(random, 1, 1024);
+		measure("VersionedCalendar.checkOccurrencesSchedule (1y)", size, 20000, new Benchmark()
+		{
+			protected long run(int ops)
+			{
+				long total = 0;
+				for (int i = 0; i < ops; i++)
+				{
+					total += versioned.checkOccurrencesSchedule(forked[i & (forked.length - 1)]);
+				}
+				return total;
+			}
+		});
+	}
+
+	/*
+	 * SmallEventArray against EventTree for days of 1 to 128 events: filling a day one
+	 * event at a time (per event) and hasOverlap, to find the size from which a Day is
+	 * better off with a tree (SmallEventArray.CAPACITY).
+	 * */
+	private static void smallCrossover()
+	{
+		Random random = new Random(17);
+
+		System.out.println();
+		System.out.println("SmallEventArray crossover");
+
+		for (int events = 1; events <= 128; events *= 2)
+		{
+			final Event[] day = new Event[events];
+			for (int i = 0; i < events; i++)
+			{
+				day[i] = randomEvent(random, null, 1);
+			}
+			final int[] windows = new int[1024];
+			for (int i = 0; i < windows.length; i++)
+			{
+				windows[i] = random.nextInt(1440 - 60);
+			}
+
+			for (final boolean small : new boolean[] {true, false})
+			{
+				String name = small ? "SmallEventArray" : "EventTree";
+				measure(name + ".insert per event (" + events + " events)", events, 1000000,
+						new Benchmark()
+				{
+					protected long run(int ops)
+					{
+						long total = 0;
+						for (int i = 0; i < ops; i += day.length)
+						{
+							EventStore store = small ? new SmallEventArray() : new EventTree();
+							for (Event event : day)
+							{
+								store.insert(event);
+							}
+							total += store.size();
+						}
+						return total;
+					}
+				});
+
+				final EventStore store = small ? new SmallEventArray() : new EventTree();
+				for (Event event : day)
+				{
+					store.insert(event);
+				}
+				measure(name + ".hasOverlap (" + events + " events)", events, 5000000, new Benchmark()
+				{
+					protected long run(int ops)
+					{
+						long total = 0;
+						for (int i = 0; i < ops; i++)
+						{
+							int start = windows[i & (windows.length - 1)];
+							total += store.hasOverlap(start, start + 30) ? 1 : 0;
+						}
+						return total;
+					}
+				});
+			}
+		}
+	}
+
+	/*
+	 * Sequential against parallel checkOccurrencesSchedule for growing request ranges, to
+	 * find the range (in weeks) from which setParallelThreshold pays off.
+	 * */
+	private static void parallelCrossover()
+	{
+		Random random = new Random(11);
+		Date[] dates = dates();
+		Event[] events = new Event[100000];
+		for (int i = 0; i < events.length; i++)
+		{
+			events[i] = randomEvent(random, dates[random.nextInt(dates.length)], 0);
+		}
+
+		final CalendarManager sequential = populatedManager(events, dates, random);
+		final CalendarManager parallel = populatedManager(events, dates, random);
+		parallel.setParallelThreshold(1);
+
+		System.out.println();
+		System.out.println("Parallel crossover (" + events.length + " events, "
+				+ Runtime.getRuntime().availableProcessors() + " cores)");
+
+		for (int weeks = 4; weeks <= 4096; weeks *= 4)
+		{
+			final MeetingRequest[] requests = new MeetingRequest[64];
+			for (int i = 0; i < requests.length; i++)
+			{
+				requests[i] = request(random, weeks);
+			}
+			int ops = Math.max(200, 200000/weeks);
+
+			measure("checkOccurrencesSchedule sequential " + weeks + "w", events.length, ops, new Benchmark()
+			{
+				protected long run(int ops)
+				{
+					long total = 0;
+					for (int i = 0; i < ops; i++)
+					{
+						total += sequential.checkOccurrencesSchedule(requests[i & (requests.length - 1)]);
+					}
+					return total;
+				}
+			});
+
+			measure("checkOccurrencesSchedule parallel " + weeks + "w", events.length, ops, new Benchmark()
+			{
+				protected long run(int ops)
+				{
+					long total = 0;
+					for (int i = 0; i < ops; i++)
+					{
+						total += parallel.checkOccurrencesSchedule(requests[i & (requests.length - 1)]);
+					}
+					return total;
+				}
+			});
+		}
+	}
+
+	/*
+	 * Query throughput of a concurrent mode CalendarManager for a growing number of reader
+	 * threads while one writer keeps adding events.
+	 * */
+	private static void concurrentThroughput() throws InterruptedException
+	{
+		Random random = new Random(13);
+		final Date[] dates = dates();
+		Event[] events = new Event[100000];
+		for (int i = 0; i < events.length; i++)
+		{
+			events[i] = randomEvent(random, dates[random.nextInt(dates.length)], 0);
+		}
+
+		final CalendarManager manager = new CalendarManager("benchmark", true);
+		for (Event event : events)
+		{
+			manager.addEvent(event);
+		}
+		final MeetingRequest[] requests = randomRequests(random, 1, 1024);
+
+		System.out.println();
+		System.out.println("Concurrent queries with one writer (" + Runtime.getRuntime().availableProcessors()
+				+ " cores)");
+		System.out.printf("%-12s %16s %16s%n", "readers", "queries/s", "writes/s");
+
+		int maxReaders = Math.max(4, Runtime.getRuntime().availableProcessors()*2);
+		for (int readers = 1; readers <= maxReaders; readers *= 2)
+		{
+			final AtomicBoolean stop = new AtomicBoolean(false);
+			final AtomicLong queries = new AtomicLong();
+			final AtomicLong writes = new AtomicLong();
+			List<Thread> threads = new ArrayList<Thread>();
+
+			threads.add(new Thread(() ->
+			{
+				Random writerRandom = new Random();
+				long count = 0;
+				while (!stop.get())
+				{
+					manager.addEvent(randomEvent(writerRandom, dates[writerRandom.nextInt(dates.length)], 0));
+					count += 1;
+				}
+				writes.addAndGet(count);
+			}));
+
+			for (int r = 0; r < readers; r++)
+			{
+				final int offset = r*97;
+				threads.add(new Thread(() ->
+				{
+					long count = 0;
+					long total = 0;
+					while (!stop.get())
+					{
+						total += manager.checkOccurrencesSchedule(requests[(int) ((count + offset) & (requests.length - 1))]);
+						count += 1;
+					}
+					queries.addAndGet(count);
+					sink += total;
+				}));
+			}
+
+			for (Thread thread : threads)
+			{
+				thread.start();
+			}
+			Thread.sleep(2000);
+			stop.set(true);
+			for (Thread thread : threads)
+			{
+				thread.join();
+			}
+
+			System.out.printf("%-12d %16d %16d%n", readers, queries.get()/2, writes.get()/2);
+		}
+	}
+
+	/*
+	 * FreeSlotFinder for a growing number of attendees, against checking every 15 minute
+	 * candidate slot with checkOccurrencesSchedule on every attendee's manager.
+	 * */
+	private static void freeSlots()
+	{
+		Random random = new Random(17);
+		Date[] dates = dates();
+
+		System.out.println();
+		System.out.println("Common free slots over 13 weeks (1000 events per attendee)");
+
+		for (final int attendees : new int[] {10, 30, 100})
+		{
+			final List<CalendarManager> managers = new ArrayList<CalendarManager>();
+			for (int i = 0; i < attendees; i++)
+			{
+				CalendarManager manager = new CalendarManager("attendee" + i);
+				for (int j = 0; j < 1000; j++)
+				{
+					manager.addEvent(randomEvent(random, dates[random.nextInt(dates.length)], 0));
+				}
+				managers.add(manager);
+			}
+
+			final MeetingRequest[] requests = new MeetingRequest[64];
+			for (int i = 0; i < requests.length; i++)
+			{
+				requests[i] = request(random, 13);
+			}
+
+			measure("FreeSlotFinder.findFreeSlots " + attendees + " attendees", attendees, 2000, new Benchmark()
+			{
+				protected long run(int ops)
+				{
+					long total = 0;
+					for (int i = 0; i < ops; i++)
+					{
+						MeetingRequest request = requests[i & (requests.length - 1)];
+						total += FreeSlotFinder.findFreeSlots(managers, request.event.getDayOfWeek(), 30,
+								request.startDate, request.endDate).size();
+					}
+					return total;
+				}
+			});
+
+			measure("checkOccurrencesSchedule per slot " + attendees + " attendees", attendees, 20, new Benchmark()
+			{
+				protected long run(int ops)
+				{
+					long total = 0;
+					for (int i = 0; i < ops; i++)
+					{
+						MeetingRequest request = requests[i & (requests.length - 1)];
+						int dayOfWeek = request.event.getDayOfWeek();
+						for (int start = 0; start + 30 <= 1440; start += 15)
+						{
+							MeetingRequest slot = new MeetingRequest(request.startDate, request.endDate,
+									new Event(null, dayOfWeek, 0, start, 0, start + 30));
+							boolean free = true;
+							for (CalendarManager manager : managers)
+							{
+								if (manager.checkOccurrencesSchedule(slot) < 13)
+								{
+									free = false;
+									break;
+								}
+							}
+							total += free ? 1 : 0;
+						}
+					}
+					return total;
+				}
+			});
+		}
+	}
+
+	/*
+	 * Vacations and holidays of 100 users kept as day off Days against ExclusionIndex
+	 * ranges with one holiday calendar shared by every user: heap retained per user (B/op
+	 * column) and checkOccurrencesDaysOff over 1 and 10 years.
+	 * */
+	private static void exclusionRanges()
+	{
+		final int users = 100;
+		Random random = new Random(29);
+
+		System.out.println();
+		System.out.println("Days off as Days against exclusion ranges (" + users + " users)");
+
+		//12 holidays and 4 vacations of 5 to 15 days a year
+		ExclusionIndex holidays = new ExclusionIndex("holidays");
+		long firstDay = EpochDay.of(FIRST_YEAR, 0, 1);
+		for (int year = 0; year < YEARS; year++)
+		{
+			for (int i = 0; i < 12; i++)
+			{
+				long day = firstDay + year*365 + random.nextInt(365);
+				holidays.add(day, day);
+			}
+		}
+		long[][] vacations = new long[users][];
+		for (int user = 0; user < users; user++)
+		{
+			vacations[user] = new long[YEARS*4*2];
+			for (int i = 0; i < YEARS*4; i++)
+			{
+				long from = firstDay + (i/4)*365 + random.nextInt(350);
+				vacations[user][2*i] = from;
+				vacations[user][2*i + 1] = from + 4 + random.nextInt(11);
+			}
+		}
+
+		final MeetingRequest[][] requests = {randomRequests(random, 1, 1024), randomRequests(random, 10, 1024)};
+
+		for (final boolean ranges : new boolean[] {false, true})
+		{
+			String name = ranges ? "ranges" : "Days";
+			long before = usedHeap();
+
+			CalendarManager[] managers = new CalendarManager[users];
+			for (int user = 0; user < users; user++)
+			{
+				managers[user] = new CalendarManager("user" + user);
+				if (ranges)
+				{
+					managers[user].addSharedExclusions(holidays);
+					for (int i = 0; i < vacations[user].length; i += 2)
+					{
+						managers[user].addExclusion(EpochDay.toDate(vacations[user][i]), EpochDay.toDate(vacations[user][i + 1]));
+					}
+					continue;
+				}
+
+				//Every user gets a copy of every holiday
+				long[] holidayRanges = holidays.getRanges();
+				for (int i = 0; i < holidayRanges.length; i += 2)
+				{
+					addDaysOff(managers[user], holidayRanges[i], holidayRanges[i + 1]);
+				}
+				for (int i = 0; i < vacations[user].length; i += 2)
+				{
+					addDaysOff(managers[user], vacations[user][i], vacations[user][i + 1]);
+				}
+			}
+
+			long retained = usedHeap() - before;
+			System.out.printf("%-56s %10d %14s %12.1f%n", "heap per user (days off as " + name + ")",
+					users, "-", (double) retained/users);
+
+			final CalendarManager manager = managers[0];
+			for (int i = 0; i < requests.length; i++)
+			{
+				final MeetingRequest[] yearRequests = requests[i];
+				measure("checkOccurrencesDaysOff, days off as " + name + " (" + (i == 0 ? 1 : 10) + "y)",
+						users, 200000, new Benchmark()
+				{
+					protected long run(int ops)
+					{
+						long total = 0;
+						for (int j = 0; j < ops; j++)
+						{
+							total += manager.checkOccurrencesDaysOff(yearRequests[j & (yearRequests.length - 1)]);
+						}
+						return total;
+					}
+				});
+			}
+			sink += managers[users - 1].getUser().length();
+		}
+	}
+
+	/*
+	 * Adds a day off Day for every day from fromDay to toDay (inclusive).
+	 * */
+	private static void addDaysOff(CalendarManager manager, long fromDay, long toDay)
+	{
+		Calendar cal = Calendar.getInstance();
+		for (long day = fromDay; day <= toDay; day++)
+		{
+			EpochDay.toCalendar(day, cal);
+			manager.addDayOff(new Day(cal.get(Calendar.YEAR), cal.get(Calendar.MONTH),
+					cal.get(Calendar.DAY_OF_MONTH), true));
+		}
+	}
+
+	/*
+	 * Heap retained per event by a manager holding size events, with EventTrees,
+	 * CompactEventTrees and OffHeapEventStores, along with the off-heap bytes per event and
+	 * the pause of a full collection while the manager is live (ns/op column). Every event
+	 * gets its own Date, as events read from a file do. Bytes are in the B/op column.
+	 * */
+	private static void memoryFootprint(int size)
+	{
+		Date[] dates = dates();
+		String[] names = {"Standup", "Review", "Planning", "1:1", "Lunch", "Interview", "Focus", "Sync"};
+
+		for (String storage : new String[] {"EventTree", "CompactEventTree", "OffHeapEventStore"})
+		{
+			Random random = new Random(23);
+			long before = usedHeap();
+			long offHeapBefore = OffHeapArena.SHARED.getUsedBytes();
+
+			CalendarManager manager = new CalendarManager("memory");
+			if (storage.equals("CompactEventTree"))
+			{
+				manager.useCompactStorage();
+			}
+			if (storage.equals("OffHeapEventStore"))
+			{
+				manager.useOffHeapStorage();
+			}
+			for (int i = 0; i < size; i++)
+			{
+				Date date = new Date(dates[random.nextInt(dates.length)].getTime());
+				int start = random.nextInt(1440 - 120);
+				manager.addEvent(new Event(names[random.nextInt(names.length)], date, 
+						EpochDay.dayOfWeek(EpochDay.fromDate(date)), 0, start, 0, start + 15 + random.nextInt(106)));
+			}
+
+			long retained = usedHeap() - before;
+			long offHeap = OffHeapArena.SHARED.getUsedBytes() - offHeapBefore;
+			System.out.printf("%-56s %10d %14s %12.1f%n", "heap per event (" + storage + ")",
+					size, "-", (double) retained/size);
+			System.out.printf("%-56s %10d %14s %12.1f%n", "off-heap per event (" + storage + ")",
+					size, "-", (double) offHeap/size);
+
+			//A full collection traces everything live, so its pause grows with the object graph
+			long[] pauses = new long[MEASURED_ROUNDS];
+			for (int round = 0; round < MEASURED_ROUNDS; round++)
+			{
+				long start = System.nanoTime();
+				System.gc();
+				pauses[round] = System.nanoTime() - start;
+			}
+			Arrays.sort(pauses);
+			System.out.printf("%-56s %10d %14d %12s%n", "full gc pause (" + storage + ")",
+					size, pauses[MEASURED_ROUNDS/2], "-");
+			sink += manager.getUser().length();
+		}
+	}
+
+	private static long usedHeap()
+	{
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++)
+		{
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/*
+	 * CalendarImporter on generated CSV and iCalendar files of size records, about one in
+	 * a hundred of them malformed. The files are written to the temporary directory and
+	 * deleted afterwards.
+	 * */
+	private static void importBenchmarks(int size) throws IOException
+	{
+		Random random = new Random(19);
+		Date[] dates = dates();
+
+		for (String suffix : new String[] {".csv", ".ics"})
+		{
+			File file = File.createTempFile("calendar-corpus", suffix);
+			try
+			{
+				writeCorpus(file, size, dates, random);
+				for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++)
+				{
+					CalendarImporter.Result result = new CalendarImporter(new CalendarManager("import")).importFile(file);
+					if (round == WARMUP_ROUNDS + MEASURED_ROUNDS - 1)
+					{
+						System.out.printf("%-56s %10d %14.1f %12s%n", "CalendarImporter" + suffix + " (ns/record)", size,
+								(double) result.getNanos()/Math.max(1, result.getEvents() + result.getDaysOff()), "-");
+						System.out.println("  " + result);
+					}
+				}
+			}
+			finally
+			{
+				file.delete();
+			}
+		}
+	}
+
+	/*
+	 * Writes a test corpus of records events and days off (one in fifty), as CSV or as
+	 * iCalendar depending on the file name. About one record in a hundred is malformed.
+	 * */
+	private static void writeCorpus(File file, int records, Date[] dates, Random random) throws IOException
+	{
+		boolean ics = file.getName().endsWith(".ics");
+		Calendar cal = Calendar.getInstance();
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 1 << 16);
+		try
+		{
+			if (ics)
+			{
+				out.write("BEGIN:VCALENDAR\r\nVERSION:2.0\r\n");
+			}
+			else
+			{
+				out.write("name,date,start,end\n");
+			}
+
+			for (int i = 0; i < records; i++)
+			{
+				cal.setTime(dates[random.nextInt(dates.length)]);
+				int year = cal.get(Calendar.YEAR);
+				int month = cal.get(Calendar.MONTH) + 1;
+				int day = cal.get(Calendar.DAY_OF_MONTH);
+				int start = random.nextInt(1440 - 120);
+				int end = start + 15 + random.nextInt(106);
+				boolean dayOff = random.nextInt(50) == 0;
+				boolean malformed = random.nextInt(100) == 0;
+
+				if (ics)
+				{
+					String date = String.format("%04d%02d%02d", year, month, day);
+					out.write("BEGIN:VEVENT\r\nSUMMARY:Event " + i + "\r\n");
+					if (dayOff)
+					{
+						out.write("DTSTART;VALUE=DATE:" + date + "\r\n");
+					}
+					else
+					{
+						out.write(String.format("DTSTART:%sT%02d%02d00\r\nDTEND:%sT%02d%02d00\r\n",
+								malformed ? date.substring(1) : date, start/60, start%60, date, end/60, end%60));
+					}
+					out.write("END:VEVENT\r\n");
+				}
+				else
+				{
+					String date = String.format("%04d-%02d-%02d", year, malformed ? 13 : month, day);
+					if (dayOff)
+					{
+						out.write("Day off " + i + "," + date + ",,\n");
+					}
+					else
+					{
+						out.write(String.format("\"Event, %d\",%s,%02d:%02d,%02d:%02d%n", i, date,
+								start/60, start%60, end/60, end%60));
+					}
+				}
+			}
+
+			if (ics)
+			{
+				out.write("END:VCALENDAR\r\n");
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/*
+	 * Runs a benchmark for the warmup and measured rounds and prints the median round.
+	 * */
+	private static void measure(String name, int size, int ops, Benchmark benchmark)
+	{
+		long[] nanos = new long[MEASURED_ROUNDS];
+		long[] bytes = new long[MEASURED_ROUNDS];
+
+		for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++)
+		{
+			benchmark.setup();
+
+			long allocatedBefore = allocatedBytes();
+			long start = System.nanoTime();
+			sink += benchmark.run(ops);
+			long elapsed = System.nanoTime() - start;
+			long allocated = allocatedBytes() - allocatedBefore;
+
+			if (round >= WARMUP_ROUNDS)
+			{
+				nanos[round - WARMUP_ROUNDS] = elapsed;
+				bytes[round - WARMUP_ROUNDS] = allocated;
+			}
+		}
+
+		Arrays.sort(nanos);
+		Arrays.sort(bytes);
+		double nsPerOp = (double) nanos[MEASURED_ROUNDS/2]/ops;
+		String bytesPerOp = bytes[0] < 0 ? "n/a" : String.format("%.1f", (double) bytes[MEASURED_ROUNDS/2]/ops);
+
+		System.out.printf("%-56s %10d %14.1f %12s%n", name, size, nsPerOp, bytesPerOp);
+	}
+
+	/*
+	 * Bytes allocated so far by the current thread, or -1 when the JVM cannot tell.
+	 * */
+	private static long allocatedBytes()
+	{
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean)
+		{
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	/*
+	 * Every day from the first benchmark year for YEARS years.
+	 * */
+	private static Date[] dates()
+	{
+		ArrayList<Date> dates = new ArrayList<Date>();
+		Calendar cal = Calendar.getInstance();
+		cal.clear();
+		cal.set(FIRST_YEAR, 0, 1);
+		while (cal.get(Calendar.YEAR) < FIRST_YEAR + YEARS)
+		{
+			dates.add(cal.getTime());
+			cal.add(Calendar.DAY_OF_MONTH, 1);
+		}
+		return dates.toArray(new Date[dates.size()]);
+	}
+
+	/*
+	 * An event of 15 minutes to 2 hours. With a null date the event is a query event for
+	 * the given weekday, otherwise the weekday is taken from the date.
+	 * */
+	private static Event randomEvent(Random random, Date date, int dayOfWeek)
+	{
+		int start = random.nextInt(1440 - 120);
+		int length = 15 + random.nextInt(106);
+
+		if (date == null)
+		{
+			return new Event("benchmark", dayOfWeek, 0, start, 0, start + length);
+		}
+		return new Event("benchmark", date, EpochDay.dayOfWeek(EpochDay.fromDate(date)), 0, start, 0, start + length);
+	}
+
+	/*
+	 * A manager holding the events, plus one day in ten of every weekday marked off.
+	 * */
+	private static CalendarManager populatedManager(Event[] events, Date[] dates, Random random)
+	{
+		CalendarManager manager = new CalendarManager("benchmark");
+		for (Event event : events)
+		{
+			manager.addEvent(event);
+		}
+
+		Calendar cal = Calendar.getInstance();
+		for (Date date : dates)
+		{
+			if (random.nextInt(10) == 0)
+			{
+				cal.setTime(date);
+				manager.addDayOff(new Day(cal.get(Calendar.YEAR), cal.get(Calendar.MONTH),
+						cal.get(Calendar.DAY_OF_MONTH), true));
+			}
+		}
+		return manager;
+	}
+
+	private static MeetingRequest[] randomRequests(Random random, int years, int count)
+	{
+		MeetingRequest[] requests = new MeetingRequest[count];
+		for (int i = 0; i < count; i++)
+		{
+			requests[i] = request(random, years*52);
+		}
+		return requests;
+	}
+
+	/*
+	 * A weekly meeting request for the given number of weeks, starting at a random day
+	 * of the first benchmark year.
+	 * */
+	private static MeetingRequest request(Random random, int weeks)
+	{
+		Calendar cal = Calendar.getInstance();
+		cal.clear();
+		cal.set(FIRST_YEAR, 0, 1 + random.nextInt(365));
+		Date startDate = cal.getTime();
+		cal.add(Calendar.DAY_OF_MONTH, weeks*7 - 1);
+		Date endDate = cal.getTime();
+
+		return new MeetingRequest(startDate, endDate, randomEvent(random, null, 1 + random.nextInt(7)));
+	}
+}
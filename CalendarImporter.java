@@ -0,0 +1,822 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+
+/*
+ * CalendarImporter
+ *
+ * Streams CSV and iCalendar (.ics) exports into a CalendarManager. Files are read through
+ * a FileChannel into a fixed size buffer and decoded line by line, so memory use does not
+ * depend on the size of the file. Events are handed to CalendarManager.bulkAddEvents in
+ * batches, days off are excluded as they come (see CalendarManager.addExclusion). An
+ * exclusion leaves the events of its days alone, so a day off and the events on the same
+ * date are all kept whichever comes first in the file.
+ *
+ * CSV rows are name,date,start,end with the date as yyyy-MM-dd and the times as HH:mm,
+ * for example:
+ *
+ *		Standup,2020-03-02,09:00,09:15
+ *		"Review, weekly",2020-03-02,14:00,15:00
+ *		Holiday,2020-12-25,,
+ *
+ * A row without start and end is a day off. A first row starting with "name," is taken as
+ * a header.
+ *
+ * From .ics files every VEVENT is read with its SUMMARY, DTSTART and DTEND. Times can be
+ * floating (local), UTC (ending with Z) or given with a TZID, and are converted to the
+ * default time zone. An event ending on a later day ends at minute 1440 of its first day.
+ * All-day events (VALUE=DATE) are days off, one excluded range covering every day of the
+ * event.
+ *
+ * Malformed rows and events, and lines longer than MAX_LINE characters, are counted and
+ * skipped, an import never stops because of them.
+ *
+ * */
+
+public class CalendarImporter {
+
+	/*
+	 * ------private members------
+	 *
+	 * (manager, CalendarManager):
+	 * manager the records are imported into.
+	 *
+	 * (batchSize, int):
+	 * number of events handed to bulkAddEvents at once.
+	 *
+	 * (batch, ArrayList<Event>):
+	 * events read since the last flush.
+	 *
+	 * (local, Calendar):
+	 * calendar in the default time zone dates are built and converted with.
+	 *
+	 * (zones, HashMap<String, Calendar>):
+	 * a calendar for every TZID seen so far, plus one for UTC.
+	 *
+	 * (result, Result):
+	 * counters of the import in progress.
+	 *
+	 * */
+
+	//longest line that is parsed, longer ones are skipped as malformed
+	public static final int MAX_LINE = 1 << 16;
+
+	//all-day events covering more days than this are malformed
+	private static final int MAX_ALL_DAY_DAYS = 366;
+
+	private static final int BUFFER_BYTES = 1 << 16;
+
+	private CalendarManager manager;
+	private int batchSize;
+	private ArrayList<Event> batch;
+	private Calendar local;
+	private HashMap<String, Calendar> zones;
+	private Result result;
+
+	/*
+	 * Constructor for CalendarImporter, importing into manager in batches of 10000 events.
+	 *
+	 * */
+	public CalendarImporter(CalendarManager manager)
+	{
+		this(manager, 10000);
+	}
+
+	public CalendarImporter(CalendarManager manager, int batchSize)
+	{
+		if (batchSize < 1)
+		{
+			throw new IllegalArgumentException("batchSize must be at least 1: " + batchSize);
+		}
+		this.manager = manager;
+		this.batchSize = batchSize;
+		this.batch = new ArrayList<Event>(batchSize);
+		this.local = Calendar.getInstance();
+		this.zones = new HashMap<String, Calendar>();
+		this.result = null;
+	}
+
+	/*
+	 * Imports a file, as iCalendar if its name ends with .ics and as CSV otherwise.
+	 * */
+	public Result importFile(File file) throws IOException
+	{
+		if (file.getName().toLowerCase().endsWith(".ics"))
+		{
+			return importIcs(file);
+		}
+		return importCsv(file);
+	}
+
+	public Result importCsv(File file) throws IOException
+	{
+		result = new Result();
+		long start = System.nanoTime();
+		LineReader reader = new LineReader(file);
+		try
+		{
+			String line;
+			boolean first = true;
+			String[] fields = new String[4];
+			while ((line = reader.readLine()) != null)
+			{
+				if (reader.tooLong)
+				{
+					result.malformed += 1;
+					continue;
+				}
+				if (first && line.regionMatches(true, 0, "name,", 0, 5))
+				{
+					first = false;
+					continue;
+				}
+				first = false;
+
+				if (line.trim().isEmpty())
+				{
+					continue;
+				}
+				if (!splitCsv(line, fields) || !addCsvRecord(fields))
+				{
+					result.malformed += 1;
+				}
+			}
+			flush();
+		}
+		finally
+		{
+			result.bytes = reader.bytesRead;
+			reader.close();
+		}
+		result.nanos = System.nanoTime() - start;
+		return result;
+	}
+
+	public Result importIcs(File file) throws IOException
+	{
+		result = new Result();
+		long start = System.nanoTime();
+		LineReader reader = new LineReader(file);
+		try
+		{
+			VEvent event = new VEvent();
+
+			//Logical line being unfolded, continuation lines start with a space or a tab
+			StringBuilder unfolded = new StringBuilder();
+			boolean tooLong = false;
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				if (!line.isEmpty() && (line.charAt(0) == ' ' || line.charAt(0) == '\t'))
+				{
+					if (unfolded.length() + line.length() > MAX_LINE || reader.tooLong)
+					{
+						tooLong = true;
+					}
+					else
+					{
+						unfolded.append(line, 1, line.length());
+					}
+					continue;
+				}
+
+				icsLine(unfolded, tooLong, event);
+				unfolded.setLength(0);
+				unfolded.append(line);
+				tooLong = reader.tooLong;
+			}
+			icsLine(unfolded, tooLong, event);
+
+			//A VEVENT cut off by the end of the file
+			if (event.open)
+			{
+				result.malformed += 1;
+			}
+			flush();
+		}
+		finally
+		{
+			result.bytes = reader.bytesRead;
+			reader.close();
+		}
+		result.nanos = System.nanoTime() - start;
+		return result;
+	}
+
+	/*
+	 * Handles one unfolded iCalendar line.
+	 * */
+	private void icsLine(StringBuilder unfolded, boolean tooLong, VEvent event)
+	{
+		if (unfolded.length() == 0)
+		{
+			return;
+		}
+		if (tooLong)
+		{
+			//Only matters inside a VEVENT, the event can no longer be trusted
+			if (event.open)
+			{
+				event.malformed = true;
+			}
+			return;
+		}
+
+		String line = unfolded.toString();
+		int colon = line.indexOf(':');
+		if (colon < 0)
+		{
+			if (event.open)
+			{
+				event.malformed = true;
+			}
+			return;
+		}
+		int semicolon = line.indexOf(';');
+		int nameEnd = semicolon >= 0 && semicolon < colon ? semicolon : colon;
+		String name = line.substring(0, nameEnd).toUpperCase();
+		String params = line.substring(nameEnd, colon);
+		String value = line.substring(colon + 1);
+
+		if (name.equals("BEGIN"))
+		{
+			if (value.equalsIgnoreCase("VEVENT"))
+			{
+				if (event.open)
+				{
+					result.malformed += 1;
+				}
+				event.reset();
+			}
+			else if (event.open)
+			{
+				//VALARM and other components nested in the VEVENT
+				event.nested += 1;
+			}
+		}
+		else if (name.equals("END"))
+		{
+			if (value.equalsIgnoreCase("VEVENT") && event.open)
+			{
+				if (event.malformed || !addIcsEvent(event))
+				{
+					result.malformed += 1;
+				}
+				event.open = false;
+			}
+			else if (event.open && event.nested > 0)
+			{
+				event.nested -= 1;
+			}
+		}
+		else if (event.open && event.nested == 0)
+		{
+			if (name.equals("SUMMARY"))
+			{
+				event.summary = unescape(value);
+			}
+			else if (name.equals("DTSTART"))
+			{
+				event.startParams = params;
+				event.start = value;
+			}
+			else if (name.equals("DTEND"))
+			{
+				event.endParams = params;
+				event.end = value;
+			}
+		}
+	}
+
+	/*
+	 * Splits a CSV row into exactly fields.length fields. Fields can be quoted, with ""
+	 * for a quote inside. Returns false if the row does not have that many fields.
+	 * */
+	private static boolean splitCsv(String line, String[] fields)
+	{
+		int count = 0;
+		int i = 0;
+		StringBuilder field = new StringBuilder();
+		while (true)
+		{
+			field.setLength(0);
+			if (i < line.length() && line.charAt(i) == '"')
+			{
+				i += 1;
+				while (true)
+				{
+					if (i >= line.length())
+					{
+						return false;
+					}
+					char c = line.charAt(i++);
+					if (c == '"')
+					{
+						if (i < line.length() && line.charAt(i) == '"')
+						{
+							field.append('"');
+							i += 1;
+						}
+						else
+						{
+							break;
+						}
+					}
+					else
+					{
+						field.append(c);
+					}
+				}
+				if (i < line.length() && line.charAt(i) != ',')
+				{
+					return false;
+				}
+			}
+			else
+			{
+				int comma = line.indexOf(',', i);
+				int end = comma < 0 ? line.length() : comma;
+				field.append(line, i, end);
+				i = end;
+			}
+
+			if (count == fields.length)
+			{
+				return false;
+			}
+			fields[count++] = field.toString().trim();
+
+			if (i >= line.length())
+			{
+				break;
+			}
+			i += 1;
+		}
+		return count == fields.length;
+	}
+
+	private boolean addCsvRecord(String[] fields)
+	{
+		int date = parseDate(fields[1], 0);
+		if (date < 0)
+		{
+			return false;
+		}
+		int year = date/10000;
+		int month = date/100%100 - 1;
+		int day = date%100;
+		if (!validDate(year, month, day))
+		{
+			return false;
+		}
+
+		if (fields[2].isEmpty() && fields[3].isEmpty())
+		{
+			long epochDay = EpochDay.of(year, month, day);
+			addDaysOff(epochDay, epochDay);
+			return true;
+		}
+
+		int start = parseTime(fields[2]);
+		int end = parseTime(fields[3]);
+		if (start < 0 || end < start)
+		{
+			return false;
+		}
+
+		local.clear();
+		local.set(year, month, day);
+		addEvent(new Event(fields[0].isEmpty() ? null : fields[0], local.getTime(),
+				local.get(Calendar.DAY_OF_WEEK), 0, start, 0, end));
+		return true;
+	}
+
+	private boolean addIcsEvent(VEvent event)
+	{
+		if (event.start == null)
+		{
+			return false;
+		}
+
+		//All-day event, days off up to (not including) DTEND
+		if (isDate(event.startParams, event.start))
+		{
+			int date = parseDate(event.start, 0);
+			if (date < 0 || !validDate(date/10000, date/100%100 - 1, date%100))
+			{
+				return false;
+			}
+			long firstDay = EpochDay.of(date/10000, date/100%100 - 1, date%100);
+			long lastDay = firstDay;
+			if (event.end != null)
+			{
+				int endDate = parseDate(event.end, 0);
+				if (endDate < 0 || !validDate(endDate/10000, endDate/100%100 - 1, endDate%100))
+				{
+					return false;
+				}
+				lastDay = Math.max(firstDay, EpochDay.of(endDate/10000, endDate/100%100 - 1, endDate%100) - 1);
+			}
+			if (lastDay - firstDay >= MAX_ALL_DAY_DAYS)
+			{
+				return false;
+			}
+
+			addDaysOff(firstDay, lastDay);
+			return true;
+		}
+
+		if (!parseDateTime(event.startParams, event.start))
+		{
+			return false;
+		}
+		long startDay = EpochDay.fromCalendar(local);
+		int start = local.get(Calendar.HOUR_OF_DAY)*60 + local.get(Calendar.MINUTE);
+		int dayOfWeek = local.get(Calendar.DAY_OF_WEEK);
+		int year = local.get(Calendar.YEAR);
+		int month = local.get(Calendar.MONTH);
+		int day = local.get(Calendar.DAY_OF_MONTH);
+
+		int end = start;
+		if (event.end != null)
+		{
+			if (!parseDateTime(event.endParams, event.end))
+			{
+				return false;
+			}
+			long endDay = EpochDay.fromCalendar(local);
+			if (endDay < startDay)
+			{
+				return false;
+			}
+			end = endDay > startDay ? 1440 : Math.max(start, local.get(Calendar.HOUR_OF_DAY)*60 + local.get(Calendar.MINUTE));
+		}
+
+		local.clear();
+		local.set(year, month, day);
+		addEvent(new Event(event.summary, local.getTime(), dayOfWeek, 0, start, 0, end));
+		return true;
+	}
+
+	private void addEvent(Event event)
+	{
+		batch.add(event);
+		if (batch.size() >= batchSize)
+		{
+			flush();
+		}
+	}
+
+	/*
+	 * Excludes the epoch days firstDay to lastDay (inclusive). Unlike addDayOff this
+	 * keeps the events already stored on those days.
+	 * */
+	private void addDaysOff(long firstDay, long lastDay)
+	{
+		manager.exclude(firstDay, lastDay);
+		result.daysOff += lastDay - firstDay + 1;
+	}
+
+	/*
+	 * Hands the pending events to the manager. They are counted once they are in it.
+	 * */
+	private void flush()
+	{
+		if (!batch.isEmpty())
+		{
+			manager.bulkAddEvents(batch);
+			result.events += batch.size();
+			batch = new ArrayList<Event>(batchSize);
+		}
+	}
+
+	private static boolean isDate(String params, String value)
+	{
+		return params.toUpperCase().contains("VALUE=DATE") && !params.toUpperCase().contains("VALUE=DATE-TIME")
+				|| value.length() == 8;
+	}
+
+	/*
+	 * Sets local to an iCalendar date-time (yyyyMMddTHHmmss, optionally ending with Z,
+	 * optionally with a TZID parameter) converted to the default time zone.
+	 * */
+	private boolean parseDateTime(String params, String value)
+	{
+		boolean utc = value.endsWith("Z");
+		int length = utc ? value.length() - 1 : value.length();
+		if (length != 15 || value.charAt(8) != 'T')
+		{
+			return false;
+		}
+		int date = parseDate(value, 0);
+		int hour = parseDigits(value, 9, 2);
+		int minute = parseDigits(value, 11, 2);
+		int second = parseDigits(value, 13, 2);
+		if (date < 0 || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 60
+				|| !validDate(date/10000, date/100%100 - 1, date%100))
+		{
+			return false;
+		}
+
+		String zone = utc ? "UTC" : tzid(params);
+		if (zone == null)
+		{
+			local.clear();
+			local.set(date/10000, date/100%100 - 1, date%100, hour, minute, second);
+			return true;
+		}
+
+		Calendar zoned = zones.get(zone);
+		if (zoned == null)
+		{
+			zoned = Calendar.getInstance(TimeZone.getTimeZone(zone));
+			zones.put(zone, zoned);
+		}
+		zoned.clear();
+		zoned.set(date/10000, date/100%100 - 1, date%100, hour, minute, second);
+		local.setTimeInMillis(zoned.getTimeInMillis());
+		return true;
+	}
+
+	private static String tzid(String params)
+	{
+		int index = params.toUpperCase().indexOf(";TZID=");
+		if (index < 0)
+		{
+			return null;
+		}
+		int end = params.indexOf(';', index + 6);
+		String zone = params.substring(index + 6, end < 0 ? params.length() : end);
+		if (zone.length() > 1 && zone.charAt(0) == '"' && zone.charAt(zone.length() - 1) == '"')
+		{
+			zone = zone.substring(1, zone.length() - 1);
+		}
+		return zone;
+	}
+
+	/*
+	 * Parses yyyy-MM-dd or yyyyMMdd starting at from into yyyyMMdd, or -1.
+	 * */
+	private static int parseDate(String value, int from)
+	{
+		if (value.length() - from == 10 && value.charAt(from + 4) == '-' && value.charAt(from + 7) == '-')
+		{
+			int year = parseDigits(value, from, 4);
+			int month = parseDigits(value, from + 5, 2);
+			int day = parseDigits(value, from + 8, 2);
+			return year < 0 || month < 0 || day < 0 ? -1 : year*10000 + month*100 + day;
+		}
+		if (value.length() - from >= 8)
+		{
+			return parseDigits(value, from, 8);
+		}
+		return -1;
+	}
+
+	/*
+	 * Parses HH:mm into minutes since midnight (24:00 is minute 1440), or -1.
+	 * */
+	private static int parseTime(String value)
+	{
+		if (value.length() != 5 || value.charAt(2) != ':')
+		{
+			return -1;
+		}
+		int hour = parseDigits(value, 0, 2);
+		int minute = parseDigits(value, 3, 2);
+		if (hour < 0 || minute < 0 || minute > 59 || hour*60 + minute > 1440)
+		{
+			return -1;
+		}
+		return hour*60 + minute;
+	}
+
+	private static int parseDigits(String value, int from, int count)
+	{
+		int number = 0;
+		for (int i = from; i < from + count; i++)
+		{
+			char c = value.charAt(i);
+			if (c < '0' || c > '9')
+			{
+				return -1;
+			}
+			number = number*10 + (c - '0');
+		}
+		return number;
+	}
+
+	private static boolean validDate(int year, int month, int day)
+	{
+		if (year < 1 || month < 0 || month > 11 || day < 1)
+		{
+			return false;
+		}
+		int months = year*12 + month;
+		return day <= EpochDay.firstOfMonth(months + 1) - EpochDay.firstOfMonth(months);
+	}
+
+	/*
+	 * Undoes iCalendar text escaping (\\, \; \, and \n).
+	 * */
+	private static String unescape(String value)
+	{
+		if (value.indexOf('\\') < 0)
+		{
+			return value;
+		}
+		StringBuilder text = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++)
+		{
+			char c = value.charAt(i);
+			if (c == '\\' && i + 1 < value.length())
+			{
+				char next = value.charAt(++i);
+				text.append(next == 'n' || next == 'N' ? '\n' : next);
+			}
+			else
+			{
+				text.append(c);
+			}
+		}
+		return text.toString();
+	}
+
+	/*
+	 * Counters of one import.
+	 *
+	 * */
+	public static class Result
+	{
+		private long events;
+		private long daysOff;
+		private long malformed;
+		private long bytes;
+		private long nanos;
+
+		public long getEvents()
+		{
+			return this.events;
+		}
+
+		public long getDaysOff()
+		{
+			return this.daysOff;
+		}
+
+		public long getMalformed()
+		{
+			return this.malformed;
+		}
+
+		public long getBytes()
+		{
+			return this.bytes;
+		}
+
+		public long getNanos()
+		{
+			return this.nanos;
+		}
+
+		/*
+		 * Imported records (events and days off) per second.
+		 * */
+		public double getRecordsPerSecond()
+		{
+			return nanos == 0 ? 0 : (events + daysOff)*1e9/nanos;
+		}
+
+		public String toString()
+		{
+			return String.format("%d events, %d days off, %d malformed, %.1f MB in %.2f s (%.0f records/s)",
+					events, daysOff, malformed, bytes/1e6, nanos/1e9, getRecordsPerSecond());
+		}
+	}
+
+	/*
+	 * Properties of the VEVENT being read.
+	 * */
+	private static class VEvent
+	{
+		private boolean open;
+		private boolean malformed;
+		private int nested;
+		private String summary;
+		private String startParams;
+		private String start;
+		private String endParams;
+		private String end;
+
+		void reset()
+		{
+			open = true;
+			malformed = false;
+			nested = 0;
+			summary = null;
+			startParams = "";
+			start = null;
+			endParams = "";
+			end = null;
+		}
+	}
+
+	/*
+	 * Reads the lines of a UTF-8 file through a FileChannel and a fixed size buffer.
+	 * Invalid UTF-8 is replaced, \r\n and \n both end a line. A line longer than
+	 * MAX_LINE is returned cut off with tooLong set.
+	 * */
+	private static class LineReader
+	{
+		private FileChannel channel;
+		private ByteBuffer bytes;
+		private CharBuffer chars;
+		private CharsetDecoder decoder;
+		private StringBuilder line;
+		private boolean endOfFile;
+		private boolean tooLong;
+		private long bytesRead;
+
+		LineReader(File file) throws IOException
+		{
+			this.channel = new FileInputStream(file).getChannel();
+			this.bytes = ByteBuffer.allocateDirect(BUFFER_BYTES);
+			this.chars = CharBuffer.allocate(BUFFER_BYTES);
+			this.chars.flip();
+			this.decoder = StandardCharsets.UTF_8.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			this.line = new StringBuilder();
+			this.endOfFile = false;
+			this.tooLong = false;
+			this.bytesRead = 0;
+		}
+
+		String readLine() throws IOException
+		{
+			line.setLength(0);
+			tooLong = false;
+			while (true)
+			{
+				while (chars.hasRemaining())
+				{
+					char c = chars.get();
+					if (c == '\n')
+					{
+						int length = line.length();
+						if (length > 0 && line.charAt(length - 1) == '\r')
+						{
+							line.setLength(length - 1);
+						}
+						return line.toString();
+					}
+					if (line.length() < MAX_LINE)
+					{
+						line.append(c);
+					}
+					else
+					{
+						tooLong = true;
+					}
+				}
+
+				if (endOfFile)
+				{
+					//Last line without a line break
+					return line.length() > 0 || tooLong ? line.toString() : null;
+				}
+				fill();
+			}
+		}
+
+		private void fill() throws IOException
+		{
+			int read = channel.read(bytes);
+			if (read < 0)
+			{
+				endOfFile = true;
+			}
+			else
+			{
+				bytesRead += read;
+			}
+
+			bytes.flip();
+			chars.clear();
+			decoder.decode(bytes, chars, endOfFile);
+			if (endOfFile)
+			{
+				decoder.flush(chars);
+			}
+			bytes.compact();
+			chars.flip();
+		}
+
+		void close() throws IOException
+		{
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,49 @@
+/*
+ * CalendarListener
+ *
+ * Receives a call for every change and query handled by a CalendarManager it is set on
+ * (see CalendarManager.setListener), with the time the operation took in nanoseconds.
+ * Calls are made on the thread that ran the operation, after its locks are released, so
+ * a listener shared by concurrent threads has to be thread safe. CalendarMetrics is the
+ * listener behind the JMX metrics.
+ *
+ * */
+
+public interface CalendarListener
+{
+	/*
+	 * Called after addEvent.
+	 * */
+	public void eventAdded(Event event, long nanos);
+
+	/*
+	 * Called after bulkAddEvents added count events.
+	 * */
+	public void eventsAdded(int count, long nanos);
+
+	/*
+	 * Called after removeEvent, removed tells whether the event was found.
+	 * */
+	public void eventRemoved(Event event, boolean removed, long nanos);
+
+	/*
+	 * Called after updateEvent, updated tells whether oldEvent was found.
+	 * */
+	public void eventUpdated(Event oldEvent, Event newEvent, boolean updated, long nanos);
+
+	/*
+	 * Called after addDay and addDayOff (day.isDayOff() tells them apart).
+	 * */
+	public void dayAdded(Day day, long nanos);
+
+	/*
+	 * Called after checkOccurrencesSchedule with the number of meetings found. For the
+	 * batch version it is called for every request, with the batch's time split evenly.
+	 * */
+	public void scheduleChecked(MeetingRequest request, int numMeetings, long nanos);
+
+	/*
+	 * Called after checkOccurrencesDaysOff with the number of meetings found.
+	 * */
+	public void daysOffChecked(MeetingRequest request, int numMeetings, long nanos);
+}
@@ -1,4 +1,8 @@
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
 
 /*
  * CalendarManager
@@ -22,6 +26,21 @@ import java.util.*;
  * with one another in the sense that they could schedule meetings while taking employees
  * schedules into account.
  * 
+ * A CalendarManager created in concurrent mode can be shared between threads. Each weekday
+ * bucket of daysOfWeek has its own read/write lock, so queries never wait for each other and
+ * only wait for writes to the same weekday, while writes to different weekdays run in parallel.
+ * 
+ * Days and events can be made durable by opening an EventLog (see openLog). Every change
+ * is then appended to the log, and opening the log again rebuilds the manager from it.
+ * 
+ * Days are kept in year segments, so past years can be dropped (evictBefore) or moved
+ * to disk and read back when needed (spillBefore).
+ * 
+ * Vacations and holidays can also be excluded as ranges of days (addExclusion) instead
+ * of a day off Day per day. Shared holiday calendars are ExclusionIndexes referenced by
+ * every manager using them (addSharedExclusions). checkOccurrencesDaysOff counts the
+ * occurrences falling into the ranges on top of the days off.
+ * 
  * */
 
 interface CalendarInter
@@ -36,6 +55,18 @@ interface CalendarInter
 	 * */
 	public void addDayOff(Day day);
 	
+	/*
+	 * Excludes every day from from to to (inclusive) from meetings, the same as a day off
+	 * for checkOccurrencesDaysOff, without storing a Day for any of them.
+	 * */
+	public void addExclusion(Date from, Date to);
+	
+	/*
+	 * Stops excluding the days from from to to (inclusive) added with addExclusion.
+	 * Returns false if none of them was excluded.
+	 * */
+	public boolean removeExclusion(Date from, Date to);
+	
 	/*
 	 * Adds an event to a day in daysOfWeek. If the day does not exist, it will first create
 	 * a new day and add it to daysOfWeek with the new event. If the day does exist, it simply
@@ -43,9 +74,29 @@ interface CalendarInter
 	 * */
 	public void addEvent(Event event);
 	
+	/*
+	 * Adds many events at once. Events are grouped by day and sorted by start minute, and
+	 * each day's EventTree is built bottom-up instead of one insert per event.
+	 * */
+	public void bulkAddEvents(Iterable<? extends Event> events);
+	
+	/*
+	 * Removes an event with the same date, minutes and name from its day. A day left
+	 * without events that is not a day off is removed as well. Returns false if there
+	 * is no such event.
+	 * */
+	public boolean removeEvent(Event event);
+	
+	/*
+	 * Replaces an event with newEvent, which can be on another day. Returns false, and
+	 * adds nothing, if there is no event like oldEvent.
+	 * */
+	public boolean updateEvent(Event oldEvent, Event newEvent);
+	
 	/*
 	 * Method that counts the number of reoccurring meetings by passing in the
-	 * requested meeting time and a certain end date. 
+	 * requested meeting time and a certain end date. Meetings repeat every week
+	 * unless the request carries a RecurrenceRule.
 	 * */
 	public int checkOccurrencesSchedule(MeetingRequest request);
 	
@@ -56,6 +107,31 @@ interface CalendarInter
 
 	public int checkOccurrencesDaysOff(MeetingRequest request);
 	
+	/*
+	 * Batch version of checkOccurrencesSchedule. Returns the number of meetings for
+	 * each request, in the same order as the list.
+	 * */
+	public int[] checkOccurrencesSchedule(List<MeetingRequest> requests);
+	
+	/*
+	 * Returns every event conflicting with an occurrence of the request, lazily and in
+	 * order of date, then start minute. Occurrences are the same as for
+	 * checkOccurrencesSchedule, days off are not reported.
+	 * */
+	public Iterator<Conflict> conflicts(MeetingRequest request);
+	
+	/*
+	 * Same as conflicts but stops after the first k conflicts.
+	 * */
+	public List<Conflict> firstConflicts(MeetingRequest request, int k);
+	
+	/*
+	 * Returns the busy time of every stored day on a weekday from startDate to endDate,
+	 * one array of spans {start0, end0, start1, end1, ...} sorted by start minute per day.
+	 * Used by FreeSlotFinder to merge the schedules of several users.
+	 * */
+	public List<int[]> getBusySpans(int dayOfWeek, Date startDate, Date endDate);
+	
 	//Accessors
 	
 	public String getUser();
@@ -70,194 +146,1584 @@ public class CalendarManager implements CalendarInter {
 	 * placeholder for a potential user's calendar. CalendarManagers
 	 * could potentially interact with one another
 	 * 
-	 * (daysOfWeek, ArrayList<Map<String, Day> >):
+	 * (daysOfWeek, ArrayList<SegmentedDayIndex>):
 	 * meant to represent weeks spanning an entire year where each index is a 
-	 * weekday that contains a HashMap of Day that corresponds to that 
-	 * particular weekday.
+	 * weekday that contains a SegmentedDayIndex of Day, keyed by epoch day, that corresponds
+	 * to that particular weekday.
+	 * 
+	 * (daysOffOfWeek, ArrayList<WeekBitSet>):
+	 * one bit per week for each weekday, set when the Day stored for that week is
+	 * a day off. Used to count days off over a range without visiting every week.
+	 * 
+	 * (busyMinutes, boolean):
+	 * whether days keep a busy minute bitmap (see useBusyMinutes).
+	 * 
+	 * (compactStorage, boolean):
+	 * whether days keep their events in a CompactEventTree (see useCompactStorage).
+	 * 
+	 * (offHeapStorage, boolean):
+	 * whether days keep their events in an OffHeapEventStore (see useOffHeapStorage).
+	 * 
+	 * (locks, ReentrantReadWriteLock[]):
+	 * one lock per weekday guarding that weekday's SegmentedDayIndex, WeekBitSet and Days. null
+	 * unless the manager was created in concurrent mode.
+	 * 
+	 * (parallelThreshold, int):
+	 * number of weeks from which checkOccurrencesSchedule counts a request on the
+	 * fork/join pool instead of the calling thread, 0 to never do so.
+	 * 
+	 * (log, EventLog):
+	 * log every added day and event is appended to, null if the manager is not logged.
+	 * 
+	 * (cache, OccurrenceCache):
+	 * cached results of weekly meeting requests, null unless setCacheCapacity was called.
+	 * 
+	 * (listener, CalendarListener):
+	 * told about every change and query with the time it took, null if none is set.
+	 * 
+	 * (ownExclusions, ExclusionIndex):
+	 * ranges of days excluded with addExclusion. Changes to it and the log records for
+	 * them are made holding its monitor.
+	 * 
+	 * (exclusions, ExclusionIndex[]):
+	 * indexes checkOccurrencesDaysOff counts, ownExclusions once it was used followed by
+	 * the shared ones. Replaced, never changed, when an index is added or removed.
 	 * 
 	 */
 	
 	private String userName;
-	private ArrayList<Map<String, Day> > daysOfWeek;
+	private ArrayList<SegmentedDayIndex> daysOfWeek;
+	private ArrayList<WeekBitSet> daysOffOfWeek;
+	private volatile boolean busyMinutes;
+	private volatile boolean compactStorage;
+	private volatile boolean offHeapStorage;
+	private ReentrantReadWriteLock[] locks;
+	private volatile int parallelThreshold;
+	private volatile EventLog log;
+	private volatile OccurrenceCache cache;
+	private volatile CalendarListener listener;
+	private ExclusionIndex ownExclusions;
+	private volatile ExclusionIndex[] exclusions;
+	
+	//widest range of days (about 45000 years) bulkAddEvents counting-sorts events over
+	private static final long BULK_MAX_DAYS = 1 << 24;
 	
 	/*
-	 * Constructor for CalendarManager. Creates the ArrayList daysOfWeek and initializes
-	 * userName.
+	 * Constructor for CalendarManager. Creates the ArrayLists daysOfWeek and daysOffOfWeek
+	 * and initializes userName.
 	 * 
 	 * */
 	public CalendarManager(String user)
+	{
+		this(user, false);
+	}
+	
+	/*
+	 * Constructor for CalendarManager that can create the manager in concurrent mode, in
+	 * which it is safe to use from several threads at once.
+	 * 
+	 * */
+	public CalendarManager(String user, boolean concurrent)
 	{
 		this.userName = user;
-		daysOfWeek = new ArrayList<Map<String, Day> >(7);
-		for (int i = 0; i <= 7; i++) 
+		daysOfWeek = new ArrayList<SegmentedDayIndex>(7);
+		daysOffOfWeek = new ArrayList<WeekBitSet>(7);
+		for (int i = 0; i < 7; i++) 
+		{
+			daysOfWeek.add(new SegmentedDayIndex(day -> prepareDay(day)));
+			daysOffOfWeek.add(new WeekBitSet());
+		}
+		this.busyMinutes = false;
+		this.compactStorage = false;
+		this.offHeapStorage = false;
+		this.parallelThreshold = 0;
+		this.ownExclusions = new ExclusionIndex(user);
+		this.exclusions = new ExclusionIndex[0];
+		
+		if (concurrent)
 		{
-			daysOfWeek.add(new HashMap<String, Day>());
+			locks = new ReentrantReadWriteLock[7];
+			for (int i = 0; i < 7; i++)
+			{
+				locks[i] = new ReentrantReadWriteLock();
+			}
 		}
 	}
 	
 	//Mutators
 	
+	/*
+	 * The public mutators and queries only check for a listener. When one is set they
+	 * time the private method doing the work and tell the listener once it returned,
+	 * outside of any lock.
+	 * */
 	public void addDay(Day day)
 	{
-		//The key for the <String, Day> pair is a string of integers formed by
-		//concatenating the year, month, and day together for a day.
+		CalendarListener listener = this.listener;
+		if (listener == null)
+		{
+			putDay(day);
+			return;
+		}
+		
+		long start = System.nanoTime();
+		putDay(day);
+		listener.dayAdded(day, System.nanoTime() - start);
+	}
+	
+	private void putDay(Day day)
+	{
+		int weekday = day.getDayOfWeek()-1;
 		
-		String yearMonthDayKey = Integer.toString(day.getYear()) + Integer.toString(day.getMonth()) +
-				Integer.toString(day.getDay());
-		daysOfWeek.get(day.getDayOfWeek()-1).put(yearMonthDayKey,day);
+		lockWrite(weekday);
+		try
+		{
+			storeDay(weekday, day);
+			
+			OccurrenceCache cache = this.cache;
+			if (cache != null)
+			{
+				cache.invalidateDay(weekday, day.getEpochDay());
+			}
+			
+			EventLog log = this.log;
+			if (log != null)
+			{
+				log.appendDay(day);
+			}
+		}
+		finally
+		{
+			unlockWrite(weekday);
+		}
 	}
 	
 	public void addDayOff(Day day)
 	{
-		//The key for the <String, Day> pair is a string of integers formed by
-		//concatenating the year, month, and day together for a day.
+		//Stored the same way as any other day, the day off flag is read from the day.
+		addDay(day);
+	}
+	
+	public void addExclusion(Date from, Date to)
+	{
+		exclude(EpochDay.fromDate(from), EpochDay.fromDate(to));
+	}
+	
+	/*
+	 * Excludes the epoch days fromDay to toDay (inclusive) in ownExclusions. Weekday locks
+	 * are not needed: the index is copy-on-write and the days off cache only holds counts
+	 * of day off bits.
+	 * */
+	void exclude(long fromDay, long toDay)
+	{
+		synchronized (ownExclusions)
+		{
+			ownExclusions.add(fromDay, toDay);
+			addExclusions(ownExclusions);
+			
+			EventLog log = this.log;
+			if (log != null)
+			{
+				log.appendExclude(fromDay, toDay);
+			}
+		}
+	}
+	
+	public boolean removeExclusion(Date from, Date to)
+	{
+		return include(EpochDay.fromDate(from), EpochDay.fromDate(to));
+	}
+	
+	/*
+	 * Stops excluding the epoch days fromDay to toDay (inclusive) in ownExclusions.
+	 * */
+	boolean include(long fromDay, long toDay)
+	{
+		synchronized (ownExclusions)
+		{
+			if (!ownExclusions.remove(fromDay, toDay))
+			{
+				return false;
+			}
+			
+			EventLog log = this.log;
+			if (log != null)
+			{
+				log.appendInclude(fromDay, toDay);
+			}
+			return true;
+		}
+	}
+	
+	/*
+	 * Excludes the days of a shared ExclusionIndex, such as an org-wide holiday calendar,
+	 * as well. The index is referenced, not copied, so later changes to it are seen by
+	 * this manager at once. Shared indexes are not logged.
+	 * */
+	public void addSharedExclusions(ExclusionIndex shared)
+	{
+		addExclusions(shared);
+	}
+	
+	/*
+	 * Stops excluding the days of a shared ExclusionIndex.
+	 * */
+	public synchronized boolean removeSharedExclusions(ExclusionIndex shared)
+	{
+		ExclusionIndex[] current = this.exclusions;
+		for (int i = 0; i < current.length; i++)
+		{
+			if (current[i] == shared && shared != ownExclusions)
+			{
+				ExclusionIndex[] changed = new ExclusionIndex[current.length - 1];
+				System.arraycopy(current, 0, changed, 0, i);
+				System.arraycopy(current, i + 1, changed, i, current.length - i - 1);
+				this.exclusions = changed;
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/*
+	 * Adds an index to exclusions unless it is there already.
+	 * */
+	private synchronized void addExclusions(ExclusionIndex index)
+	{
+		ExclusionIndex[] current = this.exclusions;
+		for (ExclusionIndex present : current)
+		{
+			if (present == index)
+			{
+				return;
+			}
+		}
 		
-		String yearMonthDayKey = Integer.toString(day.getYear()) + Integer.toString(day.getMonth()) +
-				Integer.toString(day.getDay());
-		daysOfWeek.get(day.getDayOfWeek()-1).put(yearMonthDayKey,day);
+		ExclusionIndex[] changed = Arrays.copyOf(current, current.length + 1);
+		changed[current.length] = index;
+		this.exclusions = changed;
 	}
 	
 	public void addEvent(Event event)
+	{
+		CalendarListener listener = this.listener;
+		if (listener == null)
+		{
+			insertEvent(event);
+			return;
+		}
+		
+		long start = System.nanoTime();
+		insertEvent(event);
+		listener.eventAdded(event, System.nanoTime() - start);
+	}
+	
+	private void insertEvent(Event event)
 	{
 		//Create calendar instance to get year, month, day from event's date.
 		Calendar calInstance = Calendar.getInstance();
 		calInstance.setTime(event.getDate());
 		
-		//Key used in HashMap
-		String yearMonthDayKey = 
-				Integer.toString(calInstance.get(Calendar.YEAR)) + 
-				Integer.toString(calInstance.get(Calendar.MONTH)) + 
-				Integer.toString(calInstance.get(Calendar.DAY_OF_MONTH));
-		
-		Map<String, Day> days = daysOfWeek.get(event.getDayOfWeek()-1);
+		//Key used in SegmentedDayIndex. The weekday bucket comes from the date itself so the
+		//event always lands in the same bucket addDay puts its Day in.
+		long epochDay = EpochDay.fromCalendar(calInstance);
+		int weekday = EpochDay.dayOfWeek(epochDay)-1;
 		
-		//If day exists, add event to it
-		if (days.containsKey(yearMonthDayKey))
+		lockWrite(weekday);
+		try
 		{
-			days.get(yearMonthDayKey).addEventNode(event);
+			Day day = daysOfWeek.get(weekday).get(epochDay);
+			
+			//If day exists, add event to it
+			if (day != null)
+			{
+				day.addEventNode(event);
+			}
+			
+			//Otherwise, create day and event to it then add it to daysOfWeek
+			else
+			{
+				//When creating a new day in this implementation, we set the default as false
+				Day newDay = new Day(calInstance.get(Calendar.YEAR), 
+						calInstance.get(Calendar.MONTH), calInstance.get(Calendar.DAY_OF_MONTH));
+				newDay.addEventNode(event);
+				storeDay(weekday, newDay);
+			}
+			
+			OccurrenceCache cache = this.cache;
+			if (cache != null)
+			{
+				cache.invalidateEvent(weekday, epochDay, event);
+			}
+			
+			//Only the event is logged, replaying it creates the day again the same way
+			EventLog log = this.log;
+			if (log != null)
+			{
+				log.appendEvent(epochDay, event);
+			}
 		}
-		
-		//Otherwise, create day and event to it then add it to daysOfWeek
-		else
+		finally
 		{
-			//When creating a new day in this implementation, we set the default as false
-			Day newDay = new Day(calInstance.get(Calendar.YEAR), 
-					calInstance.get(Calendar.MONTH), calInstance.get(Calendar.DAY_OF_MONTH));
-			newDay.addEventNode(event);
-			this.addDay(newDay);
+			unlockWrite(weekday);
 		}
 	}
 	
-	//Accessors
+	public boolean removeEvent(Event event)
+	{
+		CalendarListener listener = this.listener;
+		if (listener == null)
+		{
+			return deleteEvent(event);
+		}
+		
+		long start = System.nanoTime();
+		boolean removed = deleteEvent(event);
+		listener.eventRemoved(event, removed, System.nanoTime() - start);
+		return removed;
+	}
 	
-	public String getUser()
+	private boolean deleteEvent(Event event)
 	{
-		return this.userName;
+		long epochDay = EpochDay.fromDate(event.getDate());
+		int weekday = EpochDay.dayOfWeek(epochDay)-1;
+		
+		lockWrite(weekday);
+		try
+		{
+			SegmentedDayIndex days = daysOfWeek.get(weekday);
+			Day day = days.get(epochDay);
+			if (day == null || !day.removeEvent(event))
+			{
+				return false;
+			}
+			
+			//An empty day that is not a day off holds nothing a query could see
+			if (day.getEventCount() == 0 && !day.isDayOff())
+			{
+				days.remove(epochDay);
+			}
+			
+			OccurrenceCache cache = this.cache;
+			if (cache != null)
+			{
+				cache.invalidateEvent(weekday, epochDay, event);
+			}
+			
+			EventLog log = this.log;
+			if (log != null)
+			{
+				log.appendRemove(epochDay, event);
+			}
+			return true;
+		}
+		finally
+		{
+			unlockWrite(weekday);
+		}
 	}
 	
-	public int checkOccurrencesDaysOff(MeetingRequest request)
-	{	
-		Event weeklyEvent = request.event;
-		Date startDate = request.startDate;
-		Date endDate = request.endDate;
+	public boolean updateEvent(Event oldEvent, Event newEvent)
+	{
+		CalendarListener listener = this.listener;
+		if (listener == null)
+		{
+			return moveEvent(oldEvent, newEvent);
+		}
 		
-		Map<String, Day> days = daysOfWeek.get(weeklyEvent.getDayOfWeek()-1);// - 1 because array is
-																			// zero index, days aren't
+		long start = System.nanoTime();
+		boolean updated = moveEvent(oldEvent, newEvent);
+		listener.eventUpdated(oldEvent, newEvent, updated, System.nanoTime() - start);
+		return updated;
+	}
+	
+	/*
+	 * Holds the write locks of both weekdays (in weekday order, the same weekday twice is
+	 * fine since the locks are reentrant) so no query sees the event gone and not yet back.
+	 * */
+	private boolean moveEvent(Event oldEvent, Event newEvent)
+	{
+		int oldWeekday = EpochDay.dayOfWeek(EpochDay.fromDate(oldEvent.getDate()))-1;
+		int newWeekday = EpochDay.dayOfWeek(EpochDay.fromDate(newEvent.getDate()))-1;
+		int first = Math.min(oldWeekday, newWeekday);
+		int second = Math.max(oldWeekday, newWeekday);
 		
-		//instance used to "iterate" from start date to end date
-		Calendar calInstance = Calendar.getInstance();
-		calInstance.setTime(startDate);
+		lockWrite(first);
+		lockWrite(second);
+		try
+		{
+			if (!deleteEvent(oldEvent))
+			{
+				return false;
+			}
+			insertEvent(newEvent);
+			return true;
+		}
+		finally
+		{
+			unlockWrite(second);
+			unlockWrite(first);
+		}
+	}
+	
+	/*
+	 * A Stream of events can be passed as stream::iterator. Ends up in the same state as
+	 * calling addEvent for every event.
+	 * */
+	public void bulkAddEvents(Iterable<? extends Event> events)
+	{
+		CalendarListener listener = this.listener;
+		if (listener == null)
+		{
+			loadEvents(events);
+			return;
+		}
 		
-		//Quick while loop used to find the first occurrence of the reocurring weekly
-		//event
-		while(calInstance.get(Calendar.DAY_OF_WEEK) != weeklyEvent.getDayOfWeek())
+		long start = System.nanoTime();
+		int count = loadEvents(events);
+		listener.eventsAdded(count, System.nanoTime() - start);
+	}
+	
+	/*
+	 * Does the work of bulkAddEvents and returns the number of events added.
+	 * */
+	private int loadEvents(Iterable<? extends Event> events)
+	{
+		//Epoch day of every event, converted with one reused Calendar instance
+		ArrayList<Event> all = new ArrayList<Event>();
+		long[] days = new long[1024];
+		long minDay = Long.MAX_VALUE;
+		long maxDay = Long.MIN_VALUE;
+		Calendar calInstance = Calendar.getInstance();
+		for (Event event : events)
 		{
-			calInstance.add(Calendar.DAY_OF_MONTH, 1);
+			calInstance.setTime(event.getDate());
+			long epochDay = EpochDay.fromCalendar(calInstance);
+			if (all.size() == days.length)
+			{
+				days = Arrays.copyOf(days, days.length*2);
+			}
+			days[all.size()] = epochDay;
+			all.add(event);
+			minDay = Math.min(minDay, epochDay);
+			maxDay = Math.max(maxDay, epochDay);
 		}
 		
-		int numMeetings = 0;
+		if (all.isEmpty())
+		{
+			return 0;
+		}
 		
-		//While the start date is before the end date, increment the date by a week.
-		while (calInstance.getTime().before(endDate) || calInstance.getTime().equals(endDate))
-		{	
-			//Key used in HashMap
-			String yearMonthDayKey = 
-					Integer.toString(calInstance.get(Calendar.YEAR)) + 
-					Integer.toString(calInstance.get(Calendar.MONTH)) + 
-					Integer.toString(calInstance.get(Calendar.DAY_OF_MONTH));
-			
-			//If the day exists in HashMap
-			if (days.containsKey(yearMonthDayKey))
+		//Events spread over more than BULK_MAX_DAYS days are simply added one by one
+		if (maxDay - minDay >= BULK_MAX_DAYS)
+		{
+			for (Event event : all)
 			{
-				//checks for overlap/collision of events. If null, there
-				//was not collision and increment numMeetings
-				if (!days.get(yearMonthDayKey).isDayOff())
-				{
-					numMeetings += 1;
-				}
+				insertEvent(event);
 			}
-			
-			//If day does not even exist in HashMap, increment numMeetings
-			else
+			return all.size();
+		}
+		
+		//Counting sort by day, then a stable sort by start minute within each day
+		int range = (int) (maxDay - minDay + 1);
+		int[] offsets = new int[range + 1];
+		for (int i = 0; i < all.size(); i++)
+		{
+			offsets[(int) (days[i] - minDay) + 1] += 1;
+		}
+		for (int d = 0; d < range; d++)
+		{
+			offsets[d + 1] += offsets[d];
+		}
+		
+		Event[] byDay = new Event[all.size()];
+		int[] next = Arrays.copyOf(offsets, range);
+		for (int i = 0; i < all.size(); i++)
+		{
+			byDay[next[(int) (days[i] - minDay)]++] = all.get(i);
+		}
+		
+		List<Event> sorted = Arrays.asList(byDay);
+		for (int d = 0; d < range; d++)
+		{
+			if (offsets[d] < offsets[d + 1])
 			{
-				numMeetings += 1;
+				Arrays.sort(byDay, offsets[d], offsets[d + 1], (a, b) -> Integer.compare(a.getStart(), b.getStart()));
+				addSortedEvents(minDay + d, sorted.subList(offsets[d], offsets[d + 1]));
 			}
-			//Increments by one week.
-			calInstance.add(Calendar.DAY_OF_MONTH, 7);
 		}
-		return numMeetings;
+		return all.size();
 	}
 	
-	public int checkOccurrencesSchedule(MeetingRequest request)
+	/*
+	 * Adds the events of one day, sorted by start minute, the way addEvent adds one.
+	 * */
+	private void addSortedEvents(long epochDay, List<Event> sorted)
 	{
-		Event weeklyEvent = request.event;
-		Date startDate = request.startDate;
-		Date endDate = request.endDate;
+		int weekday = EpochDay.dayOfWeek(epochDay)-1;
 		
-		Map<String, Day> days = daysOfWeek.get(weeklyEvent.getDayOfWeek()-1);// - 1 because array is
-		// zero index, days aren't
-
-		//instance used to "iterate" from start date to end date
-		Calendar calInstance = Calendar.getInstance();
-		calInstance.setTime(startDate);
-
-		//Quick while loop used to find the first occurrence of the reocurring weekly
-		//event
-		while(calInstance.get(Calendar.DAY_OF_WEEK) != weeklyEvent.getDayOfWeek())
+		lockWrite(weekday);
+		try
 		{
-			calInstance.add(Calendar.DAY_OF_MONTH, 1);
-		}
-
-		int numMeetings = 0;
-
-		//While the start date is before the end date, increment the date by a week.
-		while (calInstance.getTime().before(endDate) || calInstance.getTime().equals(endDate))
-		{	
-			//Key used in HashMap
-			String yearMonthDayKey = 
-					Integer.toString(calInstance.get(Calendar.YEAR)) + 
-					Integer.toString(calInstance.get(Calendar.MONTH)) + 
-					Integer.toString(calInstance.get(Calendar.DAY_OF_MONTH));
+			Day day = daysOfWeek.get(weekday).get(epochDay);
+			if (day == null)
+			{
+				int months = EpochDay.monthIndex(epochDay);
+				day = new Day(Math.floorDiv(months, 12), Math.floorMod(months, 12), 
+						(int) (epochDay - EpochDay.firstOfMonth(months)) + 1);
+				day.addEventNodes(sorted);
+				storeDay(weekday, day);
+			}
+			else
+			{
+				day.addEventNodes(sorted);
+			}
 			
-			//If the day exists in HashMap
-			if (days.containsKey(yearMonthDayKey))
+			OccurrenceCache cache = this.cache;
+			EventLog log = this.log;
+			for (Event event : sorted)
 			{
-				//checks for overlap/collision of events. If null, there
-				//was not collision and increment numMeetings
-				if (days.get(yearMonthDayKey).getOverlap(weeklyEvent) == null)
+				if (cache != null)
 				{
-					numMeetings += 1;
+					cache.invalidateEvent(weekday, epochDay, event);
+				}
+				if (log != null)
+				{
+					log.appendEvent(epochDay, event);
 				}
 			}
-			
-			//If day does not even exist in HashMap, increment numMeetings
-			else
+		}
+		finally
+		{
+			unlockWrite(weekday);
+		}
+	}
+	
+	/*
+	 * Makes every day, existing and added later, keep a busy minute bitmap so the
+	 * schedule check is a bitmap test instead of an EventTree walk.
+	 * */
+	public void useBusyMinutes()
+	{
+		busyMinutes = true;
+		for (int weekday = 0; weekday < 7; weekday++)
+		{
+			lockWrite(weekday);
+			try
 			{
-				numMeetings += 1;
+				//Spilled days are prepared when they are read back
+				daysOfWeek.get(weekday).forEachResident(day -> day.useBusyMinutes());
+			}
+			finally
+			{
+				unlockWrite(weekday);
 			}
-			//Increments by one week.
-			calInstance.add(Calendar.DAY_OF_MONTH, 7);
 		}
-		return numMeetings;
+	}
+	
+	/*
+	 * Makes every day, existing and added later, keep its events in a CompactEventTree
+	 * (about 20 bytes per event instead of about 100). Events read back from a day are
+	 * then new Event objects carrying the day's date.
+	 * */
+	public void useCompactStorage()
+	{
+		compactStorage = true;
+		for (int weekday = 0; weekday < 7; weekday++)
+		{
+			lockWrite(weekday);
+			try
+			{
+				daysOfWeek.get(weekday).forEachResident(day -> day.useCompactStorage());
+			}
+			finally
+			{
+				unlockWrite(weekday);
+			}
+		}
+	}
+	
+	/*
+	 * Makes every day, existing and added later, keep its events in an OffHeapEventStore
+	 * in OffHeapArena.SHARED, so large calendars keep their events out of the heap and
+	 * out of the garbage collector's way. Takes precedence over useCompactStorage.
+	 * */
+	public void useOffHeapStorage()
+	{
+		offHeapStorage = true;
+		for (int weekday = 0; weekday < 7; weekday++)
+		{
+			lockWrite(weekday);
+			try
+			{
+				daysOfWeek.get(weekday).forEachResident(day -> day.useOffHeapStorage());
+			}
+			finally
+			{
+				unlockWrite(weekday);
+			}
+		}
+	}
+	
+	/*
+	 * Makes checkOccurrencesSchedule split requests spanning at least this many weeks
+	 * into week chunks that are counted in parallel on the common fork/join pool.
+	 * Shorter requests stay on the calling thread. 0 turns parallel counting off.
+	 * */
+	public void setParallelThreshold(int weeks)
+	{
+		this.parallelThreshold = weeks;
+	}
+	
+	/*
+	 * Caches the results of up to capacity weekly meeting requests (see OccurrenceCache),
+	 * replacing any cache in use. 0 turns caching off. Requests with a RecurrenceRule and
+	 * batches are never cached.
+	 * */
+	public void setCacheCapacity(int capacity)
+	{
+		this.cache = capacity > 0 ? new OccurrenceCache(capacity) : null;
+	}
+	
+	/*
+	 * Returns the cache in use, for its hit/miss/eviction/invalidation counters, or null.
+	 * */
+	public OccurrenceCache getCache()
+	{
+		return this.cache;
+	}
+	
+	/*
+	 * Sets the listener told about every change and query (see CalendarListener), null
+	 * to stop timing them. CalendarMetrics.attach sets one exposing JMX metrics.
+	 * */
+	public void setListener(CalendarListener listener)
+	{
+		this.listener = listener;
+	}
+	
+	public CalendarListener getListener()
+	{
+		return this.listener;
+	}
+	
+	/*
+	 * Opens the EventLog kept in directory, rebuilds this manager from it and logs every
+	 * change from then on. Meant to be called on a new, empty manager. syncEvery is
+	 * passed on to the EventLog (0 never forces the log to disk, N forces it every N records).
+	 * */
+	public void openLog(File directory, int syncEvery) throws IOException
+	{
+		EventLog opened = new EventLog(directory, syncEvery);
+		
+		//The log is not attached yet, so replayed days and events are not logged again
+		opened.recover(this);
+		this.log = opened;
+	}
+	
+	/*
+	 * Writes every stored day to a new snapshot so the log can start over empty. Changes
+	 * wait until the snapshot is written, queries do not.
+	 * */
+	public void snapshot() throws IOException
+	{
+		EventLog log = this.log;
+		if (log == null)
+		{
+			throw new IllegalStateException("no log is open");
+		}
+		
+		for (int weekday = 0; weekday < 7; weekday++)
+		{
+			lockRead(weekday);
+		}
+		try
+		{
+			ArrayList<Day> days = new ArrayList<Day>();
+			for (int weekday = 0; weekday < 7; weekday++)
+			{
+				daysOfWeek.get(weekday).forEach(day -> days.add(day));
+			}
+			//No range can be excluded between reading them and starting the new log
+			synchronized (ownExclusions)
+			{
+				log.snapshot(days, ownExclusions.getRanges());
+			}
+		}
+		finally
+		{
+			for (int weekday = 6; weekday >= 0; weekday--)
+			{
+				unlockRead(weekday);
+			}
+		}
+	}
+	
+	/*
+	 * Forces the log to disk and closes it. Changes made afterwards are not logged.
+	 * */
+	public void closeLog() throws IOException
+	{
+		EventLog log = this.log;
+		if (log != null)
+		{
+			this.log = null;
+			log.close();
+		}
+	}
+	
+	/*
+	 * Drops the days of every year segment (see SegmentedDayIndex) that ends before date,
+	 * so queries over those weeks see neither events nor days off any more. The segment
+	 * holding date is kept whole. Returns the number of days dropped. Dropping is not
+	 * logged: recovering from an open log brings the days back until the next snapshot.
+	 * */
+	public int evictBefore(Date date)
+	{
+		long epochDay = EpochDay.fromDate(date);
+		long firstWeek = Math.floorDiv(SegmentedDayIndex.segmentStart(epochDay), 7);
+		
+		int evicted = 0;
+		for (int weekday = 0; weekday < 7; weekday++)
+		{
+			lockWrite(weekday);
+			try
+			{
+				int dropped = daysOfWeek.get(weekday).evictBefore(epochDay);
+				daysOffOfWeek.get(weekday).clearBefore(firstWeek);
+				
+				//Cleared while the weekday is locked so no count from before can be put back
+				OccurrenceCache cache = this.cache;
+				if (dropped > 0 && cache != null)
+				{
+					cache.clear();
+				}
+				evicted += dropped;
+			}
+			finally
+			{
+				unlockWrite(weekday);
+			}
+		}
+		return evicted;
+	}
+	
+	/*
+	 * Writes the days of every year segment that ends before date to files in directory
+	 * and frees them. A spilled segment is read back the first time a query or change
+	 * needs one of its days, so every count stays the same. Days off are still counted
+	 * from the week bits without reading anything. Returns the number of days spilled.
+	 * */
+	public int spillBefore(Date date, File directory) throws IOException
+	{
+		if (!directory.isDirectory() && !directory.mkdirs())
+		{
+			throw new IOException("cannot create " + directory);
+		}
+		
+		long epochDay = EpochDay.fromDate(date);
+		int spilled = 0;
+		for (int weekday = 0; weekday < 7; weekday++)
+		{
+			lockWrite(weekday);
+			try
+			{
+				spilled += daysOfWeek.get(weekday).spillBefore(epochDay, directory, "weekday" + (weekday + 1));
+			}
+			finally
+			{
+				unlockWrite(weekday);
+			}
+		}
+		return spilled;
+	}
+	
+	/*
+	 * Stores a day in its weekday bucket (zero index). The caller holds the write lock.
+	 * */
+	private void storeDay(int weekday, Day day)
+	{
+		prepareDay(day);
+		
+		//The key for a day is its epoch day (days since January 1st, 1970).
+		daysOfWeek.get(weekday).put(day.getEpochDay(), day);
+		
+		//A day replaces whatever was stored for its date, including a day off
+		daysOffOfWeek.get(weekday).set(Math.floorDiv(day.getEpochDay(), 7), day.isDayOff());
+	}
+	
+	/*
+	 * Applies useBusyMinutes, useOffHeapStorage and useCompactStorage to a day being stored
+	 * or read back from a spilled segment.
+	 * */
+	private void prepareDay(Day day)
+	{
+		if (busyMinutes)
+		{
+			day.useBusyMinutes();
+		}
+		if (offHeapStorage)
+		{
+			day.useOffHeapStorage();
+		}
+		if (compactStorage)
+		{
+			day.useCompactStorage();
+		}
+	}
+	
+	/*
+	 * Lock helpers for a weekday (zero index). They do nothing unless the manager was
+	 * created in concurrent mode.
+	 * */
+	private void lockRead(int weekday)
+	{
+		if (locks != null)
+		{
+			locks[weekday].readLock().lock();
+		}
+	}
+	
+	private void unlockRead(int weekday)
+	{
+		if (locks != null)
+		{
+			locks[weekday].readLock().unlock();
+		}
+	}
+	
+	private void lockWrite(int weekday)
+	{
+		if (locks != null)
+		{
+			locks[weekday].writeLock().lock();
+		}
+	}
+	
+	private void unlockWrite(int weekday)
+	{
+		if (locks != null)
+		{
+			locks[weekday].writeLock().unlock();
+		}
+	}
+	
+	//Accessors
+	
+	public String getUser()
+	{
+		return this.userName;
+	}
+	
+	/*
+	 * The index addExclusion adds to. Change it through the manager so the changes are
+	 * logged.
+	 * */
+	public ExclusionIndex getExclusions()
+	{
+		return this.ownExclusions;
+	}
+	
+	/*
+	 * Every index checkOccurrencesDaysOff counts, the own one (once used) first. The
+	 * array is never changed, a change to the indexes replaces it.
+	 * */
+	ExclusionIndex[] getExclusionIndexes()
+	{
+		return this.exclusions;
+	}
+	
+	/*
+	 * Performs an action for every stored day, one weekday after the other under that
+	 * weekday's read lock. The action must not change the manager. Spilled days are
+	 * read back from disk for the call (see spillBefore).
+	 * */
+	public void forEachDay(Consumer<Day> action)
+	{
+		for (int weekday = 0; weekday < 7; weekday++)
+		{
+			lockRead(weekday);
+			try
+			{
+				daysOfWeek.get(weekday).forEach(action);
+			}
+			finally
+			{
+				unlockRead(weekday);
+			}
+		}
+	}
+	
+	/*
+	 * Same as forEachDay for the days held in memory only, spilled days are left on disk.
+	 * */
+	public void forEachResidentDay(Consumer<Day> action)
+	{
+		for (int weekday = 0; weekday < 7; weekday++)
+		{
+			lockRead(weekday);
+			try
+			{
+				daysOfWeek.get(weekday).forEachResident(action);
+			}
+			finally
+			{
+				unlockRead(weekday);
+			}
+		}
+	}
+	
+	/*
+	 * Number of stored days, in memory or spilled, on a weekday (1-7, Sunday is 1).
+	 * */
+	public int getDayCount(int dayOfWeek)
+	{
+		int weekday = dayOfWeek-1;
+		lockRead(weekday);
+		try
+		{
+			return daysOfWeek.get(weekday).size();
+		}
+		finally
+		{
+			unlockRead(weekday);
+		}
+	}
+	
+	public List<int[]> getBusySpans(int dayOfWeek, Date startDate, Date endDate)
+	{
+		int weekday = dayOfWeek-1;
+		long firstDay = EpochDay.nextOrSame(EpochDay.fromDate(startDate), dayOfWeek);
+		long lastDay = EpochDay.lastDay(startDate, endDate);
+		
+		List<int[]> busy = new ArrayList<int[]>();
+		lockRead(weekday);
+		try
+		{
+			SegmentedDayIndex days = daysOfWeek.get(weekday);
+			for (long epochDay = firstDay; epochDay <= lastDay; epochDay += 7)
+			{
+				Day day = days.get(epochDay);
+				if (day == null)
+				{
+					continue;
+				}
+				
+				//The spans are copied so they stay valid once the lock is released
+				int[] spans = new int[16];
+				int length = 0;
+				for (Event event : day.getEvents())
+				{
+					if (length == spans.length)
+					{
+						spans = Arrays.copyOf(spans, length*2);
+					}
+					spans[length] = event.getStart();
+					spans[length + 1] = event.getEnd();
+					length += 2;
+				}
+				if (length > 0)
+				{
+					busy.add(Arrays.copyOf(spans, length));
+				}
+			}
+		}
+		finally
+		{
+			unlockRead(weekday);
+		}
+		return busy;
+	}
+	
+	public int checkOccurrencesDaysOff(MeetingRequest request)
+	{
+		CalendarListener listener = this.listener;
+		if (listener == null)
+		{
+			return countDaysOff(request);
+		}
+		
+		long start = System.nanoTime();
+		int numMeetings = countDaysOff(request);
+		listener.daysOffChecked(request, numMeetings, System.nanoTime() - start);
+		return numMeetings;
+	}
+	
+	private int countDaysOff(MeetingRequest request)
+	{
+		if (request.rule != null)
+		{
+			return checkOccurrencesRule(request, false);
+		}
+		
+		int weekday = request.event.getDayOfWeek()-1;// - 1 because array is
+													// zero index, days aren't
+		
+		//First and last occurrence of the reoccurring weekly event within the request
+		long firstDay = firstOccurrence(request);
+		long lastDay = lastOccurrence(request);
+		
+		if (lastDay < firstDay)
+		{
+			return 0;
+		}
+		
+		//Occurrences are one week apart so they are a contiguous run of week bits. Every week
+		//in the range is a meeting unless its bit marks a day off.
+		long firstWeek = Math.floorDiv(firstDay, 7);
+		long lastWeek = Math.floorDiv(lastDay, 7);
+		
+		OccurrenceCache cache = this.cache;
+		
+		lockRead(weekday);
+		try
+		{
+			//The meeting time does not matter for days off, every request with the same
+			//occurrences shares one entry
+			int numMeetings = cache == null ? -1 : cache.get(OccurrenceCache.DAYS_OFF, weekday, 0, 0, firstDay, lastDay);
+			if (numMeetings < 0)
+			{
+				numMeetings = (int) (lastWeek - firstWeek + 1) - daysOffOfWeek.get(weekday).count(firstWeek, lastWeek);
+				if (cache != null)
+				{
+					cache.put(OccurrenceCache.DAYS_OFF, weekday, 0, 0, firstDay, lastDay, numMeetings);
+				}
+			}
+			
+			//Excluded ranges are counted afresh every time: a shared index changes without
+			//this manager knowing, and counting them is a binary search per index plus a
+			//division per range. Weeks already counted as days off are left out.
+			ExclusionIndex[] exclusions = this.exclusions;
+			if (exclusions.length > 0)
+			{
+				numMeetings -= ExclusionIndex.countOccurrences(exclusions, firstDay, lastDay, daysOffOfWeek.get(weekday));
+			}
+			return numMeetings;
+		}
+		finally
+		{
+			unlockRead(weekday);
+		}
+	}
+	
+	public int checkOccurrencesSchedule(MeetingRequest request)
+	{
+		CalendarListener listener = this.listener;
+		if (listener == null)
+		{
+			return countSchedule(request);
+		}
+		
+		long start = System.nanoTime();
+		int numMeetings = countSchedule(request);
+		listener.scheduleChecked(request, numMeetings, System.nanoTime() - start);
+		return numMeetings;
+	}
+	
+	private int countSchedule(MeetingRequest request)
+	{
+		if (request.rule != null)
+		{
+			return checkOccurrencesRule(request, true);
+		}
+		
+		OccurrenceCache cache = this.cache;
+		if (cache == null)
+		{
+			return countWeekly(request);
+		}
+		
+		int weekday = request.event.getDayOfWeek()-1;
+		int start = request.event.getStart();
+		int end = request.event.getEnd();
+		long firstDay = firstOccurrence(request);
+		long lastDay = lastOccurrence(request);
+		
+		//Held while counting and caching so no change to the weekday can come in between
+		lockRead(weekday);
+		try
+		{
+			int numMeetings = cache.get(OccurrenceCache.SCHEDULE, weekday, start, end, firstDay, lastDay);
+			if (numMeetings < 0)
+			{
+				numMeetings = countWeekly(request);
+				cache.put(OccurrenceCache.SCHEDULE, weekday, start, end, firstDay, lastDay, numMeetings);
+			}
+			return numMeetings;
+		}
+		finally
+		{
+			unlockRead(weekday);
+		}
+	}
+	
+	/*
+	 * Counts the meetings of a weekly request by walking its weeks. The request's dates
+	 * are converted to epoch days once, the walk itself only adds 7 to an epoch day and
+	 * allocates nothing.
+	 * */
+	private int countWeekly(MeetingRequest request)
+	{
+		Event weeklyEvent = request.event;
+		int start = weeklyEvent.getStart();
+		int end = weeklyEvent.getEnd();
+		
+		int weekday = weeklyEvent.getDayOfWeek()-1;// - 1 because array is
+													// zero index, days aren't
+		SegmentedDayIndex days = daysOfWeek.get(weekday);
+		
+		//First and last occurrence of the reoccurring weekly event within the request,
+		//the same days the old Calendar walk from startDate to endDate visited
+		long firstDay = firstOccurrence(request);
+		long lastDay = lastOccurrence(request);
+		if (lastDay < firstDay)
+		{
+			return 0;
+		}
+		
+		//Long requests are counted in week chunks on the fork/join pool
+		if (parallelThreshold > 0 && (lastDay - firstDay)/7 + 1 >= parallelThreshold)
+		{
+			return checkOccurrencesParallel(weekday, weeklyEvent, firstDay, (int) ((lastDay - firstDay)/7 + 1));
+		}
+
+		int numMeetings = 0;
+
+		lockRead(weekday);
+		try
+		{
+			//One year segment at a time, every week of a segment without days is a meeting
+			long epochDay = firstDay;
+			while (epochDay <= lastDay)
+			{
+				long segmentLast = Math.min(lastDay, 
+						SegmentedDayIndex.segmentStart(epochDay) + SegmentedDayIndex.SEGMENT_DAYS - 1);
+				DayIndex segment = days.segmentAt(epochDay);
+				if (segment == null)
+				{
+					long weeks = (segmentLast - epochDay)/7 + 1;
+					numMeetings += (int) weeks;
+					epochDay += 7*weeks;
+					continue;
+				}
+				
+				//Increments by one week.
+				for (; epochDay <= segmentLast; epochDay += 7)
+				{	
+					Day day = segment.get(epochDay);
+					
+					//If day does not exist in DayIndex or has no overlap/collision with
+					//the event, increment numMeetings
+					if (day == null || !day.hasOverlap(start, end))
+					{
+						numMeetings += 1;
+					}
+				}
+			}
+		}
+		finally
+		{
+			unlockRead(weekday);
+		}
+		return numMeetings;
+	}
+	
+	public int[] checkOccurrencesSchedule(List<MeetingRequest> requests)
+	{
+		CalendarListener listener = this.listener;
+		if (listener == null || requests.isEmpty())
+		{
+			return countSchedules(requests);
+		}
+		
+		long start = System.nanoTime();
+		int[] numMeetings = countSchedules(requests);
+		long nanos = (System.nanoTime() - start)/requests.size();
+		for (int i = 0; i < numMeetings.length; i++)
+		{
+			listener.scheduleChecked(requests.get(i), numMeetings[i], nanos);
+		}
+		return numMeetings;
+	}
+	
+	private int[] countSchedules(List<MeetingRequest> requests)
+	{
+		int[] numMeetings = new int[requests.size()];
+		long[] firstDays = new long[requests.size()];
+		long[] lastDays = new long[requests.size()];
+		
+		//Requests grouped by weekday (zero index), dates converted once per request
+		ArrayList<ArrayList<Integer> > byWeekday = new ArrayList<ArrayList<Integer> >(7);
+		for (int i = 0; i < 7; i++)
+		{
+			byWeekday.add(new ArrayList<Integer>());
+		}
+		for (int i = 0; i < requests.size(); i++)
+		{
+			MeetingRequest request = requests.get(i);
+			
+			//Occurrences of a rule are spread over every weekday, they are not swept
+			if (request.rule != null)
+			{
+				numMeetings[i] = checkOccurrencesRule(request, true);
+				continue;
+			}
+			
+			firstDays[i] = firstOccurrence(request);
+			lastDays[i] = lastOccurrence(request);
+			if (firstDays[i] <= lastDays[i])
+			{
+				byWeekday.get(request.event.getDayOfWeek()-1).add(i);
+			}
+		}
+		
+		for (int weekday = 0; weekday < 7; weekday++)
+		{
+			ArrayList<Integer> group = byWeekday.get(weekday);
+			if (group.isEmpty())
+			{
+				continue;
+			}
+			
+			//Sorted by first occurrence so the sweep over the days never moves back
+			group.sort((a, b) -> Long.compare(firstDays[a], firstDays[b]));
+			
+			long groupFirst = firstDays[group.get(0)];
+			long groupLast = Long.MIN_VALUE;
+			for (int i : group)
+			{
+				groupLast = Math.max(groupLast, lastDays[i]);
+			}
+			
+			//Only the days that are actually stored can conflict, every other week
+			//in a request's range is a meeting
+			lockRead(weekday);
+			try
+			{
+				Day[] days = daysOfWeek.get(weekday).daysBetween(groupFirst, groupLast);
+				int firstCandidate = 0;
+			
+				for (int i : group)
+				{
+					Event weeklyEvent = requests.get(i).event;
+				
+					while (firstCandidate < days.length && days[firstCandidate].getEpochDay() < firstDays[i])
+					{
+						firstCandidate += 1;
+					}
+				
+					int conflicts = 0;
+					for (int j = firstCandidate; j < days.length && days[j].getEpochDay() <= lastDays[i]; j++)
+					{
+						if (days[j].hasOverlap(weeklyEvent))
+						{
+							conflicts += 1;
+						}
+					}
+					numMeetings[i] = (int) ((lastDays[i] - firstDays[i])/7 + 1) - conflicts;
+				}
+			}
+			finally
+			{
+				unlockRead(weekday);
+			}
+		}
+		return numMeetings;
+	}
+	
+	public Iterator<Conflict> conflicts(MeetingRequest request)
+	{
+		return new ConflictIterator(request, Integer.MAX_VALUE);
+	}
+	
+	public List<Conflict> firstConflicts(MeetingRequest request, int k)
+	{
+		ArrayList<Conflict> first = new ArrayList<Conflict>(Math.min(k, 16));
+		Iterator<Conflict> conflicts = new ConflictIterator(request, k);
+		while (conflicts.hasNext())
+		{
+			first.add(conflicts.next());
+		}
+		return first;
+	}
+	
+	/*
+	 * Iterator behind conflicts. It walks the occurrences of a request and, under the
+	 * read lock of an occurrence's weekday, takes the overlaps of that day (at most as many
+	 * as are still wanted) from the day's EventTree. So nothing is held between calls,
+	 * and the work done is proportional to the occurrences walked and conflicts returned.
+	 * */
+	private class ConflictIterator implements Iterator<Conflict>
+	{
+		private int start;
+		private int end;
+		private int weekday;
+		
+		//occurrences of a rule, null for a weekly request
+		private RecurrenceRule.OccurrenceIterator occurrences;
+		
+		//next and last occurrence of a weekly request
+		private long nextDay;
+		private long lastDay;
+		
+		//conflicts found on the last day visited and not returned yet
+		private ArrayDeque<Conflict> found;
+		
+		//conflicts that may still be returned
+		private int remaining;
+		
+		//whether every occurrence was visited
+		private boolean done;
+		
+		public ConflictIterator(MeetingRequest request, int limit)
+		{
+			this.start = request.event.getStart();
+			this.end = request.event.getEnd();
+			this.weekday = request.event.getDayOfWeek()-1;
+			this.found = new ArrayDeque<Conflict>();
+			this.remaining = limit;
+			this.done = false;
+			
+			if (request.rule != null)
+			{
+				this.occurrences = request.rule.occurrences(EpochDay.fromDate(request.startDate), 
+						EpochDay.lastDay(request.startDate, request.endDate));
+			}
+			else
+			{
+				this.nextDay = firstOccurrence(request);
+				this.lastDay = lastOccurrence(request);
+			}
+		}
+		
+		public boolean hasNext()
+		{
+			while (found.isEmpty() && remaining > 0 && !done)
+			{
+				done = occurrences != null ? !nextRuleDay() : !nextWeeklyDay();
+			}
+			return !found.isEmpty();
+		}
+		
+		public Conflict next()
+		{
+			if (!hasNext())
+			{
+				throw new NoSuchElementException();
+			}
+			remaining -= 1;
+			return found.poll();
+		}
+		
+		/*
+		 * Walks the weeks until a day with conflicts, skipping year segments without days.
+		 * Returns false once the last occurrence was visited.
+		 * */
+		private boolean nextWeeklyDay()
+		{
+			SegmentedDayIndex days = daysOfWeek.get(weekday);
+			
+			lockRead(weekday);
+			try
+			{
+				while (found.isEmpty() && nextDay <= lastDay)
+				{
+					DayIndex segment = days.segmentAt(nextDay);
+					if (segment == null)
+					{
+						long segmentLast = Math.min(lastDay, 
+								SegmentedDayIndex.segmentStart(nextDay) + SegmentedDayIndex.SEGMENT_DAYS - 1);
+						nextDay += 7*((segmentLast - nextDay)/7 + 1);
+						continue;
+					}
+					
+					Day day = segment.get(nextDay);
+					nextDay += 7;
+					if (day != null)
+					{
+						collect(day);
+					}
+				}
+			}
+			finally
+			{
+				unlockRead(weekday);
+			}
+			return nextDay <= lastDay;
+		}
+		
+		/*
+		 * Visits the next occurrence of a rule. Returns false if there is none.
+		 * */
+		private boolean nextRuleDay()
+		{
+			if (!occurrences.hasNext())
+			{
+				return false;
+			}
+			
+			long epochDay = occurrences.nextDay();
+			int weekday = EpochDay.dayOfWeek(epochDay)-1;
+			
+			lockRead(weekday);
+			try
+			{
+				Day day = daysOfWeek.get(weekday).get(epochDay);
+				if (day != null)
+				{
+					collect(day);
+				}
+			}
+			finally
+			{
+				unlockRead(weekday);
+			}
+			return true;
+		}
+		
+		private void collect(Day day)
+		{
+			Iterator<Event> overlaps = day.getOverlaps(start, end);
+			while (found.size() < remaining && overlaps.hasNext())
+			{
+				found.add(new Conflict(day.getEpochDay(), day.getDate(), overlaps.next()));
+			}
+		}
+	}
+	
+	/*
+	 * Counts the meetings of a request that carries a RecurrenceRule by visiting each of
+	 * its occurrences in the weekday bucket of that occurrence. Occurrences conflict with
+	 * events (schedule) or with days off and excluded days (!schedule).
+	 * */
+	private int checkOccurrencesRule(MeetingRequest request, boolean schedule)
+	{
+		ExclusionIndex[] exclusions = this.exclusions;
+		RecurrenceRule.OccurrenceIterator occurrences = request.rule.occurrences(
+				EpochDay.fromDate(request.startDate), EpochDay.lastDay(request.startDate, request.endDate));
+		
+		int numMeetings = 0;
+		while (occurrences.hasNext())
+		{
+			long epochDay = occurrences.nextDay();
+			int weekday = EpochDay.dayOfWeek(epochDay)-1;
+			
+			lockRead(weekday);
+			try
+			{
+				boolean conflict;
+				if (schedule)
+				{
+					Day day = daysOfWeek.get(weekday).get(epochDay);
+					conflict = day != null && day.hasOverlap(request.event);
+				}
+				else
+				{
+					conflict = daysOffOfWeek.get(weekday).get(Math.floorDiv(epochDay, 7));
+					for (int i = 0; i < exclusions.length && !conflict; i++)
+					{
+						conflict = exclusions[i].contains(epochDay);
+					}
+				}
+				
+				if (!conflict)
+				{
+					numMeetings += 1;
+				}
+			}
+			finally
+			{
+				unlockRead(weekday);
+			}
+		}
+		return numMeetings;
+	}
+	
+	/*
+	 * Parallel version of the checkOccurrencesSchedule walk over the given number of weeks
+	 * starting at firstDay. The read lock held by the calling thread keeps writers out
+	 * while the pool's threads read the days.
+	 * */
+	private int checkOccurrencesParallel(int weekday, Event weeklyEvent, long firstDay, int weeks)
+	{
+		lockRead(weekday);
+		try
+		{
+			return ForkJoinPool.commonPool().invoke(
+					new WeeklyCountTask(daysOfWeek.get(weekday), weeklyEvent, firstDay, 0, weeks));
+		}
+		finally
+		{
+			unlockRead(weekday);
+		}
+	}
+	
+	/*
+	 * Counts the meetings of a weekly event for the weeks from (inclusive) to to
+	 * (exclusive) after firstDay. Splits the weeks in half until a chunk is small enough
+	 * to be counted directly.
+	 * */
+	private static class WeeklyCountTask extends RecursiveTask<Integer>
+	{
+		private static final long serialVersionUID = 1L;
+		
+		//chunks of at most this many weeks are not split any further
+		private static final int CHUNK_WEEKS = 64;
+		
+		private SegmentedDayIndex days;
+		private Event weeklyEvent;
+		private long firstDay;
+		private int from;
+		private int to;
+		
+		public WeeklyCountTask(SegmentedDayIndex days, Event weeklyEvent, long firstDay, int from, int to)
+		{
+			this.days = days;
+			this.weeklyEvent = weeklyEvent;
+			this.firstDay = firstDay;
+			this.from = from;
+			this.to = to;
+		}
+		
+		protected Integer compute()
+		{
+			if (to - from <= CHUNK_WEEKS)
+			{
+				int numMeetings = 0;
+				for (int week = from; week < to; week++)
+				{
+					Day day = days.get(firstDay + 7L*week);
+					if (day == null || !day.hasOverlap(weeklyEvent))
+					{
+						numMeetings += 1;
+					}
+				}
+				return numMeetings;
+			}
+			
+			int middle = (from + to) >>> 1;
+			WeeklyCountTask left = new WeeklyCountTask(days, weeklyEvent, firstDay, from, middle);
+			left.fork();
+			int right = new WeeklyCountTask(days, weeklyEvent, firstDay, middle, to).compute();
+			return right + left.join();
+		}
+	}
+	
+	/*
+	 * Epoch day of the first occurrence of a request's weekly meeting.
+	 * */
+	private static long firstOccurrence(MeetingRequest request)
+	{
+		return EpochDay.nextOrSame(EpochDay.fromDate(request.startDate), request.event.getDayOfWeek());
+	}
+	
+	/*
+	 * Epoch day of the last occurrence of a request's weekly meeting. Is before
+	 * firstOccurrence when the request holds no meeting at all.
+	 * */
+	private static long lastOccurrence(MeetingRequest request)
+	{
+		return EpochDay.previousOrSame(EpochDay.lastDay(request.startDate, request.endDate), 
+				request.event.getDayOfWeek());
 	}
 }
@@ -0,0 +1,414 @@
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+/*
+ * CalendarMetrics
+ *
+ * Counters and latency histograms for the operations of a CalendarManager, plus the shape
+ * of its calendar (days per weekday, EventTree heights and sizes of the days in memory,
+ * so spilled days are never read back from disk for it). It is a CalendarListener,
+ * so it only costs something once set on a manager; a manager without a listener only
+ * checks a field for null. Everything can be read through JMX (see CalendarMetricsMBean)
+ * once register() was called, for example with jconsole:
+ *
+ *		CalendarMetrics metrics = CalendarMetrics.attach(manager);
+ *		metrics.register();
+ *
+ * Recording is lock free (LongAdder), so it scales with the threads of a concurrent mode
+ * manager.
+ *
+ * */
+
+public class CalendarMetrics implements CalendarListener, CalendarMetricsMBean {
+
+	/*
+	 * ------private members------
+	 *
+	 * (manager, CalendarManager):
+	 * manager the calendar shape is read from.
+	 *
+	 * (addEvent, bulkAddEvents, removeEvent, updateEvent, addDay, addDayOff, schedule,
+	 * daysOff, Histogram):
+	 * latency histogram of each operation.
+	 *
+	 * (bulkEvents, LongAdder):
+	 * number of events added by bulkAddEvents.
+	 *
+	 * (objectName, ObjectName):
+	 * name the metrics are registered under with JMX, null if they are not.
+	 *
+	 * */
+
+	private CalendarManager manager;
+	private Histogram addEvent;
+	private Histogram bulkAddEvents;
+	private Histogram removeEvent;
+	private Histogram updateEvent;
+	private Histogram addDay;
+	private Histogram addDayOff;
+	private Histogram schedule;
+	private Histogram daysOff;
+	private LongAdder bulkEvents;
+	private ObjectName objectName;
+
+	/*
+	 * Constructor for CalendarMetrics. The metrics only record anything once they are
+	 * set as the manager's listener (see attach).
+	 *
+	 * */
+	public CalendarMetrics(CalendarManager manager)
+	{
+		this.manager = manager;
+		this.addEvent = new Histogram();
+		this.bulkAddEvents = new Histogram();
+		this.removeEvent = new Histogram();
+		this.updateEvent = new Histogram();
+		this.addDay = new Histogram();
+		this.addDayOff = new Histogram();
+		this.schedule = new Histogram();
+		this.daysOff = new Histogram();
+		this.bulkEvents = new LongAdder();
+		this.objectName = null;
+	}
+
+	/*
+	 * Creates metrics for a manager and sets them as its listener.
+	 * */
+	public static CalendarMetrics attach(CalendarManager manager)
+	{
+		CalendarMetrics metrics = new CalendarMetrics(manager);
+		manager.setListener(metrics);
+		return metrics;
+	}
+
+	/*
+	 * Registers the metrics with the platform MBean server as
+	 * Calendar:type=CalendarMetrics,user=<user of the manager>.
+	 * */
+	public synchronized ObjectName register() throws JMException
+	{
+		if (objectName == null)
+		{
+			ObjectName name = new ObjectName("Calendar:type=CalendarMetrics,user="
+					+ ObjectName.quote(String.valueOf(manager.getUser())));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+			objectName = name;
+		}
+		return objectName;
+	}
+
+	public synchronized void unregister() throws JMException
+	{
+		if (objectName != null)
+		{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			objectName = null;
+		}
+	}
+
+	//CalendarListener
+
+	public void eventAdded(Event event, long nanos)
+	{
+		addEvent.record(nanos);
+	}
+
+	public void eventsAdded(int count, long nanos)
+	{
+		bulkAddEvents.record(nanos);
+		bulkEvents.add(count);
+	}
+
+	public void eventRemoved(Event event, boolean removed, long nanos)
+	{
+		removeEvent.record(nanos);
+	}
+
+	public void eventUpdated(Event oldEvent, Event newEvent, boolean updated, long nanos)
+	{
+		updateEvent.record(nanos);
+	}
+
+	public void dayAdded(Day day, long nanos)
+	{
+		(day.isDayOff() ? addDayOff : addDay).record(nanos);
+	}
+
+	public void scheduleChecked(MeetingRequest request, int numMeetings, long nanos)
+	{
+		schedule.record(nanos);
+	}
+
+	public void daysOffChecked(MeetingRequest request, int numMeetings, long nanos)
+	{
+		daysOff.record(nanos);
+	}
+
+	//Counters
+
+	/*
+	 * Events added by addEvent and by bulkAddEvents.
+	 * */
+	public long getAddEventCount()
+	{
+		return addEvent.count() + bulkEvents.sum();
+	}
+
+	/*
+	 * Calls of removeEvent and updateEvent, including those that found no event. An
+	 * update removes the old event, so it is counted here as well as by
+	 * getUpdateEventCount.
+	 * */
+	public long getRemoveEventCount()
+	{
+		return removeEvent.count() + updateEvent.count();
+	}
+
+	public long getUpdateEventCount()
+	{
+		return updateEvent.count();
+	}
+
+	public long getAddDayCount()
+	{
+		return addDay.count();
+	}
+
+	public long getAddDayOffCount()
+	{
+		return addDayOff.count();
+	}
+
+	public long getScheduleQueryCount()
+	{
+		return schedule.count();
+	}
+
+	public long getDaysOffQueryCount()
+	{
+		return daysOff.count();
+	}
+
+	//Latencies
+
+	public double getAddEventP99Micros()
+	{
+		return addEvent.percentile(99);
+	}
+
+	public double getAddDayP99Micros()
+	{
+		return addDay.percentile(99);
+	}
+
+	public double getAddDayOffP99Micros()
+	{
+		return addDayOff.percentile(99);
+	}
+
+	public double getScheduleQueryP99Micros()
+	{
+		return schedule.percentile(99);
+	}
+
+	public double getDaysOffQueryP99Micros()
+	{
+		return daysOff.percentile(99);
+	}
+
+	public double getMeanMicros(String operation)
+	{
+		return histogram(operation).mean();
+	}
+
+	public double getPercentileMicros(String operation, double percentile)
+	{
+		return histogram(operation).percentile(percentile);
+	}
+
+	public long[] getLatencyHistogram(String operation)
+	{
+		return histogram(operation).buckets();
+	}
+
+	private Histogram histogram(String operation)
+	{
+		switch (operation)
+		{
+			case "addEvent":
+				return addEvent;
+			case "bulkAddEvents":
+				return bulkAddEvents;
+			case "removeEvent":
+				return removeEvent;
+			case "updateEvent":
+				return updateEvent;
+			case "addDay":
+				return addDay;
+			case "addDayOff":
+				return addDayOff;
+			case "checkOccurrencesSchedule":
+				return schedule;
+			case "checkOccurrencesDaysOff":
+				return daysOff;
+			default:
+				throw new IllegalArgumentException("unknown operation: " + operation);
+		}
+	}
+
+	//Calendar shape
+
+	public int[] getDaysPerWeekday()
+	{
+		int[] days = new int[7];
+		for (int dayOfWeek = 1; dayOfWeek <= 7; dayOfWeek++)
+		{
+			days[dayOfWeek-1] = manager.getDayCount(dayOfWeek);
+		}
+		return days;
+	}
+
+	/*
+	 * The histograms only visit the days held in memory. Spilled days would have to be
+	 * read back from disk on every poll, holding a weekday's read lock for the I/O.
+	 * */
+	public long[] getTreeHeightHistogram()
+	{
+		long[] heights = new long[64];
+		int[] max = {0};
+		manager.forEachResidentDay(day ->
+		{
+			int height = day.getTreeHeight();
+			heights[height] += 1;
+			max[0] = Math.max(max[0], height);
+		});
+		return Arrays.copyOf(heights, max[0] + 1);
+	}
+
+	public long[] getTreeSizeHistogram()
+	{
+		long[] sizes = new long[33];
+		int[] max = {0};
+		manager.forEachResidentDay(day ->
+		{
+			int bucket = 32 - Integer.numberOfLeadingZeros(day.getEventCount());
+			sizes[bucket] += 1;
+			max[0] = Math.max(max[0], bucket);
+		});
+		return Arrays.copyOf(sizes, max[0] + 1);
+	}
+
+	public int getMaxTreeHeight()
+	{
+		return getTreeHeightHistogram().length - 1;
+	}
+
+	public void reset()
+	{
+		addEvent.reset();
+		bulkAddEvents.reset();
+		removeEvent.reset();
+		updateEvent.reset();
+		addDay.reset();
+		addDayOff.reset();
+		schedule.reset();
+		daysOff.reset();
+		bulkEvents.reset();
+	}
+
+	/*
+	 * Latency histogram with one bucket per power of two nanoseconds.
+	 * */
+	private static class Histogram
+	{
+		private LongAdder[] buckets;
+		private LongAdder totalNanos;
+
+		Histogram()
+		{
+			buckets = new LongAdder[64];
+			for (int i = 0; i < buckets.length; i++)
+			{
+				buckets[i] = new LongAdder();
+			}
+			totalNanos = new LongAdder();
+		}
+
+		void record(long nanos)
+		{
+			buckets[63 - Long.numberOfLeadingZeros(Math.max(1, nanos))].increment();
+			totalNanos.add(nanos);
+		}
+
+		long[] buckets()
+		{
+			long[] counts = new long[buckets.length];
+			int used = 0;
+			for (int i = 0; i < buckets.length; i++)
+			{
+				counts[i] = buckets[i].sum();
+				if (counts[i] != 0)
+				{
+					used = i + 1;
+				}
+			}
+			return Arrays.copyOf(counts, used);
+		}
+
+		long count()
+		{
+			long count = 0;
+			for (LongAdder bucket : buckets)
+			{
+				count += bucket.sum();
+			}
+			return count;
+		}
+
+		double mean()
+		{
+			long count = count();
+			return count == 0 ? 0 : totalNanos.sum()/1000.0/count;
+		}
+
+		/*
+		 * Upper bound, in microseconds, of the bucket holding the given percentile.
+		 * */
+		double percentile(double percentile)
+		{
+			long[] counts = buckets();
+			long total = 0;
+			for (long count : counts)
+			{
+				total += count;
+			}
+			if (total == 0)
+			{
+				return 0;
+			}
+
+			long rank = (long) Math.ceil(total*Math.min(100, Math.max(0, percentile))/100);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++)
+			{
+				seen += counts[i];
+				if (seen >= Math.max(1, rank))
+				{
+					return Math.pow(2, i + 1)/1000;
+				}
+			}
+			return Math.pow(2, counts.length)/1000;
+		}
+
+		void reset()
+		{
+			for (LongAdder bucket : buckets)
+			{
+				bucket.reset();
+			}
+			totalNanos.reset();
+		}
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * CalendarMetricsMBean
+ *
+ * JMX view of a CalendarMetrics. Latencies are in microseconds and come from histograms
+ * with power of two buckets, so percentiles are the upper bound of the bucket they fall
+ * in. Operation names are the CalendarManager method names: addEvent, bulkAddEvents,
+ * removeEvent, updateEvent, addDay, addDayOff, checkOccurrencesSchedule and
+ * checkOccurrencesDaysOff.
+ *
+ * */
+
+public interface CalendarMetricsMBean
+{
+	//Counters
+
+	public long getAddEventCount();
+	public long getRemoveEventCount();
+	public long getUpdateEventCount();
+	public long getAddDayCount();
+	public long getAddDayOffCount();
+	public long getScheduleQueryCount();
+	public long getDaysOffQueryCount();
+
+	//Latencies
+
+	public double getAddEventP99Micros();
+	public double getAddDayP99Micros();
+	public double getAddDayOffP99Micros();
+	public double getScheduleQueryP99Micros();
+	public double getDaysOffQueryP99Micros();
+
+	/*
+	 * Mean latency of an operation in microseconds.
+	 * */
+	public double getMeanMicros(String operation);
+
+	/*
+	 * Latency of an operation in microseconds below which percentile (0-100) of the
+	 * calls fell.
+	 * */
+	public double getPercentileMicros(String operation, double percentile);
+
+	/*
+	 * Number of calls of an operation per latency bucket. Bucket i counts the calls that
+	 * took from 2^i up to 2^(i+1) nanoseconds.
+	 * */
+	public long[] getLatencyHistogram(String operation);
+
+	//Calendar shape, computed from the manager when asked for
+
+	/*
+	 * Number of stored days for each weekday, Sunday first, spilled days included.
+	 * */
+	public int[] getDaysPerWeekday();
+
+	/*
+	 * Number of days per EventTree height. Index i counts the days whose tree has
+	 * height i. Only days held in memory are counted, not spilled ones.
+	 * */
+	public long[] getTreeHeightHistogram();
+
+	/*
+	 * Number of days per event count. Index 0 counts empty days, index i > 0 the days
+	 * with 2^(i-1) up to 2^i - 1 events. Only days held in memory are counted.
+	 * */
+	public long[] getTreeSizeHistogram();
+
+	public int getMaxTreeHeight();
+
+	/*
+	 * Sets every counter and latency histogram back to zero.
+	 * */
+	public void reset();
+}
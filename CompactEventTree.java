@@ -0,0 +1,605 @@
+import java.util.*;
+
+/*
+ * CompactEventTree
+ *
+ * The same AVL interval tree as EventTree, stored in a flat array of ints (a NodeArray)
+ * instead of a Node and an Event object per event. Every node takes STRIDE ints:
+ *
+ *		SPAN		start minute << 16 | end minute
+ *		NAME		id of the event's name in NameTable.SHARED
+ *		MAX_HEIGHT	maxMinutes of the subtree | height of the subtree << 16
+ *		LEFT		index of the left child, NIL if there is none
+ *		RIGHT		index of the right child, NIL if there is none
+ *
+ * so an event costs 20 bytes instead of the Node, Event and Date objects (about 100
+ * bytes). The date and weekday of the events are not stored, they come from the Day owning
+ * the tree. Events handed out (overlapSearch, iteration) are created on the fly with the
+ * Day's date, so they are equal in time, weekday and name but are not the objects that
+ * were inserted. Nodes freed by remove are reused by the next inserts.
+ *
+ * The ints live in an int[] here; OffHeapEventStore is this tree with its NodeArray in an
+ * OffHeapArena block instead.
+ *
+ * */
+
+/*
+ * Storage of the ints of a CompactEventTree's nodes, node*STRIDE + field each.
+ * */
+interface NodeArray
+{
+	public int get(int index);
+
+	public void set(int index, int value);
+
+	/*
+	 * Number of ints there is room for.
+	 * */
+	public int length();
+
+	/*
+	 * Makes room for at least length ints, keeping the ints stored so far (as many as fit).
+	 * */
+	public void resize(int length);
+}
+
+public class CompactEventTree implements EventStore {
+
+	/*
+	 * ------private members------
+	 *
+	 * (nodes, NodeArray):
+	 * the nodes, STRIDE ints each. Only the first count nodes are used.
+	 *
+	 * (count, int):
+	 * number of nodes handed out, in the tree or free.
+	 *
+	 * (size, int):
+	 * number of events in the tree.
+	 *
+	 * (free, int):
+	 * first node given back by remove, NIL if there is none. Free nodes are chained
+	 * through LEFT and handed out again before the array grows.
+	 *
+	 * (removed, boolean):
+	 * whether the running remove found its event.
+	 *
+	 * (root, int):
+	 * index of the root node, NIL for an empty tree.
+	 *
+	 * (date, Date):
+	 * date of the owning Day, given to the events handed out.
+	 *
+	 * (dayOfWeek, int):
+	 * weekday of the owning Day, given to the events handed out.
+	 *
+	 * */
+
+	static final int STRIDE = 5;
+	private static final int SPAN = 0;
+	private static final int NAME = 1;
+	private static final int MAX_HEIGHT = 2;
+	private static final int LEFT = 3;
+	private static final int RIGHT = 4;
+	private static final int NIL = -1;
+
+	private NodeArray nodes;
+	private int count;
+	private int size;
+	private int free;
+	private boolean removed;
+	private int root;
+	private Date date;
+	private int dayOfWeek;
+
+	/*
+	 * Constructor for CompactEventTree, for the Day with the given date and weekday.
+	 *
+	 * */
+	public CompactEventTree(Date date, int dayOfWeek)
+	{
+		this(date, dayOfWeek, new IntNodes(4*STRIDE));
+	}
+
+	/*
+	 * Constructor for a CompactEventTree keeping its nodes in the given NodeArray.
+	 *
+	 * */
+	protected CompactEventTree(Date date, int dayOfWeek, NodeArray nodes)
+	{
+		this.nodes = nodes;
+		this.count = 0;
+		this.size = 0;
+		this.free = NIL;
+		this.removed = false;
+		this.root = NIL;
+		this.date = date;
+		this.dayOfWeek = dayOfWeek;
+	}
+
+	/*
+	 * Whether the minutes of an event fit in a SPAN (0 to 65535).
+	 * */
+	public static boolean canHold(Event event)
+	{
+		return event.getStart() >= 0 && event.getStart() <= 0xFFFF && event.getEnd() >= 0 && event.getEnd() <= 0xFFFF;
+	}
+
+	public void insert(Event newEvent)
+	{
+		root = insert(root, allocate(newEvent));
+		size += 1;
+	}
+
+	/*
+	 * Inserts node at spot in a BST manner and rebalances the path back up to the root.
+	 * Events with the same start minute as an existing node go right.
+	 *
+	 * */
+	private int insert(int node, int newNode)
+	{
+		if (node == NIL)
+		{
+			return newNode;
+		}
+
+		if (start(newNode) < start(node))
+		{
+			nodes.set(node*STRIDE + LEFT, insert(nodes.get(node*STRIDE + LEFT), newNode));
+		}
+		else
+		{
+			nodes.set(node*STRIDE + RIGHT, insert(nodes.get(node*STRIDE + RIGHT), newNode));
+		}
+		return rebalance(node);
+	}
+
+	public boolean remove(Event event)
+	{
+		removed = false;
+		root = remove(root, event);
+		if (removed)
+		{
+			size -= 1;
+		}
+		return removed;
+	}
+
+	/*
+	 * Same walk as EventTree.remove: removes the first node found holding an event equal
+	 * to event and rebalances the path back up.
+	 *
+	 * */
+	private int remove(int node, Event event)
+	{
+		if (node == NIL || max(node) < event.getEnd())
+		{
+			return node;
+		}
+
+		int start = event.getStart();
+		if (start < start(node))
+		{
+			nodes.set(node*STRIDE + LEFT, remove(nodes.get(node*STRIDE + LEFT), event));
+		}
+		else if (start > start(node))
+		{
+			nodes.set(node*STRIDE + RIGHT, remove(nodes.get(node*STRIDE + RIGHT), event));
+		}
+		else if (end(node) == event.getEnd() && sameName(node, event.getName()))
+		{
+			removed = true;
+			return removeNode(node);
+		}
+		else
+		{
+			nodes.set(node*STRIDE + LEFT, remove(nodes.get(node*STRIDE + LEFT), event));
+			if (!removed)
+			{
+				nodes.set(node*STRIDE + RIGHT, remove(nodes.get(node*STRIDE + RIGHT), event));
+			}
+		}
+
+		return removed ? rebalance(node) : node;
+	}
+
+	/*
+	 * Unlinks a node, replacing it with its successor when it has two children, and puts
+	 * it on the free chain. Returns the new root of the subtree.
+	 *
+	 * */
+	private int removeNode(int node)
+	{
+		int left = nodes.get(node*STRIDE + LEFT);
+		int right = nodes.get(node*STRIDE + RIGHT);
+		int replacement;
+
+		if (left == NIL)
+		{
+			replacement = right;
+		}
+		else if (right == NIL)
+		{
+			replacement = left;
+		}
+		else
+		{
+			int successor = right;
+			while (nodes.get(successor*STRIDE + LEFT) != NIL)
+			{
+				successor = nodes.get(successor*STRIDE + LEFT);
+			}
+			nodes.set(successor*STRIDE + RIGHT, removeFirst(right));
+			nodes.set(successor*STRIDE + LEFT, left);
+			replacement = rebalance(successor);
+		}
+
+		nodes.set(node*STRIDE + LEFT, free);
+		free = node;
+		return replacement;
+	}
+
+	private int removeFirst(int node)
+	{
+		int left = nodes.get(node*STRIDE + LEFT);
+		if (left == NIL)
+		{
+			return nodes.get(node*STRIDE + RIGHT);
+		}
+		nodes.set(node*STRIDE + LEFT, removeFirst(left));
+		return rebalance(node);
+	}
+
+	/*
+	 * Whether a node's event has the given name, without creating an Event.
+	 * */
+	private boolean sameName(int node, String name)
+	{
+		return Objects.equals(name, NameTable.SHARED.name(nodes.get(node*STRIDE + NAME)));
+	}
+
+	public void rebuild(List<Event> sorted)
+	{
+		count = 0;
+		free = NIL;
+		size = sorted.size();
+		if (nodes.length() < sorted.size()*STRIDE)
+		{
+			nodes.resize(sorted.size()*STRIDE);
+		}
+
+		//Allocated in order so node i holds sorted event i
+		for (Event event : sorted)
+		{
+			allocate(event);
+		}
+		root = build(0, sorted.size());
+	}
+
+	private int build(int from, int to)
+	{
+		if (from >= to)
+		{
+			return NIL;
+		}
+
+		int middle = (from + to) >>> 1;
+		nodes.set(middle*STRIDE + LEFT, build(from, middle));
+		nodes.set(middle*STRIDE + RIGHT, build(middle + 1, to));
+		update(middle);
+		return middle;
+	}
+
+	public Event overlapSearch(Event searchEvent)
+	{
+		int node = find(searchEvent.getStart(), searchEvent.getEnd());
+		return node == NIL ? null : event(node);
+	}
+
+	public boolean hasOverlap(int start, int end)
+	{
+		return find(start, end) != NIL;
+	}
+
+	/*
+	 * Same walk as EventTree.overlapSearch, returns the overlapping node or NIL.
+	 * */
+	private int find(int start, int end)
+	{
+		int node = root;
+		while (node != NIL)
+		{
+			if (start(node) <= end && start <= end(node))
+			{
+				return node;
+			}
+
+			int left = nodes.get(node*STRIDE + LEFT);
+			if (left != NIL && max(left) >= start)
+			{
+				node = left;
+			}
+			else
+			{
+				node = nodes.get(node*STRIDE + RIGHT);
+			}
+		}
+		return NIL;
+	}
+
+	/*
+	 * Same walk as EventTree.overlaps, only the overlapping events are created.
+	 * */
+	public Iterator<Event> overlaps(final int start, final int end)
+	{
+		return new Iterator<Event>()
+		{
+			//nodes whose event and right subtree have not been visited yet
+			private int[] path = new int[Math.max(1, height())];
+			private int depth = prunedPath(root, 0);
+			private int next = advance();
+
+			private int prunedPath(int node, int depth)
+			{
+				while (node != NIL && max(node) >= start)
+				{
+					path[depth++] = node;
+					node = nodes.get(node*STRIDE + LEFT);
+				}
+				return depth;
+			}
+
+			private int advance()
+			{
+				while (depth > 0)
+				{
+					int node = path[--depth];
+					if (start(node) > end)
+					{
+						depth = 0;
+						return NIL;
+					}
+					depth = prunedPath(nodes.get(node*STRIDE + RIGHT), depth);
+					if (end(node) >= start)
+					{
+						return node;
+					}
+				}
+				return NIL;
+			}
+
+			public boolean hasNext()
+			{
+				return next != NIL;
+			}
+
+			public Event next()
+			{
+				if (next == NIL)
+				{
+					throw new NoSuchElementException();
+				}
+				Event event = event(next);
+				next = advance();
+				return event;
+			}
+		};
+	}
+
+	/*
+	 * Iterates over the events of the tree in order of start minute.
+	 * */
+	public Iterator<Event> iterator()
+	{
+		return new Iterator<Event>()
+		{
+			//nodes whose event and right subtree have not been visited yet
+			private int[] path = new int[Math.max(1, height())];
+			private int depth = leftPath(root, 0);
+
+			private int leftPath(int node, int depth)
+			{
+				while (node != NIL)
+				{
+					path[depth++] = node;
+					node = nodes.get(node*STRIDE + LEFT);
+				}
+				return depth;
+			}
+
+			public boolean hasNext()
+			{
+				return depth > 0;
+			}
+
+			public Event next()
+			{
+				if (depth == 0)
+				{
+					throw new NoSuchElementException();
+				}
+				int node = path[--depth];
+				depth = leftPath(nodes.get(node*STRIDE + RIGHT), depth);
+				return event(node);
+			}
+		};
+	}
+
+	public int size()
+	{
+		return this.size;
+	}
+
+	public boolean isEmpty()
+	{
+		return this.size == 0;
+	}
+
+	public int height()
+	{
+		return height(root);
+	}
+
+	/*
+	 * Takes a node for an event, a removed one if there is one, and returns its index.
+	 * */
+	private int allocate(Event event)
+	{
+		int node;
+		if (free != NIL)
+		{
+			node = free;
+			free = nodes.get(node*STRIDE + LEFT);
+		}
+		else
+		{
+			if ((count + 1)*STRIDE > nodes.length())
+			{
+				nodes.resize(nodes.length()*2);
+			}
+			node = count++;
+		}
+
+		int base = node*STRIDE;
+		nodes.set(base + SPAN, event.getStart() << 16 | event.getEnd());
+		nodes.set(base + NAME, NameTable.SHARED.id(event.getName()));
+		nodes.set(base + MAX_HEIGHT, 1 << 16 | event.getEnd());
+		nodes.set(base + LEFT, NIL);
+		nodes.set(base + RIGHT, NIL);
+		return node;
+	}
+
+	private Event event(int node)
+	{
+		return new Event(NameTable.SHARED.name(nodes.get(node*STRIDE + NAME)), date, dayOfWeek,
+				0, start(node), 0, end(node));
+	}
+
+	private int start(int node)
+	{
+		return nodes.get(node*STRIDE + SPAN) >>> 16;
+	}
+
+	private int end(int node)
+	{
+		return nodes.get(node*STRIDE + SPAN) & 0xFFFF;
+	}
+
+	private int max(int node)
+	{
+		return nodes.get(node*STRIDE + MAX_HEIGHT) & 0xFFFF;
+	}
+
+	private int height(int node)
+	{
+		return node == NIL ? 0 : nodes.get(node*STRIDE + MAX_HEIGHT) >>> 16;
+	}
+
+	/*
+	 * Recomputes height and maxMinutes of a node from its children.
+	 * */
+	private void update(int node)
+	{
+		int left = nodes.get(node*STRIDE + LEFT);
+		int right = nodes.get(node*STRIDE + RIGHT);
+
+		int max = end(node);
+		if (left != NIL && max(left) > max)
+		{
+			max = max(left);
+		}
+		if (right != NIL && max(right) > max)
+		{
+			max = max(right);
+		}
+		nodes.set(node*STRIDE + MAX_HEIGHT, (Math.max(height(left), height(right)) + 1) << 16 | max);
+	}
+
+	/*
+	 * Restores the AVL property at a node, see EventTree.rebalance.
+	 * */
+	private int rebalance(int node)
+	{
+		update(node);
+		int left = nodes.get(node*STRIDE + LEFT);
+		int right = nodes.get(node*STRIDE + RIGHT);
+		int balance = height(left) - height(right);
+
+		//Left heavy
+		if (balance > 1)
+		{
+			if (height(nodes.get(left*STRIDE + LEFT)) < height(nodes.get(left*STRIDE + RIGHT)))
+			{
+				nodes.set(node*STRIDE + LEFT, rotateLeft(left));
+			}
+			return rotateRight(node);
+		}
+
+		//Right heavy
+		if (balance < -1)
+		{
+			if (height(nodes.get(right*STRIDE + RIGHT)) < height(nodes.get(right*STRIDE + LEFT)))
+			{
+				nodes.set(node*STRIDE + RIGHT, rotateRight(right));
+			}
+			return rotateLeft(node);
+		}
+		return node;
+	}
+
+	private int rotateRight(int node)
+	{
+		int pivot = nodes.get(node*STRIDE + LEFT);
+		nodes.set(node*STRIDE + LEFT, nodes.get(pivot*STRIDE + RIGHT));
+		nodes.set(pivot*STRIDE + RIGHT, node);
+
+		//node is now below pivot so it has to be updated first
+		update(node);
+		update(pivot);
+		return pivot;
+	}
+
+	private int rotateLeft(int node)
+	{
+		int pivot = nodes.get(node*STRIDE + RIGHT);
+		nodes.set(node*STRIDE + RIGHT, nodes.get(pivot*STRIDE + LEFT));
+		nodes.set(pivot*STRIDE + LEFT, node);
+
+		update(node);
+		update(pivot);
+		return pivot;
+	}
+
+	/*
+	 * Nodes in an int[] on the heap.
+	 * */
+	private static final class IntNodes implements NodeArray
+	{
+		private int[] ints;
+
+		IntNodes(int length)
+		{
+			this.ints = new int[length];
+		}
+
+		public int get(int index)
+		{
+			return ints[index];
+		}
+
+		public void set(int index, int value)
+		{
+			ints[index] = value;
+		}
+
+		public int length()
+		{
+			return ints.length;
+		}
+
+		public void resize(int length)
+		{
+			ints = Arrays.copyOf(ints, length);
+		}
+	}
+}
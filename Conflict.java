@@ -0,0 +1,59 @@
+import java.util.*;
+
+/*
+ * Conflict
+ *
+ * An event standing in the way of one occurrence of a meeting request, as handed out by
+ * CalendarManager.conflicts. It holds the day of the occurrence and the event found on
+ * that day.
+ *
+ * */
+
+public class Conflict {
+
+	/*
+	 * ------private members------
+	 *
+	 * (epochDay, long):
+	 * epoch day of the occurrence the event conflicts with.
+	 *
+	 * (date, Date):
+	 * date of the Day the event is stored on.
+	 *
+	 * (event, Event):
+	 * the conflicting event.
+	 *
+	 * */
+
+	private long epochDay;
+	private Date date;
+	private Event event;
+
+	/*
+	 * Constructor for Conflict.
+	 *
+	 * */
+	public Conflict(long epochDay, Date date, Event event)
+	{
+		this.epochDay = epochDay;
+		this.date = date;
+		this.event = event;
+	}
+
+	//Accessors
+
+	public long getEpochDay()
+	{
+		return this.epochDay;
+	}
+
+	public Date getDate()
+	{
+		return this.date;
+	}
+
+	public Event getEvent()
+	{
+		return this.event;
+	}
+}
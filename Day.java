@@ -18,6 +18,26 @@ interface DayInter
 	 * */
 	public void addEventNode(Event event);
 	
+	/*
+	 * Method to insert many events, sorted by start minute, at once.
+	 * 
+	 * */
+	public void addEventNodes(List<Event> sorted);
+	
+	/*
+	 * Method to remove an event with the same minutes and name from the schedule.
+	 * Returns false if there is no such event.
+	 * 
+	 * */
+	public boolean removeEvent(Event event);
+	
+	/*
+	 * Method to replace an event of the schedule with newEvent. Returns false, and adds
+	 * nothing, if there is no event like oldEvent.
+	 * 
+	 * */
+	public boolean updateEvent(Event oldEvent, Event newEvent);
+	
 	/*
 	 * Main algorithm that determines if overlaps/collisions exist between
 	 * events within the EventTree schedule.
@@ -25,12 +45,69 @@ interface DayInter
 	 * */
 	public Event getOverlap(Event event);
 	
+	/*
+	 * Same as getOverlap but only answers whether an overlap exists. Uses the busy
+	 * minute bitmap when the day keeps one.
+	 * 
+	 * */
+	public boolean hasOverlap(Event event);
+	
+	/*
+	 * Same as hasOverlap for an event from minute start to minute end, without needing
+	 * an Event.
+	 * 
+	 * */
+	public boolean hasOverlap(int start, int end);
+	
+	/*
+	 * Every event overlapping the minutes start to end, lazily and in order of start
+	 * minute (see EventStore.overlaps).
+	 * 
+	 * */
+	public Iterator<Event> getOverlaps(int start, int end);
+	
+	/*
+	 * Starts keeping a busy minute bitmap for this day, built from the events already
+	 * in the EventTree.
+	 * 
+	 * */
+	public void useBusyMinutes();
+	
+	/*
+	 * Moves the events of this day into a CompactEventTree, and keeps them there as
+	 * long as they fit in it.
+	 * 
+	 * */
+	public void useCompactStorage();
+	
+	/*
+	 * Moves the events of this day into an OffHeapEventStore, outside the Java heap, and
+	 * keeps them there as long as they fit in it.
+	 * 
+	 * */
+	public void useOffHeapStorage();
+	
 	//Accessors
+	
+	/*
+	 * The events of this day in order of start minute.
+	 * 
+	 * */
+	public Iterable<Event> getEvents();
+	
+	/*
+	 * Number of events of this day and height of the tree holding them.
+	 * 
+	 * */
+	public int getEventCount();
+	public int getTreeHeight();
+	
 	public Date getDate();	
 	public int getYear();	
 	public int getMonth();	
 	public int getDay();	
 	public int getDayOfWeek();
+	public long getEpochDay();
 	public boolean isDayOff();	
 }
 
@@ -39,8 +116,11 @@ public class Day implements DayInter {
 	/*
 	 * ------private members------
 	 * 
-	 * (eventsTree, EventTree):
-	 * represents the "schedule" for this day instance.
+	 * (eventsTree, EventStore):
+	 * represents the "schedule" for this day instance. A SmallEventArray, moved into an
+	 * EventTree once it holds more than SmallEventArray.CAPACITY events, or a
+	 * CompactEventTree once useCompactStorage was called, or an OffHeapEventStore once
+	 * useOffHeapStorage was.
 	 * 
 	 * (daysOfWeek, int):
 	 * represents day of the week for this day instanec (1-7, 1-indexed).
@@ -57,18 +137,29 @@ public class Day implements DayInter {
 	 * (date, Date):
 	 * represents the date for this day instance.
 	 * 
+	 * (epochDay, long):
+	 * represents the number of days since January 1st, 1970 for this day instance. Used
+	 * as the key for this day in CalendarManager.
+	 * 
 	 * (dayOff, boolean):
 	 * indicates whether the day is a day off or not (holiday, vacation, etc).
 	 * 
+	 * (busyMinutes, BusyMinutes):
+	 * optional bitmap of the minutes covered by events, used for quick overlap checks.
+	 * null unless useBusyMinutes was called, or once an event the bitmap cannot hold
+	 * was added.
+	 * 
 	 */
 	
-	private EventTree eventsTree;//binary tree implementation
+	private EventStore eventsTree;//binary tree implementation
 	private int dayOfWeek;
 	private int year;
 	private int month;
 	private int day;
 	private Date date;
+	private long epochDay;
 	private boolean dayOff;
+	private BusyMinutes busyMinutes;
 	
 	/*
 	 * Constructor for Day. Initializes the date, dayOfWeek, eventTree, year, month, and day.
@@ -81,11 +172,13 @@ public class Day implements DayInter {
 		cal.set(year, month, day, 0, 0);
 		this.date = cal.getTime();
 		this.dayOfWeek = cal.get(Calendar.DAY_OF_WEEK);
-		this.eventsTree = new EventTree();
+		this.epochDay = EpochDay.fromCalendar(cal);
+		this.eventsTree = new SmallEventArray();
 		this.year = year;
 		this.month = month;
 		this.day = day;
 		this.dayOff = dayOff;
+		this.busyMinutes = null;
 	}
 	
 	/*
@@ -99,21 +192,284 @@ public class Day implements DayInter {
 		cal.set(year, month, day, 0, 0);
 		this.date = cal.getTime();
 		this.dayOfWeek = cal.get(Calendar.DAY_OF_WEEK);
-		this.eventsTree = new EventTree();
+		this.epochDay = EpochDay.fromCalendar(cal);
+		this.eventsTree = new SmallEventArray();
 		this.year = year;
 		this.month = month;
 		this.day = day;
 		this.dayOff = false;
+		this.busyMinutes = null;
 	}
 
 	public void addEventNode(Event event)
 	{
+		if (isPacked() && !CompactEventTree.canHold(event))
+		{
+			useEventTree();
+		}
+		else if (eventsTree instanceof SmallEventArray && ((SmallEventArray) eventsTree).isFull())
+		{
+			useEventTree();
+		}
 		eventsTree.insert(event);
+		
+		if (busyMinutes != null)
+		{
+			markBusy(event);
+		}
+	}
+	
+	/*
+	 * The EventTree is rebuilt bottom-up from its events merged with the new ones, which
+	 * is linear instead of one rebalancing insert per event. A few events added to a large
+	 * tree are still inserted one by one, that is cheaper than a rebuild.
+	 * */
+	public void addEventNodes(List<Event> sorted)
+	{
+		int size = eventsTree.size();
+		int height = 32 - Integer.numberOfLeadingZeros(size + sorted.size());
+		if ((long) sorted.size()*height < size)
+		{
+			for (Event event : sorted)
+			{
+				addEventNode(event);
+			}
+			return;
+		}
+		
+		List<Event> merged = sorted;
+		if (size > 0)
+		{
+			//Both lists are sorted by start minute, existing events go first on ties
+			merged = new ArrayList<Event>(eventsTree.size() + sorted.size());
+			Iterator<Event> existing = eventsTree.iterator();
+			Event next = existing.next();
+			int i = 0;
+			while (next != null || i < sorted.size())
+			{
+				if (next != null && (i == sorted.size() || next.getStart() <= sorted.get(i).getStart()))
+				{
+					merged.add(next);
+					next = existing.hasNext() ? existing.next() : null;
+				}
+				else
+				{
+					merged.add(sorted.get(i));
+					i += 1;
+				}
+			}
+		}
+		if (eventsTree instanceof SmallEventArray && merged.size() > SmallEventArray.CAPACITY)
+		{
+			eventsTree = new EventTree();
+		}
+		if (isPacked())
+		{
+			for (Event event : sorted)
+			{
+				if (!CompactEventTree.canHold(event))
+				{
+					useEventTree();
+					break;
+				}
+			}
+		}
+		eventsTree.rebuild(merged);
+		
+		if (busyMinutes != null)
+		{
+			for (Event event : sorted)
+			{
+				if (!markBusy(event))
+				{
+					break;
+				}
+			}
+		}
+	}
+	
+	public boolean removeEvent(Event event)
+	{
+		if (!eventsTree.remove(event))
+		{
+			return false;
+		}
+		
+		if (busyMinutes != null)
+		{
+			//Other events can cover some of the same minutes, only those overlapping the
+			//cleared minutes are marked again
+			busyMinutes.clear(event.getStart(), event.getEnd());
+			Iterator<Event> others = eventsTree.overlaps(event.getStart(), event.getEnd());
+			while (others.hasNext())
+			{
+				markBusy(others.next());
+			}
+		}
+		return true;
+	}
+	
+	public boolean updateEvent(Event oldEvent, Event newEvent)
+	{
+		if (!removeEvent(oldEvent))
+		{
+			return false;
+		}
+		addEventNode(newEvent);
+		return true;
 	}
 	
 	public Event getOverlap(Event event)
 	{
-		return eventsTree.overlapSearch(eventsTree.root, event);
+		//A free window in the bitmap means there is nothing to find in the tree
+		if (busyMinutes != null && !busyMinutes.isBusy(event.getStart(), event.getEnd()))
+		{
+			return null;
+		}
+		return eventsTree.overlapSearch(event);
+	}
+	
+	public boolean hasOverlap(Event event)
+	{
+		return hasOverlap(event.getStart(), event.getEnd());
+	}
+	
+	public boolean hasOverlap(int start, int end)
+	{
+		if (busyMinutes != null)
+		{
+			return busyMinutes.isBusy(start, end);
+		}
+		return eventsTree.hasOverlap(start, end);
+	}
+	
+	public Iterator<Event> getOverlaps(int start, int end)
+	{
+		//A free window in the bitmap means there is nothing to find in the tree
+		if (busyMinutes != null && !busyMinutes.isBusy(start, end))
+		{
+			return Collections.emptyIterator();
+		}
+		return eventsTree.overlaps(start, end);
+	}
+	
+	public void useBusyMinutes()
+	{
+		if (busyMinutes != null)
+		{
+			return;
+		}
+		
+		busyMinutes = new BusyMinutes();
+		for (Event event : eventsTree)
+		{
+			if (!markBusy(event))
+			{
+				return;
+			}
+		}
+	}
+	
+	public void useCompactStorage()
+	{
+		//Off-heap nodes are packed the same way and take no heap at all
+		if (isPacked())
+		{
+			return;
+		}
+		
+		ArrayList<Event> sorted = new ArrayList<Event>(eventsTree.size());
+		for (Event event : eventsTree)
+		{
+			if (!CompactEventTree.canHold(event))
+			{
+				return;
+			}
+			sorted.add(event);
+		}
+		
+		CompactEventTree compact = new CompactEventTree(date, dayOfWeek);
+		compact.rebuild(sorted);
+		eventsTree = compact;
+	}
+	
+	public void useOffHeapStorage()
+	{
+		if (eventsTree instanceof OffHeapEventStore)
+		{
+			return;
+		}
+		
+		ArrayList<Event> sorted = new ArrayList<Event>(eventsTree.size());
+		for (Event event : eventsTree)
+		{
+			if (!CompactEventTree.canHold(event))
+			{
+				return;
+			}
+			sorted.add(event);
+		}
+		
+		OffHeapEventStore offHeap = new OffHeapEventStore(date, dayOfWeek);
+		offHeap.rebuild(sorted);
+		eventsTree = offHeap;
+	}
+	
+	/*
+	 * Moves the events into an EventTree, for an event a CompactEventTree or an
+	 * OffHeapEventStore cannot hold, or once a SmallEventArray is full.
+	 * */
+	private void useEventTree()
+	{
+		ArrayList<Event> sorted = new ArrayList<Event>(eventsTree.size());
+		for (Event event : eventsTree)
+		{
+			sorted.add(event);
+		}
+		if (eventsTree instanceof OffHeapEventStore)
+		{
+			((OffHeapEventStore) eventsTree).release();
+		}
+		eventsTree = EventTree.build(sorted);
+	}
+	
+	/*
+	 * Whether the events are in packed nodes limited to minutes 0 to 65535.
+	 * */
+	private boolean isPacked()
+	{
+		//An OffHeapEventStore is a CompactEventTree with its nodes outside the heap
+		return eventsTree instanceof CompactEventTree;
+	}
+	
+	/*
+	 * Marks an event in the bitmap. If the event does not fit in the bitmap, the bitmap
+	 * is dropped and the day goes back to searching the tree. Returns false in that case.
+	 * */
+	private boolean markBusy(Event event)
+	{
+		if (!BusyMinutes.canMark(event.getStart(), event.getEnd()))
+		{
+			busyMinutes = null;
+			return false;
+		}
+		busyMinutes.mark(event.getStart(), event.getEnd());
+		return true;
+	}
+	
+	public Iterable<Event> getEvents()
+	{
+		return eventsTree;
+	}
+	
+	public int getEventCount()
+	{
+		return eventsTree.size();
+	}
+	
+	public int getTreeHeight()
+	{
+		return eventsTree.height();
 	}
 	
 	public Date getDate()
@@ -141,6 +497,11 @@ public class Day implements DayInter {
 		return this.dayOfWeek;
 	}
 	
+	public long getEpochDay()
+	{
+		return this.epochDay;
+	}
+	
 	public boolean isDayOff()
 	{
 		return this.dayOff;
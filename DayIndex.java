@@ -0,0 +1,246 @@
+import java.util.*;
+import java.util.function.*;
+
+/*
+ * DayIndex
+ *
+ * Hash map from an epoch day (see EpochDay) to the Day stored for it. This replaces the
+ * HashMap<String, Day> buckets in CalendarManager. Keys are kept in a primitive long[] so
+ * nothing is boxed and no key object is built for a lookup.
+ *
+ * Open addressing with linear probing is used. The table size is a power of two and is
+ * doubled once the table becomes half full. An empty slot is marked by a null value.
+ * Removal shifts the following entries of the probe sequence back into the hole, so no
+ * tombstones are left behind to lengthen later lookups.
+ *
+ * */
+
+public class DayIndex {
+
+	/*
+	 * ------private members------
+	 *
+	 * (keys, long[]):
+	 * epoch day stored in each slot of the table.
+	 *
+	 * (values, Day[]):
+	 * Day stored in each slot of the table, null if the slot is empty.
+	 *
+	 * (size, int):
+	 * number of days held by the index.
+	 *
+	 * (mask, int):
+	 * table length - 1, used to wrap slot indexes.
+	 *
+	 * */
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private long[] keys;
+	private Day[] values;
+	private int size;
+	private int mask;
+
+	/*
+	 * Default constructor for DayIndex.
+	 *
+	 * */
+	public DayIndex()
+	{
+		this(DEFAULT_CAPACITY);
+	}
+
+	/*
+	 * Constructor for DayIndex that sizes the table for an expected number of days.
+	 *
+	 * */
+	public DayIndex(int expectedSize)
+	{
+		int capacity = DEFAULT_CAPACITY;
+		while (capacity < expectedSize*2)
+		{
+			capacity <<= 1;
+		}
+		this.keys = new long[capacity];
+		this.values = new Day[capacity];
+		this.size = 0;
+		this.mask = capacity - 1;
+	}
+
+	/*
+	 * Returns the Day stored for an epoch day, or null if there is none.
+	 * */
+	public Day get(long epochDay)
+	{
+		int slot = hash(epochDay) & mask;
+		Day value;
+		while ((value = values[slot]) != null)
+		{
+			if (keys[slot] == epochDay)
+			{
+				return value;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return null;
+	}
+
+	public boolean containsKey(long epochDay)
+	{
+		return get(epochDay) != null;
+	}
+
+	/*
+	 * Stores a Day for an epoch day, replacing any Day already stored for it. Returns
+	 * the replaced Day or null.
+	 * */
+	public Day put(long epochDay, Day day)
+	{
+		if (day == null)
+		{
+			throw new IllegalArgumentException("day cannot be null");
+		}
+
+		int slot = hash(epochDay) & mask;
+		Day value;
+		while ((value = values[slot]) != null)
+		{
+			if (keys[slot] == epochDay)
+			{
+				values[slot] = day;
+				return value;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		keys[slot] = epochDay;
+		values[slot] = day;
+		size += 1;
+
+		//Keep the table at most half full so probe sequences stay short
+		if (size*2 > values.length)
+		{
+			resize(values.length*2);
+		}
+		return null;
+	}
+
+	/*
+	 * Removes the Day stored for an epoch day. Returns the removed Day or null.
+	 * */
+	public Day remove(long epochDay)
+	{
+		int slot = hash(epochDay) & mask;
+		Day value;
+		while ((value = values[slot]) != null)
+		{
+			if (keys[slot] == epochDay)
+			{
+				shiftBack(slot);
+				size -= 1;
+				return value;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return null;
+	}
+
+	public int size()
+	{
+		return this.size;
+	}
+
+	/*
+	 * Performs an action for every Day in the index, in no particular order.
+	 * */
+	public void forEach(Consumer<Day> action)
+	{
+		for (int i = 0; i < values.length; i++)
+		{
+			if (values[i] != null)
+			{
+				action.accept(values[i]);
+			}
+		}
+	}
+
+	/*
+	 * Returns the days stored for the epoch days from to to (inclusive), sorted by
+	 * epoch day.
+	 * */
+	public Day[] daysBetween(long from, long to)
+	{
+		ArrayList<Day> days = new ArrayList<Day>();
+		for (int i = 0; i < values.length; i++)
+		{
+			if (values[i] != null && keys[i] >= from && keys[i] <= to)
+			{
+				days.add(values[i]);
+			}
+		}
+
+		Day[] sorted = days.toArray(new Day[days.size()]);
+		Arrays.sort(sorted, (a, b) -> Long.compare(a.getEpochDay(), b.getEpochDay()));
+		return sorted;
+	}
+
+	/*
+	 * Spreads the bits of the key, consecutive epoch days would otherwise fill
+	 * consecutive slots.
+	 * */
+	private static int hash(long key)
+	{
+		long h = key*0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/*
+	 * Fills the hole left at a slot by moving back every following entry whose home slot
+	 * is not between the hole and the entry, until an empty slot ends the probe sequence.
+	 * */
+	private void shiftBack(int hole)
+	{
+		int slot = hole;
+		while (true)
+		{
+			slot = (slot + 1) & mask;
+			if (values[slot] == null)
+			{
+				break;
+			}
+
+			int home = hash(keys[slot]) & mask;
+			if (((slot - home) & mask) >= ((slot - hole) & mask))
+			{
+				keys[hole] = keys[slot];
+				values[hole] = values[slot];
+				hole = slot;
+			}
+		}
+		values[hole] = null;
+	}
+
+	private void resize(int capacity)
+	{
+		long[] oldKeys = keys;
+		Day[] oldValues = values;
+
+		keys = new long[capacity];
+		values = new Day[capacity];
+		mask = capacity - 1;
+
+		for (int i = 0; i < oldValues.length; i++)
+		{
+			if (oldValues[i] != null)
+			{
+				int slot = hash(oldKeys[i]) & mask;
+				while (values[slot] != null)
+				{
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+}
@@ -0,0 +1,168 @@
+import java.util.*;
+
+/*
+ * EpochDay
+ *
+ * Helper methods for converting dates into epoch days (the number of days since
+ * January 1st, 1970). Epoch days are used as the primitive keys of the day indexes in
+ * CalendarManager, so a lookup only has to hash a long instead of building a String.
+ *
+ * The civil date conversion used: http://howardhinnant.github.io/date_algorithms.html
+ *
+ * */
+
+public final class EpochDay {
+
+	//Calendar reused by the conversions of each thread, so converting a Date allocates
+	//nothing. It keeps the default time zone of the time the thread first used it.
+	private static final ThreadLocal<Calendar> SCRATCH = ThreadLocal.withInitial(Calendar::getInstance);
+
+	private EpochDay()
+	{
+	}
+
+	/*
+	 * Returns the epoch day for a year, month (0-11, same as java.util.Calendar) and
+	 * day of the month.
+	 * */
+	public static long of(int year, int month, int dayOfMonth)
+	{
+		long y = year;
+		long m = month + 1;
+
+		//Years are counted from March so the leap day is the last day of the year
+		if (m <= 2)
+		{
+			y -= 1;
+		}
+
+		long era = Math.floorDiv(y, 400);
+		long yearOfEra = y - era*400;
+		long dayOfYear = (153*((m + 9) % 12) + 2)/5 + dayOfMonth - 1;
+		long dayOfEra = yearOfEra*365 + yearOfEra/4 - yearOfEra/100 + dayOfYear;
+
+		return era*146097 + dayOfEra - 719468;
+	}
+
+	/*
+	 * Returns the epoch day for the date currently held by a Calendar instance.
+	 * */
+	public static long fromCalendar(Calendar cal)
+	{
+		return of(cal.get(Calendar.YEAR), cal.get(Calendar.MONTH), cal.get(Calendar.DAY_OF_MONTH));
+	}
+
+	/*
+	 * Returns the epoch day for a Date in the default time zone.
+	 * */
+	public static long fromDate(Date date)
+	{
+		Calendar cal = SCRATCH.get();
+		cal.setTime(date);
+		return fromCalendar(cal);
+	}
+
+	/*
+	 * Sets a Calendar instance to midnight of an epoch day.
+	 * */
+	public static void toCalendar(long epochDay, Calendar cal)
+	{
+		int months = monthIndex(epochDay);
+		int year = Math.floorDiv(months, 12);
+		int month = Math.floorMod(months, 12);
+
+		cal.clear();
+		cal.set(year, month, (int) (epochDay - of(year, month, 1)) + 1);
+	}
+
+	/*
+	 * Returns year*12 + month (0-11) of an epoch day, so consecutive months are
+	 * consecutive numbers.
+	 * */
+	public static int monthIndex(long epochDay)
+	{
+		//Inverse of of(), years are counted from March
+		long z = epochDay + 719468;
+		long era = Math.floorDiv(z, 146097);
+		long dayOfEra = z - era*146097;
+		long yearOfEra = (dayOfEra - dayOfEra/1460 + dayOfEra/36524 - dayOfEra/146096)/365;
+		long dayOfYear = dayOfEra - (365*yearOfEra + yearOfEra/4 - yearOfEra/100);
+		long monthFromMarch = (5*dayOfYear + 2)/153;
+
+		int month = (int) (monthFromMarch < 10 ? monthFromMarch + 2 : monthFromMarch - 10);
+		long year = era*400 + yearOfEra + (month <= 1 ? 1 : 0);
+		return (int) (year*12 + month);
+	}
+
+	/*
+	 * Returns the epoch day of the first day of a month given as a monthIndex.
+	 * */
+	public static long firstOfMonth(int monthIndex)
+	{
+		return of(Math.floorDiv(monthIndex, 12), Math.floorMod(monthIndex, 12), 1);
+	}
+
+	/*
+	 * Returns the Date for midnight of an epoch day in the default time zone.
+	 * */
+	public static Date toDate(long epochDay)
+	{
+		Calendar cal = Calendar.getInstance();
+		toCalendar(epochDay, cal);
+		return cal.getTime();
+	}
+
+	/*
+	 * Returns the last epoch day a meeting request can fall on. The request walk keeps the
+	 * time of day of startDate and stops once it passes endDate, so this is the day of
+	 * endDate, or the day before it when endDate's time of day is earlier than startDate's.
+	 * */
+	public static long lastDay(Date startDate, Date endDate)
+	{
+		Calendar cal = SCRATCH.get();
+		cal.setTime(startDate);
+		long startTime = timeOfDay(cal);
+
+		cal.setTime(endDate);
+		long lastDay = fromCalendar(cal);
+		if (timeOfDay(cal) < startTime)
+		{
+			lastDay -= 1;
+		}
+		return lastDay;
+	}
+
+	/*
+	 * Milliseconds since midnight for the time currently held by a Calendar instance.
+	 * */
+	public static long timeOfDay(Calendar cal)
+	{
+		return ((cal.get(Calendar.HOUR_OF_DAY)*60L + cal.get(Calendar.MINUTE))*60 +
+				cal.get(Calendar.SECOND))*1000 + cal.get(Calendar.MILLISECOND);
+	}
+
+	/*
+	 * Returns the first epoch day on or after epochDay that falls on dayOfWeek.
+	 * */
+	public static long nextOrSame(long epochDay, int dayOfWeek)
+	{
+		return epochDay + Math.floorMod(dayOfWeek - dayOfWeek(epochDay), 7);
+	}
+
+	/*
+	 * Returns the last epoch day on or before epochDay that falls on dayOfWeek.
+	 * */
+	public static long previousOrSame(long epochDay, int dayOfWeek)
+	{
+		return epochDay - Math.floorMod(dayOfWeek(epochDay) - dayOfWeek, 7);
+	}
+
+	/*
+	 * Returns the day of the week (1-7, Sunday is 1, same as java.util.Calendar) for an
+	 * epoch day. January 1st, 1970 was a Thursday.
+	 * */
+	public static int dayOfWeek(long epochDay)
+	{
+		return (int) Math.floorMod(epochDay + 4, 7L) + 1;
+	}
+}
@@ -0,0 +1,602 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.zip.*;
+
+/*
+ * EventLog
+ *
+ * Persistence for a CalendarManager. Every addDay/addDayOff/addEvent/removeEvent and
+ * addExclusion/removeExclusion is appended to a memory-mapped log file as a compact
+ * binary record (updateEvent is a remove and an add), and snapshot() writes every stored
+ * day and excluded range to a snapshot file and starts a new, empty log. Starting up
+ * means loading the latest snapshot plus the short log written since then (see recover).
+ *
+ * Both files start with a header (magic, version, generation) followed by records:
+ *
+ *		int length		bytes in the record body, 0 marks the end of the records
+ *		int crc			CRC32 of the record body
+ *		body			byte type, long epochDay, then
+ *						DAY:	byte dayOff
+ *						EVENT:	int startMin, int endMin, short name length (-1 for null), UTF-8 name
+ *						REMOVE:	same as EVENT, for an event removed from the day
+ *						EXCLUDE:	long toDay, epochDay to toDay are excluded (see ExclusionIndex)
+ *						INCLUDE:	long toDay, epochDay to toDay are no longer excluded
+ *
+ * A snapshot covers every log up to its generation. Records after a torn or corrupt record
+ * at the end of the log (crash in the middle of an append) are dropped when recovering.
+ *
+ * The same format holds the segments SegmentedDayIndex spills to disk (writeDays and
+ * readDays), with generation 0.
+ *
+ * Appends are only forced to disk every syncEvery records (1 forces every record, 0 leaves
+ * it to the operating system), by sync(), by snapshot() and by close().
+ *
+ * */
+
+public class EventLog implements Closeable {
+
+	/*
+	 * ------private members------
+	 *
+	 * (directory, File):
+	 * directory holding the snapshot and log files.
+	 *
+	 * (syncEvery, int):
+	 * number of appended records after which the log is forced to disk, 0 for never.
+	 *
+	 * (channel, FileChannel):
+	 * channel of the open log file.
+	 *
+	 * (map, MappedByteBuffer):
+	 * the log file mapped into memory, remapped whenever the file grows.
+	 *
+	 * (generation, long):
+	 * generation of the open log.
+	 *
+	 * (unsynced, int):
+	 * records appended since the last force.
+	 *
+	 * (scratch, ByteBuffer):
+	 * buffer a record body is built in before it is copied to the log.
+	 *
+	 * */
+
+	public static final byte DAY = 1;
+	public static final byte EVENT = 2;
+	public static final byte REMOVE = 3;
+	public static final byte EXCLUDE = 4;
+	public static final byte INCLUDE = 5;
+
+	private static final String SNAPSHOT_FILE = "calendar.snapshot";
+	private static final String LOG_FILE = "calendar.log";
+
+	private static final int MAGIC = 0x43414C47;
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 16;
+	private static final int RECORD_HEADER_BYTES = 8;
+	private static final int INITIAL_LOG_BYTES = 1 << 20;
+
+	private File directory;
+	private int syncEvery;
+	private FileChannel channel;
+	private MappedByteBuffer map;
+	private long generation;
+	private int unsynced;
+	private ByteBuffer scratch;
+
+	/*
+	 * Constructor for EventLog. Nothing is read or written until recover is called.
+	 *
+	 * */
+	public EventLog(File directory, int syncEvery)
+	{
+		this.directory = directory;
+		this.syncEvery = syncEvery;
+		this.channel = null;
+		this.map = null;
+		this.generation = 0;
+		this.unsynced = 0;
+		this.scratch = ByteBuffer.allocate(64);
+	}
+
+	/*
+	 * Loads the latest snapshot and the log written after it into an empty manager, then
+	 * opens the log for appending. A torn last record is cut off the log.
+	 * */
+	public synchronized void recover(CalendarManager manager) throws IOException
+	{
+		if (!directory.isDirectory() && !directory.mkdirs())
+		{
+			throw new IOException("cannot create " + directory);
+		}
+
+		long snapshotGeneration = 0;
+		File snapshotFile = new File(directory, SNAPSHOT_FILE);
+		if (snapshotFile.exists())
+		{
+			ByteBuffer snapshot = ByteBuffer.wrap(readFully(snapshotFile));
+			snapshotGeneration = readHeader(snapshot, snapshotFile);
+			//A snapshot is renamed into place once complete, so it has to end with the end marker
+			int end = replay(snapshot, manager);
+			if (end + 4 > snapshot.limit() || snapshot.getInt(end) != 0)
+			{
+				throw new IOException("corrupt snapshot " + snapshotFile);
+			}
+		}
+
+		File logFile = new File(directory, LOG_FILE);
+		channel = new RandomAccessFile(logFile, "rw").getChannel();
+
+		long logGeneration = -1;
+		if (channel.size() >= HEADER_BYTES)
+		{
+			map = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+			logGeneration = readHeader(map, logFile);
+		}
+
+		if (logGeneration > snapshotGeneration)
+		{
+			generation = logGeneration;
+			int end = replay(map, manager);
+
+			//Clear whatever is left of a torn record so it cannot be read back later
+			for (int i = end; i < map.limit(); i++)
+			{
+				map.put(i, (byte) 0);
+			}
+			map.position(end);
+		}
+
+		//The snapshot already holds everything in an older log
+		else
+		{
+			startLog(snapshotGeneration + 1);
+		}
+	}
+
+	/*
+	 * Appends a record for a Day replacing whatever is stored for its date, followed by
+	 * records for the events the Day already holds.
+	 * */
+	public synchronized void appendDay(Day day)
+	{
+		putDay(day);
+		append();
+
+		for (Event event : day.getEvents())
+		{
+			appendEvent(day.getEpochDay(), event);
+		}
+	}
+
+	/*
+	 * Appends a record for an Event added to the day with the given epoch day.
+	 * */
+	public synchronized void appendEvent(long epochDay, Event event)
+	{
+		putEvent(EVENT, epochDay, event);
+		append();
+	}
+
+	/*
+	 * Appends a record for an Event removed from the day with the given epoch day.
+	 * */
+	public synchronized void appendRemove(long epochDay, Event event)
+	{
+		putEvent(REMOVE, epochDay, event);
+		append();
+	}
+
+	/*
+	 * Appends a record for the epoch days fromDay to toDay (inclusive) being excluded.
+	 * */
+	public synchronized void appendExclude(long fromDay, long toDay)
+	{
+		putRange(EXCLUDE, fromDay, toDay);
+		append();
+	}
+
+	/*
+	 * Appends a record for the epoch days fromDay to toDay (inclusive) no longer being
+	 * excluded.
+	 * */
+	public synchronized void appendInclude(long fromDay, long toDay)
+	{
+		putRange(INCLUDE, fromDay, toDay);
+		append();
+	}
+
+	/*
+	 * Forces every appended record to disk.
+	 * */
+	public synchronized void sync()
+	{
+		if (map != null)
+		{
+			map.force();
+		}
+		unsynced = 0;
+	}
+
+	/*
+	 * Writes the days and the excluded ranges ({from0, to0, from1, to1, ...}, see
+	 * ExclusionIndex) to a new snapshot and starts a new, empty log. The caller has to
+	 * make sure nothing is appended while they are written (CalendarManager holds every
+	 * weekday lock and the monitor of its ExclusionIndex).
+	 *
+	 * The snapshot is written to a temporary file and renamed over the old one, so a crash
+	 * leaves either the old snapshot and log or the new snapshot (and an older log that is
+	 * ignored because the snapshot covers its generation).
+	 * */
+	public synchronized void snapshot(List<Day> days, long[] excluded) throws IOException
+	{
+		write(new File(directory, SNAPSHOT_FILE), generation, days, excluded);
+		startLog(generation + 1);
+	}
+
+	/*
+	 * Writes days to a file of their own, in the snapshot format. Used by
+	 * SegmentedDayIndex to spill segments to disk.
+	 * */
+	public static void writeDays(File file, List<Day> days) throws IOException
+	{
+		new EventLog(file.getParentFile(), 0).write(file, 0, days, null);
+	}
+
+	/*
+	 * Reads back the days of a file written by writeDays. They are rebuilt by replaying
+	 * the file into a CalendarManager of their own, the same way recover rebuilds one.
+	 * */
+	public static List<Day> readDays(File file) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.wrap(readFully(file));
+		readHeader(buffer, file);
+
+		CalendarManager manager = new CalendarManager(null);
+		int end = replay(buffer, manager);
+		if (end + 4 > buffer.limit() || buffer.getInt(end) != 0)
+		{
+			throw new IOException("corrupt day file " + file);
+		}
+
+		ArrayList<Day> days = new ArrayList<Day>();
+		manager.forEachDay(day -> days.add(day));
+		return days;
+	}
+
+	/*
+	 * Writes a header with the given generation and a record for every day, event and
+	 * excluded range (excluded may be null) to a temporary file, then renames it to target.
+	 * */
+	private void write(File target, long generation, List<Day> days, long[] excluded) throws IOException
+	{
+		File temporary = new File(target.getPath() + ".tmp");
+		FileOutputStream file = new FileOutputStream(temporary);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+		CRC32 crc = new CRC32();
+		try
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(generation);
+
+			for (Day day : days)
+			{
+				putDay(day);
+				writeRecord(out, crc);
+
+				for (Event event : day.getEvents())
+				{
+					putEvent(EVENT, day.getEpochDay(), event);
+					writeRecord(out, crc);
+				}
+			}
+
+			for (int i = 0; excluded != null && i < excluded.length; i += 2)
+			{
+				putRange(EXCLUDE, excluded[i], excluded[i + 1]);
+				writeRecord(out, crc);
+			}
+			out.writeInt(0);
+			out.flush();
+
+			//The file has to be on disk before it replaces the old one
+			file.getFD().sync();
+		}
+		finally
+		{
+			out.close();
+		}
+
+		if (!temporary.renameTo(target))
+		{
+			target.delete();
+			if (!temporary.renameTo(target))
+			{
+				throw new IOException("cannot replace " + target);
+			}
+		}
+	}
+
+	public synchronized void close() throws IOException
+	{
+		if (channel != null)
+		{
+			sync();
+			channel.close();
+			channel = null;
+			map = null;
+		}
+	}
+
+	/*
+	 * Empties the log and gives it a new generation.
+	 * */
+	private void startLog(long newGeneration) throws IOException
+	{
+		generation = newGeneration;
+		channel.truncate(0);
+		channel.write(ByteBuffer.allocate(INITIAL_LOG_BYTES), 0);
+		map = channel.map(FileChannel.MapMode.READ_WRITE, 0, INITIAL_LOG_BYTES);
+
+		map.putInt(MAGIC);
+		map.putInt(VERSION);
+		map.putLong(generation);
+		map.force();
+		unsynced = 0;
+	}
+
+	/*
+	 * Copies the record body in scratch to the end of the log, growing the file if needed.
+	 * */
+	private void append()
+	{
+		scratch.flip();
+		int length = scratch.remaining();
+
+		try
+		{
+			//Keep room for the 0 length that marks the end of the records
+			if (map.remaining() < RECORD_HEADER_BYTES + length + 4)
+			{
+				grow(RECORD_HEADER_BYTES + length + 4);
+			}
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(scratch.array(), 0, length);
+
+		map.putInt(length);
+		map.putInt((int) crc.getValue());
+		map.put(scratch);
+
+		unsynced += 1;
+		if (syncEvery > 0 && unsynced >= syncEvery)
+		{
+			sync();
+		}
+	}
+
+	/*
+	 * Doubles the log file (at least) and maps it again.
+	 * */
+	private void grow(int needed) throws IOException
+	{
+		int position = map.position();
+		long size = Math.max((long) map.capacity()*2, (long) position + needed);
+		if (size > Integer.MAX_VALUE)
+		{
+			throw new IOException("log is full, take a snapshot");
+		}
+
+		map.force();
+		channel.write(ByteBuffer.allocate(1), size - 1);
+		map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		map.position(position);
+	}
+
+	/*
+	 * Builds the body of a DAY record in scratch.
+	 * */
+	private void putDay(Day day)
+	{
+		scratch.clear();
+		scratch.put(DAY);
+		scratch.putLong(day.getEpochDay());
+		scratch.put((byte) (day.isDayOff() ? 1 : 0));
+	}
+
+	/*
+	 * Builds the body of an EVENT or REMOVE record in scratch. Names are cut to
+	 * Short.MAX_VALUE bytes.
+	 * */
+	private void putEvent(byte type, long epochDay, Event event)
+	{
+		byte[] name = event.getName() == null ? null : event.getName().getBytes(StandardCharsets.UTF_8);
+		int nameLength = name == null ? 0 : Math.min(name.length, Short.MAX_VALUE);
+
+		ensureScratch(1 + 8 + 4 + 4 + 2 + nameLength);
+		scratch.put(type);
+		scratch.putLong(epochDay);
+		scratch.putInt(event.getStart());
+		scratch.putInt(event.getEnd());
+		if (name == null)
+		{
+			scratch.putShort((short) -1);
+		}
+		else
+		{
+			scratch.putShort((short) nameLength);
+			scratch.put(name, 0, nameLength);
+		}
+	}
+
+	/*
+	 * Builds the body of an EXCLUDE or INCLUDE record in scratch.
+	 * */
+	private void putRange(byte type, long fromDay, long toDay)
+	{
+		scratch.clear();
+		scratch.put(type);
+		scratch.putLong(fromDay);
+		scratch.putLong(toDay);
+	}
+
+	/*
+	 * Makes sure scratch is cleared and can hold a record body of the given size.
+	 * */
+	private void ensureScratch(int size)
+	{
+		if (scratch.capacity() < size)
+		{
+			scratch = ByteBuffer.allocate(Integer.highestOneBit(size)*2);
+		}
+		scratch.clear();
+	}
+
+	/*
+	 * Writes the record body in scratch, with its length and CRC, to a snapshot.
+	 * */
+	private void writeRecord(DataOutputStream out, CRC32 crc) throws IOException
+	{
+		crc.reset();
+		crc.update(scratch.array(), 0, scratch.position());
+		out.writeInt(scratch.position());
+		out.writeInt((int) crc.getValue());
+		out.write(scratch.array(), 0, scratch.position());
+	}
+
+	/*
+	 * Checks the header at the start of a buffer, returns its generation and leaves the
+	 * buffer positioned at the first record.
+	 * */
+	private static long readHeader(ByteBuffer buffer, File file) throws IOException
+	{
+		if (buffer.limit() < HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+		{
+			throw new IOException("not a calendar file " + file);
+		}
+		buffer.position(HEADER_BYTES);
+		return buffer.getLong(8);
+	}
+
+	/*
+	 * Applies the records from the buffer's position to a manager. Stops at the end marker,
+	 * at the end of the buffer or at the first record that is torn or fails its CRC, and
+	 * returns the offset it stopped at.
+	 * */
+	private static int replay(ByteBuffer buffer, CalendarManager manager)
+	{
+		CRC32 crc = new CRC32();
+		Calendar cal = Calendar.getInstance();
+		int position = buffer.position();
+
+		while (position + RECORD_HEADER_BYTES <= buffer.limit())
+		{
+			int length = buffer.getInt(position);
+			if (length <= 0 || length > buffer.limit() - position - RECORD_HEADER_BYTES)
+			{
+				break;
+			}
+
+			byte[] body = new byte[length];
+			buffer.position(position + RECORD_HEADER_BYTES);
+			buffer.get(body);
+
+			crc.reset();
+			crc.update(body, 0, length);
+			if ((int) crc.getValue() != buffer.getInt(position + 4) || !apply(ByteBuffer.wrap(body), manager, cal))
+			{
+				break;
+			}
+			position += RECORD_HEADER_BYTES + length;
+		}
+
+		buffer.position(position);
+		return position;
+	}
+
+	/*
+	 * Applies one record body to a manager. Returns false for a record it cannot read.
+	 * */
+	private static boolean apply(ByteBuffer body, CalendarManager manager, Calendar cal)
+	{
+		try
+		{
+			byte type = body.get();
+			long epochDay = body.getLong();
+			EpochDay.toCalendar(epochDay, cal);
+
+			if (type == DAY)
+			{
+				boolean dayOff = body.get() != 0;
+				manager.addDay(new Day(cal.get(Calendar.YEAR), cal.get(Calendar.MONTH),
+						cal.get(Calendar.DAY_OF_MONTH), dayOff));
+				return true;
+			}
+
+			if (type == EVENT || type == REMOVE)
+			{
+				int startMin = body.getInt();
+				int endMin = body.getInt();
+				short nameLength = body.getShort();
+				String name = null;
+				if (nameLength >= 0)
+				{
+					byte[] bytes = new byte[nameLength];
+					body.get(bytes);
+					name = new String(bytes, StandardCharsets.UTF_8);
+				}
+				Event event = new Event(name, cal.getTime(), EpochDay.dayOfWeek(epochDay), 0, startMin, 0, endMin);
+				if (type == EVENT)
+				{
+					manager.addEvent(event);
+				}
+				else
+				{
+					manager.removeEvent(event);
+				}
+				return true;
+			}
+
+			if (type == EXCLUDE)
+			{
+				manager.exclude(epochDay, body.getLong());
+				return true;
+			}
+
+			if (type == INCLUDE)
+			{
+				manager.include(epochDay, body.getLong());
+				return true;
+			}
+		}
+		catch (BufferUnderflowException e)
+		{
+			//falls through, the record is shorter than its type needs
+		}
+		return false;
+	}
+
+	private static byte[] readFully(File file) throws IOException
+	{
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try
+		{
+			byte[] bytes = new byte[(int) in.length()];
+			in.readFully(bytes);
+			return bytes;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,240 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.util.*;
+
+/*
+ * EventLogCheck
+ *
+ * Checks that EventLog recovery stops cleanly at a torn last record. A CalendarManager
+ * logs a series of changes, with a snapshot halfway, and the last record of its log is then
+ * damaged the way a crash in the middle of an append leaves it:
+ *
+ *		header		the file ends within the length and crc of the record
+ *		body		the file ends within the record body
+ *		crc			the body is complete but one of its bytes is wrong
+ *
+ * The log is recovered into a new manager, which has to hold exactly what a manager given
+ * every change but the last one holds. A change appended after recovery, and recovered
+ * again, has to come back as well, so the damaged bytes cannot be read as a record later.
+ *
+ *		java EventLogCheck [seed]
+ *
+ * Prints one line per kind of damage and exits with status 1 if any check failed.
+ *
+ * */
+
+public class EventLogCheck {
+
+	private static final String LOG_FILE = "calendar.log";
+	private static final int HEADER_BYTES = 16;
+	private static final int RECORD_HEADER_BYTES = 8;
+
+	private static final String[] DAMAGES = {"header", "body", "crc"};
+
+	public static void main(String[] args) throws IOException
+	{
+		long seed = args.length > 0 ? Long.parseLong(args[0]) : 1;
+
+		int failures = 0;
+		for (String damage : DAMAGES)
+		{
+			String failure = check(damage, new Random(seed));
+			System.out.println(damage + ": " + (failure == null ? "ok" : failure));
+			if (failure != null)
+			{
+				failures += 1;
+			}
+		}
+
+		if (failures > 0)
+		{
+			System.exit(1);
+		}
+	}
+
+	/*
+	 * Runs the check for one kind of damage. Returns null if it passed, what went wrong
+	 * otherwise.
+	 * */
+	private static String check(String damage, Random random) throws IOException
+	{
+		File directory = Files.createTempDirectory("eventlogcheck").toFile();
+		try
+		{
+			CalendarManager logged = new CalendarManager("logged");
+			CalendarManager expected = new CalendarManager("expected");
+			logged.openLog(directory, 1);
+
+			for (int i = 0; i < 400; i++)
+			{
+				change(random, logged, expected);
+				if (i == 200)
+				{
+					logged.snapshot();
+				}
+			}
+
+			//The last change goes to the log only, it is the one torn
+			Event last = randomEvent(random);
+			logged.addEvent(last);
+			logged.closeLog();
+
+			File logFile = new File(directory, LOG_FILE);
+			long lastRecord = lastRecordOffset(logFile);
+			if (lastRecord < 0)
+			{
+				return "no record found in the log";
+			}
+			tear(logFile, lastRecord, damage);
+
+			CalendarManager recovered = new CalendarManager("recovered");
+			recovered.openLog(directory, 1);
+			if (!describe(recovered).equals(describe(expected)))
+			{
+				return "recovery did not stop at the record before the torn one";
+			}
+
+			//Whatever was left of the torn record must not be read back after new appends
+			Event after = randomEvent(random);
+			recovered.addEvent(after);
+			expected.addEvent(after);
+			recovered.closeLog();
+
+			CalendarManager again = new CalendarManager("again");
+			again.openLog(directory, 1);
+			again.closeLog();
+			if (!describe(again).equals(describe(expected)))
+			{
+				return "a record appended after recovery was lost";
+			}
+			return null;
+		}
+		finally
+		{
+			for (File file : directory.listFiles())
+			{
+				file.delete();
+			}
+			directory.delete();
+		}
+	}
+
+	/*
+	 * Makes the same random change to both managers: mostly an event added, sometimes a day
+	 * off or an event removed.
+	 * */
+	private static void change(Random random, CalendarManager logged, CalendarManager expected)
+	{
+		int dice = random.nextInt(10);
+		if (dice == 0)
+		{
+			Calendar cal = randomDay(random);
+			logged.addDayOff(new Day(cal.get(Calendar.YEAR), cal.get(Calendar.MONTH), cal.get(Calendar.DAY_OF_MONTH), true));
+			expected.addDayOff(new Day(cal.get(Calendar.YEAR), cal.get(Calendar.MONTH), cal.get(Calendar.DAY_OF_MONTH), true));
+		}
+		else if (dice == 1)
+		{
+			Event event = randomEvent(random);
+			logged.addEvent(event);
+			expected.addEvent(event);
+			logged.removeEvent(event);
+			expected.removeEvent(event);
+		}
+		else
+		{
+			Event event = randomEvent(random);
+			logged.addEvent(event);
+			expected.addEvent(event);
+		}
+	}
+
+	private static Event randomEvent(Random random)
+	{
+		Calendar cal = randomDay(random);
+		int start = random.nextInt(23*60);
+		int end = start + 1 + random.nextInt(60);
+		String name = random.nextInt(4) == 0 ? null : "meeting " + random.nextInt(50);
+		return new Event(name, cal.getTime(), cal.get(Calendar.DAY_OF_WEEK), start/60, start%60, end/60, end%60);
+	}
+
+	private static Calendar randomDay(Random random)
+	{
+		Calendar cal = Calendar.getInstance();
+		cal.clear();
+		cal.set(2020, Calendar.JANUARY, 1);
+		cal.add(Calendar.DAY_OF_MONTH, random.nextInt(120));
+		return cal;
+	}
+
+	/*
+	 * Offset of the last record of a log file, -1 if it has none. Records follow the
+	 * header until a length of 0 (see EventLog).
+	 * */
+	private static long lastRecordOffset(File logFile) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(logFile.toPath()));
+		long last = -1;
+		int position = HEADER_BYTES;
+		while (position + RECORD_HEADER_BYTES <= buffer.limit())
+		{
+			int length = buffer.getInt(position);
+			if (length <= 0 || length > buffer.limit() - position - RECORD_HEADER_BYTES)
+			{
+				break;
+			}
+			last = position;
+			position += RECORD_HEADER_BYTES + length;
+		}
+		return last;
+	}
+
+	/*
+	 * Damages the record at an offset of a log file.
+	 * */
+	private static void tear(File logFile, long offset, String damage) throws IOException
+	{
+		try (RandomAccessFile file = new RandomAccessFile(logFile, "rw"))
+		{
+			file.seek(offset);
+			int length = file.readInt();
+
+			if (damage.equals("header"))
+			{
+				file.setLength(offset + RECORD_HEADER_BYTES/2);
+			}
+			else if (damage.equals("body"))
+			{
+				file.setLength(offset + RECORD_HEADER_BYTES + length/2);
+			}
+			else
+			{
+				long position = offset + RECORD_HEADER_BYTES + length - 1;
+				file.seek(position);
+				int value = file.read();
+				file.seek(position);
+				file.write(value ^ 0x5a);
+			}
+		}
+	}
+
+	/*
+	 * Every stored day of a manager with its events, one line per day in date order.
+	 * */
+	private static List<String> describe(CalendarManager manager)
+	{
+		final List<String> lines = new ArrayList<String>();
+		manager.forEachDay(day ->
+		{
+			StringBuilder line = new StringBuilder();
+			line.append(day.getEpochDay()).append(day.isDayOff() ? " off" : "");
+			for (Event event : day.getEvents())
+			{
+				line.append(' ').append(event.getStart()).append('-').append(event.getEnd()).append(' ').append(event.getName());
+			}
+			lines.add(line.toString());
+		});
+		Collections.sort(lines);
+		return lines;
+	}
+}
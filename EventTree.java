@@ -7,16 +7,74 @@ import java.util.*;
  * is the main mechanism behind determining event overlaps/collisions. It represents
  * the schedule for a particular day.
  * 
+ * The tree is kept balanced as an AVL tree so that days with thousands of events (shared
+ * rooms, events added in time order) still have O(log n) height. Nodes are ordered by
+ * start minute, events with equal start minutes are all kept (ties go right), and each
+ * node's maxMinutes is recomputed from its children after every rotation. Removal is the
+ * usual AVL deletion, rebalancing and recomputing maxMinutes along the path back up.
+ *
  * The idea for doing this: https://en.wikipedia.org/wiki/Interval_tree
  * 
  * The implementation guide (in C++): https://www.geeksforgeeks.org/interval-tree/
  * 
+ * Balancing: https://en.wikipedia.org/wiki/AVL_tree
+ *
  * Code from a previous data structures course I took which implements a BST in Java was also used as
  * a reference.
  *
+ * EventStore is what a Day needs from its schedule. EventTree, CompactEventTree (a
+ * smaller encoding of the same tree), OffHeapEventStore (that encoding outside the heap)
+ * and SmallEventArray (sorted arrays for days with few events) implement it.
+ *
  * */
 
-public class EventTree {
+interface EventStore extends Iterable<Event>
+{
+	//Mutators
+	
+	public void insert(Event newEvent);
+	
+	/*
+	 * Removes one event with the same start minute, end minute and name as event.
+	 * Returns false if the store holds no such event.
+	 * 
+	 * */
+	public boolean remove(Event event);
+	
+	/*
+	 * Replaces the events of the store with events sorted by start minute, in linear time.
+	 * 
+	 * */
+	public void rebuild(List<Event> sorted);
+	
+	//Accessors
+	
+	/*
+	 * Returns an event overlapping searchEvent, or null if there is none.
+	 * 
+	 * */
+	public Event overlapSearch(Event searchEvent);
+	
+	/*
+	 * Same as overlapSearch for the minutes start to end, without creating any object.
+	 * 
+	 * */
+	public boolean hasOverlap(int start, int end);
+	
+	/*
+	 * Iterates lazily, in order of start minute, over every event overlapping the minutes
+	 * start to end. Only subtrees that can hold an overlap are visited, so a call costs
+	 * O((k + 1) log n) for k overlaps instead of a walk of the whole tree.
+	 * 
+	 * */
+	public Iterator<Event> overlaps(int start, int end);
+	
+	public int size();
+	public boolean isEmpty();
+	public int height();
+}
+
+public class EventTree implements EventStore {
 	
 	/*
 	 * ------private members (Node)------
@@ -27,6 +85,9 @@ public class EventTree {
 	 * (maxMinutes, int):
 	 * represents the max end time for an event for a subtree.
 	 * 
+	 * (height, int):
+	 * represents the height of the subtree rooted at this node (a leaf is 1).
+	 *
 	 * (leftChild, node):
 	 * node's left child.
 	 * 
@@ -39,6 +100,7 @@ public class EventTree {
 	{
 		private Event event;
 		private int maxMinutes;
+		private int height;
 		private Node leftChild;
 		private Node rightChild;
 	
@@ -46,14 +108,21 @@ public class EventTree {
 		{
 			this.event = event;
 			this.maxMinutes = event.getEnd();
+			this.height = 1;
 			this.leftChild = null;
 			this.rightChild = null;
 		}
 	}
 	
 	//tree root
-	public Node root;
+	private Node root;
 	
+	//number of events in the tree
+	private int size;
+
+	//whether the running remove found its event
+	private boolean removed;
+
 	/*
 	 * Default constructor for EventTree
 	 * 
@@ -61,84 +130,424 @@ public class EventTree {
 	public EventTree()
 	{
 		this.root = null;
+		this.size = 0;
+		this.removed = false;
 	}
 	
 	public void insert(Event newEvent)
 	{
-		Node newNode = new Node(newEvent);
-		
-		if(root == null)//empty tree
-		{
-			root = newNode;
-		}
-		else
-		{
-			//TODO call recursive insert
-			insert(root, newEvent);
-		}
+		root = insert(root, newEvent);
+		size += 1;
 	}
 	
 	/*
-	 * Inserts node at spot in a BST manner.
+	 * Inserts node at spot in a BST manner and rebalances the path back up to the root.
+	 * Events with the same start minute as an existing node go right.
 	 * 
 	 * */
-	public Node insert(Node node, Event newEvent)
+	private Node insert(Node node, Event newEvent)
 	{
 		//it found the empty spot where it belongs
-		if(node == null)
+		if (node == null)
 		{
-			Node newNode = new Node(newEvent);
-			node = newNode;
+			return new Node(newEvent);
 		}
 		
-		int start = node.event.getStart();
-		
 		//Go left
-		if (newEvent.getStart() < start)
+		if (newEvent.getStart() < node.event.getStart())
 		{
 			node.leftChild = insert(node.leftChild, newEvent);
 		}
 		
 		//Go right
-		else if (newEvent.getStart() > start)
+		else
 		{
 			node.rightChild = insert(node.rightChild, newEvent);
 		}
 		
-		//Update the max for the subtree
-		if (node.maxMinutes < newEvent.getEnd())
+		return rebalance(node);
+	}
+	
+	public boolean remove(Event event)
+	{
+		removed = false;
+		root = remove(root, event);
+		if (removed)
 		{
-			node.maxMinutes = newEvent.getEnd();
+			size -= 1;
 		}
-		
+		return removed;
+	}
+
+	/*
+	 * Removes the first node found holding an event equal to event from a subtree and
+	 * rebalances the path back up. Rotations can move events with equal start minutes
+	 * to either side, so both subtrees are searched on a tie. A subtree whose maxMinutes
+	 * is below the event's end cannot hold it and is skipped.
+	 *
+	 * */
+	private Node remove(Node node, Event event)
+	{
+		if (node == null || node.maxMinutes < event.getEnd())
+		{
+			return node;
+		}
+
+		if (event.getStart() < node.event.getStart())
+		{
+			node.leftChild = remove(node.leftChild, event);
+		}
+		else if (event.getStart() > node.event.getStart())
+		{
+			node.rightChild = remove(node.rightChild, event);
+		}
+		else if (sameEvent(node.event, event))
+		{
+			removed = true;
+			return removeNode(node);
+		}
+		else
+		{
+			node.leftChild = remove(node.leftChild, event);
+			if (!removed)
+			{
+				node.rightChild = remove(node.rightChild, event);
+			}
+		}
+
+		return removed ? rebalance(node) : node;
+	}
+
+	/*
+	 * Unlinks a node, replacing it with its successor (the leftmost node of its right
+	 * subtree) when it has two children. Returns the new root of the subtree.
+	 *
+	 * */
+	private Node removeNode(Node node)
+	{
+		if (node.leftChild == null)
+		{
+			return node.rightChild;
+		}
+		if (node.rightChild == null)
+		{
+			return node.leftChild;
+		}
+
+		Node successor = node.rightChild;
+		while (successor.leftChild != null)
+		{
+			successor = successor.leftChild;
+		}
+		successor.rightChild = removeFirst(node.rightChild);
+		successor.leftChild = node.leftChild;
+		return rebalance(successor);
+	}
+
+	/*
+	 * Removes the leftmost node of a subtree and rebalances the path back up.
+	 * */
+	private Node removeFirst(Node node)
+	{
+		if (node.leftChild == null)
+		{
+			return node.rightChild;
+		}
+		node.leftChild = removeFirst(node.leftChild);
+		return rebalance(node);
+	}
+
+	/*
+	 * Whether two events have the same start minute, end minute and name.
+	 * */
+	static boolean sameEvent(Event a, Event b)
+	{
+		return a.getStart() == b.getStart() && a.getEnd() == b.getEnd() 
+				&& Objects.equals(a.getName(), b.getName());
+	}
+
+	/*
+	 * Builds a balanced tree from events sorted by start minute in linear time. The middle
+	 * event of every range becomes the root of its subtree, and heights and maxMinutes are
+	 * filled in bottom-up.
+	 *
+	 * */
+	public static EventTree build(List<Event> sorted)
+	{
+		EventTree tree = new EventTree();
+		tree.rebuild(sorted);
+		return tree;
+	}
+
+	public void rebuild(List<Event> sorted)
+	{
+		root = build(sorted, 0, sorted.size());
+		size = sorted.size();
+	}
+
+	private Node build(List<Event> sorted, int from, int to)
+	{
+		if (from >= to)
+		{
+			return null;
+		}
+
+		int middle = (from + to) >>> 1;
+		Node node = new Node(sorted.get(middle));
+		node.leftChild = build(sorted, from, middle);
+		node.rightChild = build(sorted, middle + 1, to);
+		update(node);
 		return node;
 	}
-	
+
 	/*
 	 * Method used for traversing the tree in order to determine overlap. If
 	 * this method returns null, then an overlap was not found.
 	 * */
-	public Event overlapSearch(Node root, Event searchEvent)
+	public Event overlapSearch(Event searchEvent)
 	{
-		if (root == null)
+		Node node = root;
+
+		while (node != null)
 		{
-			return null;
+			//Overlap between node and event
+			if (node.event.isOverlap(searchEvent))
+			{
+				return node.event;
+			}
+
+			//If the left subtree's max is >= the event's start time, go left
+			if (node.leftChild != null && (node.leftChild.maxMinutes >= searchEvent.getStart()))
+			{
+				node = node.leftChild;
+			}
+
+			//Otherwise, go right
+			else
+			{
+				node = node.rightChild;
+			}
 		}
-		
-		//Overlap between root and event
-		if (root.event.isOverlap(searchEvent))
+		return null;
+	}
+
+	public boolean hasOverlap(int start, int end)
+	{
+		Node node = root;
+
+		while (node != null)
+		{
+			if (node.event.getStart() <= end && start <= node.event.getEnd())
+			{
+				return true;
+			}
+
+			if (node.leftChild != null && node.leftChild.maxMinutes >= start)
+			{
+				node = node.leftChild;
+			}
+			else
+			{
+				node = node.rightChild;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * In-order walk that skips every subtree whose maxMinutes is before start, and stops
+	 * at the first node starting after end since every node left to visit starts later.
+	 * */
+	public Iterator<Event> overlaps(final int start, final int end)
+	{
+		return new Iterator<Event>()
+		{
+			//nodes whose event and right subtree have not been visited yet
+			private ArrayDeque<Node> path = prunedPath(root, new ArrayDeque<Node>());
+			private Event next = advance();
+
+			private ArrayDeque<Node> prunedPath(Node node, ArrayDeque<Node> path)
+			{
+				while (node != null && node.maxMinutes >= start)
+				{
+					path.push(node);
+					node = node.leftChild;
+				}
+				return path;
+			}
+
+			private Event advance()
+			{
+				while (!path.isEmpty())
+				{
+					Node node = path.pop();
+					if (node.event.getStart() > end)
+					{
+						path.clear();
+						return null;
+					}
+					prunedPath(node.rightChild, path);
+					if (node.event.getEnd() >= start)
+					{
+						return node.event;
+					}
+				}
+				return null;
+			}
+
+			public boolean hasNext()
+			{
+				return next != null;
+			}
+
+			public Event next()
+			{
+				if (next == null)
+				{
+					throw new NoSuchElementException();
+				}
+				Event event = next;
+				next = advance();
+				return event;
+			}
+		};
+	}
+
+	/*
+	 * Iterates over the events of the tree in order of start minute.
+	 * */
+	public Iterator<Event> iterator()
+	{
+		return new Iterator<Event>()
+		{
+			//nodes whose event and right subtree have not been visited yet
+			private ArrayDeque<Node> path = leftPath(root, new ArrayDeque<Node>());
+
+			public boolean hasNext()
+			{
+				return !path.isEmpty();
+			}
+
+			public Event next()
+			{
+				if (path.isEmpty())
+				{
+					throw new NoSuchElementException();
+				}
+				Node node = path.pop();
+				leftPath(node.rightChild, path);
+				return node.event;
+			}
+		};
+	}
+
+	/*
+	 * Pushes a node and its chain of left children onto a stack.
+	 * */
+	private ArrayDeque<Node> leftPath(Node node, ArrayDeque<Node> path)
+	{
+		while (node != null)
 		{
-			return root.event;
+			path.push(node);
+			node = node.leftChild;
 		}
+		return path;
+	}
 		
-		//If the left subtree's max is >= the event's start time, go left
-		if (root.leftChild != null && (root.leftChild.maxMinutes >= searchEvent.getStart()))
+	public int size()
+	{
+		return this.size;
+	}
+
+	public boolean isEmpty()
+	{
+		return this.size == 0;
+	}
+
+	/*
+	 * Height of the tree, 0 for an empty tree.
+	 * */
+	public int height()
+	{
+		return height(root);
+	}
+
+	private static int height(Node node)
+	{
+		return node == null ? 0 : node.height;
+	}
+
+	/*
+	 * Recomputes height and maxMinutes of a node from its children.
+	 * */
+	private void update(Node node)
+	{
+		node.height = Math.max(height(node.leftChild), height(node.rightChild)) + 1;
+
+		int max = node.event.getEnd();
+		if (node.leftChild != null && node.leftChild.maxMinutes > max)
+		{
+			max = node.leftChild.maxMinutes;
+		}
+		if (node.rightChild != null && node.rightChild.maxMinutes > max)
 		{
-			return overlapSearch(root.leftChild, searchEvent);
+			max = node.rightChild.maxMinutes;
 		}
+		node.maxMinutes = max;
+	}
 		
-		//Otherwise, go right
-		return overlapSearch(root.rightChild, searchEvent);
+	/*
+	 * Restores the AVL property at a node whose subtrees differ in height by at most two.
+	 * Returns the new root of the subtree.
+	 * */
+	private Node rebalance(Node node)
+	{
+		update(node);
+		int balance = height(node.leftChild) - height(node.rightChild);
+
+		//Left heavy
+		if (balance > 1)
+		{
+			if (height(node.leftChild.leftChild) < height(node.leftChild.rightChild))
+			{
+				node.leftChild = rotateLeft(node.leftChild);
+			}
+			return rotateRight(node);
+		}
+
+		//Right heavy
+		if (balance < -1)
+		{
+			if (height(node.rightChild.rightChild) < height(node.rightChild.leftChild))
+			{
+				node.rightChild = rotateRight(node.rightChild);
+			}
+			return rotateLeft(node);
+		}
+		return node;
+	}
+
+	private Node rotateRight(Node node)
+	{
+		Node pivot = node.leftChild;
+		node.leftChild = pivot.rightChild;
+		pivot.rightChild = node;
+
+		//node is now below pivot so it has to be updated first
+		update(node);
+		update(pivot);
+		return pivot;
+	}
+
+	private Node rotateLeft(Node node)
+	{
+		Node pivot = node.rightChild;
+		node.rightChild = pivot.leftChild;
+		pivot.leftChild = node;
+
+		update(node);
+		update(pivot);
+		return pivot;
 	}
 
 }
@@ -0,0 +1,300 @@
+import java.util.*;
+
+/*
+ * ExclusionIndex
+ *
+ * Days excluded from meetings (vacations, holidays, company shutdowns) stored as ranges of
+ * epoch days instead of a Day per day off. A two week vacation is one range, however many
+ * days it covers, and the ranges are kept sorted, disjoint and merged, so asking how many
+ * weekly occurrences fall into them only visits the ranges the request covers.
+ *
+ * An index is copy-on-write: every change builds a new array of ranges and publishes it
+ * with a single volatile write. Readers never lock and never see half a change, so one
+ * index (an org-wide holiday calendar, say) can be shared by any number of
+ * CalendarManagers on any number of threads and is referenced by each, not copied (see
+ * CalendarManager.addSharedExclusions).
+ *
+ * */
+
+public class ExclusionIndex {
+
+	/*
+	 * ------private members------
+	 *
+	 * (name, String):
+	 * name of the index, for instance the holiday calendar it holds.
+	 *
+	 * (ranges, long[]):
+	 * first and last epoch day (inclusive) of every range, {from0, to0, from1, to1, ...},
+	 * sorted, disjoint and with no two ranges next to each other. Never changed once
+	 * published.
+	 *
+	 * */
+
+	private String name;
+	private volatile long[] ranges;
+
+	/*
+	 * Constructor for an empty ExclusionIndex.
+	 *
+	 * */
+	public ExclusionIndex(String name)
+	{
+		this.name = name;
+		this.ranges = new long[0];
+	}
+
+	/*
+	 * Returns an index with the same name and ranges whose later changes are its own.
+	 * Published ranges are never changed, so they are shared rather than copied.
+	 * */
+	public ExclusionIndex copy()
+	{
+		ExclusionIndex copy = new ExclusionIndex(name);
+		copy.ranges = ranges;
+		return copy;
+	}
+
+	//Mutators
+
+	/*
+	 * Excludes the days from from to to, both included.
+	 * */
+	public void add(Date from, Date to)
+	{
+		add(EpochDay.fromDate(from), EpochDay.fromDate(to));
+	}
+
+	/*
+	 * Excludes the epoch days fromDay to toDay (inclusive), merging the range with every
+	 * range it overlaps or touches.
+	 * */
+	public synchronized void add(long fromDay, long toDay)
+	{
+		if (toDay < fromDay)
+		{
+			return;
+		}
+
+		long[] current = ranges;
+		int count = current.length/2;
+
+		//Ranges before first end before the new one and do not touch it, ranges from
+		//last on start after it
+		int first = firstEndingFrom(current, fromDay - 1);
+		int last = first;
+		while (last < count && current[2*last] <= toDay + 1)
+		{
+			fromDay = Math.min(fromDay, current[2*last]);
+			toDay = Math.max(toDay, current[2*last + 1]);
+			last += 1;
+		}
+
+		long[] changed = new long[2*(count - (last - first) + 1)];
+		System.arraycopy(current, 0, changed, 0, 2*first);
+		changed[2*first] = fromDay;
+		changed[2*first + 1] = toDay;
+		System.arraycopy(current, 2*last, changed, 2*first + 2, 2*(count - last));
+		ranges = changed;
+	}
+
+	/*
+	 * Stops excluding the days from from to to, both included.
+	 * */
+	public boolean remove(Date from, Date to)
+	{
+		return remove(EpochDay.fromDate(from), EpochDay.fromDate(to));
+	}
+
+	/*
+	 * Stops excluding the epoch days fromDay to toDay (inclusive), cutting the ranges
+	 * that overlap them. Returns false if none of those days was excluded.
+	 * */
+	public synchronized boolean remove(long fromDay, long toDay)
+	{
+		long[] current = ranges;
+		int count = current.length/2;
+		int first = firstEndingFrom(current, fromDay);
+		if (toDay < fromDay || first == count || current[2*first] > toDay)
+		{
+			return false;
+		}
+
+		//Ranges from first to last overlap the removed days, only what is left of the first
+		//and the last on either side of them is kept
+		int last = first;
+		while (last < count && current[2*last] <= toDay)
+		{
+			last += 1;
+		}
+
+		long[] kept = new long[4];
+		int keptLength = 0;
+		if (current[2*first] < fromDay)
+		{
+			kept[keptLength++] = current[2*first];
+			kept[keptLength++] = fromDay - 1;
+		}
+		if (current[2*(last - 1) + 1] > toDay)
+		{
+			kept[keptLength++] = toDay + 1;
+			kept[keptLength++] = current[2*(last - 1) + 1];
+		}
+
+		long[] changed = new long[current.length - 2*(last - first) + keptLength];
+		System.arraycopy(current, 0, changed, 0, 2*first);
+		System.arraycopy(kept, 0, changed, 2*first, keptLength);
+		System.arraycopy(current, 2*last, changed, 2*first + keptLength, current.length - 2*last);
+		ranges = changed;
+		return true;
+	}
+
+	//Accessors
+
+	public String getName()
+	{
+		return this.name;
+	}
+
+	/*
+	 * Number of ranges, after merging.
+	 * */
+	public int size()
+	{
+		return ranges.length/2;
+	}
+
+	/*
+	 * Whether an epoch day is excluded.
+	 * */
+	public boolean contains(long epochDay)
+	{
+		long[] current = ranges;
+		int index = firstEndingFrom(current, epochDay);
+		return index < current.length/2 && current[2*index] <= epochDay;
+	}
+
+	/*
+	 * Counts the weekly occurrences firstDay, firstDay + 7, ... up to lastDay that fall into
+	 * a range of any of the indexes. Occurrences in a week whose bit is set in counted
+	 * (days off the caller already counted) are left out, counted may be null.
+	 *
+	 * The indexes are merged on the fly: their ranges within the request are taken in
+	 * order of first day and overlapping ranges are joined, so a day excluded by several
+	 * indexes is counted once. Each merged range is counted with two divisions.
+	 * */
+	public static int countOccurrences(ExclusionIndex[] indexes, long firstDay, long lastDay, WeekBitSet counted)
+	{
+		if (lastDay < firstDay)
+		{
+			return 0;
+		}
+
+		//next holds the array index of the next range of every index
+		long[][] lists = new long[indexes.length][];
+		int[] next = new int[indexes.length];
+		for (int i = 0; i < indexes.length; i++)
+		{
+			lists[i] = indexes[i].ranges;
+			next[i] = 2*firstEndingFrom(lists[i], firstDay);
+		}
+
+		int occurrences = 0;
+		boolean open = false;
+		long runFrom = 0;
+		long runTo = 0;
+		while (true)
+		{
+			//The range starting first among the indexes, if it starts within the request
+			int best = -1;
+			long from = lastDay + 1;
+			for (int i = 0; i < lists.length; i++)
+			{
+				if (next[i] < lists[i].length && lists[i][next[i]] < from)
+				{
+					best = i;
+					from = lists[i][next[i]];
+				}
+			}
+			if (best < 0)
+			{
+				break;
+			}
+
+			long to = lists[best][next[best] + 1];
+			next[best] += 2;
+
+			if (open && from <= runTo + 1)
+			{
+				runTo = Math.max(runTo, to);
+				continue;
+			}
+			if (open)
+			{
+				occurrences += countRun(runFrom, runTo, firstDay, lastDay, counted);
+			}
+			open = true;
+			runFrom = from;
+			runTo = to;
+		}
+		if (open)
+		{
+			occurrences += countRun(runFrom, runTo, firstDay, lastDay, counted);
+		}
+		return occurrences;
+	}
+
+	/*
+	 * Weekly occurrences from firstDay to lastDay within the days from to to, less the
+	 * ones in weeks set in counted.
+	 * */
+	private static int countRun(long from, long to, long firstDay, long lastDay, WeekBitSet counted)
+	{
+		//Days after firstDay of the first and last occurrence within the run, both are
+		//clipped to the request so plain division will do
+		long firstIn = (Math.max(from, firstDay) - firstDay + 6)/7*7;
+		long lastIn = (Math.min(to, lastDay) - firstDay)/7*7;
+		if (lastIn < firstIn)
+		{
+			return 0;
+		}
+
+		int occurrences = (int) ((lastIn - firstIn)/7 + 1);
+		if (counted != null)
+		{
+			occurrences -= counted.count(Math.floorDiv(firstDay + firstIn, 7), Math.floorDiv(firstDay + lastIn, 7));
+		}
+		return occurrences;
+	}
+
+	/*
+	 * Index of the first range of ranges ending on or after an epoch day, the number of
+	 * ranges if there is none. Ranges are disjoint and sorted, so their ends are too.
+	 * */
+	private static int firstEndingFrom(long[] ranges, long epochDay)
+	{
+		int low = 0;
+		int high = ranges.length/2;
+		while (low < high)
+		{
+			int middle = (low + high) >>> 1;
+			if (ranges[2*middle + 1] < epochDay)
+			{
+				low = middle + 1;
+			}
+			else
+			{
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/*
+	 * Every range of the index, {from0, to0, from1, to1, ...}. The array is a copy.
+	 * */
+	public long[] getRanges()
+	{
+		return ranges.clone();
+	}
+}
@@ -0,0 +1,130 @@
+import java.util.*;
+
+/*
+ * FreeSlotFinder
+ *
+ * Finds the weekly time windows that are free for every one of several users, so a
+ * recurring meeting can be put where it conflicts with nobody's schedule. Each user is a
+ * CalendarManager and each of their days on the requested weekday contributes a list of
+ * busy spans sorted by start minute (see CalendarManager.getBusySpans). The lists of all
+ * users and all weeks are merged in one pass (k-way merge through a PriorityQueue), and
+ * the gaps left between the merged busy spans are the free windows.
+ *
+ * Like checkOccurrencesSchedule, only events make time busy, days off are not taken
+ * into account.
+ *
+ * */
+
+public final class FreeSlotFinder {
+
+	//last minute of a day, events run from minute 0 to minute 1440
+	private static final int END_OF_DAY = 1440;
+
+	private FreeSlotFinder()
+	{
+	}
+
+	/*
+	 * Returns the windows of at least duration minutes on a weekday (1-7, Sunday is 1) that
+	 * are free for every manager on every such weekday from startDate to endDate (inclusive).
+	 * Windows are returned as Events (start and end minute, no date or name) sorted by start
+	 * minute. Just like Event.isOverlap, a window ends one minute before the next busy
+	 * span starts, so a meeting from window.getStart() to window.getStart() + duration
+	 * overlaps nobody.
+	 * */
+	public static List<Event> findFreeSlots(List<CalendarManager> managers, int dayOfWeek, int duration,
+			Date startDate, Date endDate)
+	{
+		if (dayOfWeek < 1 || dayOfWeek > 7)
+		{
+			throw new IllegalArgumentException("dayOfWeek must be 1-7: " + dayOfWeek);
+		}
+		if (duration < 0)
+		{
+			throw new IllegalArgumentException("duration cannot be negative: " + duration);
+		}
+
+		//One cursor per (user, day) list of busy spans, ordered by the start of its next span
+		PriorityQueue<Cursor> cursors = new PriorityQueue<Cursor>();
+		for (CalendarManager manager : managers)
+		{
+			for (int[] spans : manager.getBusySpans(dayOfWeek, startDate, endDate))
+			{
+				if (spans.length > 0)
+				{
+					cursors.add(new Cursor(spans));
+				}
+			}
+		}
+
+		List<Event> windows = new ArrayList<Event>();
+
+		//First minute not covered by any busy span merged so far
+		int freeFrom = 0;
+		while (!cursors.isEmpty())
+		{
+			Cursor cursor = cursors.poll();
+			int start = cursor.start();
+			int end = cursor.end();
+
+			if (start - 1 - freeFrom >= duration)
+			{
+				windows.add(window(dayOfWeek, freeFrom, start - 1));
+			}
+			freeFrom = Math.max(freeFrom, end + 1);
+
+			if (cursor.advance())
+			{
+				cursors.add(cursor);
+			}
+		}
+
+		if (END_OF_DAY - freeFrom >= duration)
+		{
+			windows.add(window(dayOfWeek, freeFrom, END_OF_DAY));
+		}
+		return windows;
+	}
+
+	private static Event window(int dayOfWeek, int start, int end)
+	{
+		return new Event(null, dayOfWeek, 0, start, 0, end);
+	}
+
+	/*
+	 * Position in one list of busy spans {start0, end0, start1, end1, ...}.
+	 * */
+	private static class Cursor implements Comparable<Cursor>
+	{
+		private int[] spans;
+		private int index;
+
+		Cursor(int[] spans)
+		{
+			this.spans = spans;
+			this.index = 0;
+		}
+
+		int start()
+		{
+			return spans[index];
+		}
+
+		int end()
+		{
+			return spans[index + 1];
+		}
+
+		//Moves to the next span, returns false when there is none
+		boolean advance()
+		{
+			index += 2;
+			return index < spans.length;
+		}
+
+		public int compareTo(Cursor other)
+		{
+			return Integer.compare(start(), other.start());
+		}
+	}
+}
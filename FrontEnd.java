@@ -16,11 +16,22 @@ class MeetingRequest
 	public Date endDate;
 	public Event event;
 	
+	//When set, the meeting follows this rule instead of repeating every week on
+	//the event's weekday
+	public RecurrenceRule rule;
+	
 	MeetingRequest(Date startDate,Date endDate,Event event)
 	{  
         this.startDate=startDate;  
         this.endDate=endDate;  
         this.event=event;  
+        this.rule=null;  
+    }     
+	
+	MeetingRequest(Date startDate,Date endDate,Event event,RecurrenceRule rule)
+	{  
+        this(startDate,endDate,event);  
+        this.rule=rule;  
     }     
 } 
 
@@ -89,9 +100,8 @@ public class FrontEnd {
 		
 		System.out.println("Occurrences for 2019-2020 Wed and 2020-2021 Thurs:");
 		int totalMeetings = 0;
-		for (MeetingRequest request : requests_1)
+		for (int occurrences : calendarMgr_1.checkOccurrencesSchedule(requests_1))
 		{
-			int occurrences = calendarMgr_1.checkOccurrencesSchedule(request);
 			System.out.println(occurrences);
 			totalMeetings += occurrences;
 		}
@@ -0,0 +1,389 @@
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+/*
+ * ImporterCheck
+ *
+ * Checks CalendarImporter against a generated corpus. An .ics file and a CSV file are
+ * written with every event, day off and malformed record also kept in a model, then each
+ * is imported into a new CalendarManager. The counters of the Result and the events and
+ * excluded days the manager ends up with have to match the model.
+ *
+ * The .ics file holds folded lines (continued with a space or a tab), VALARMs with a
+ * DTSTART and SUMMARY of their own, TZID and UTC times (one crossing midnight), all-day
+ * events on dates that already have timed events and before them, lines longer than
+ * CalendarImporter.MAX_LINE inside and outside a VEVENT, and a VEVENT cut off by the end
+ * of the file. The CSV file holds quoted names with "" escapes and embedded commas, days
+ * off on dates with events, lines longer than MAX_LINE and rows that cannot be read.
+ *
+ *		java ImporterCheck [blocks]
+ *
+ * Prints one line per file and exits with status 1 if any check failed. Times are checked
+ * in UTC, the default time zone is set to it.
+ *
+ * */
+
+public class ImporterCheck {
+
+	private static final String ZONE = "America/New_York";
+	private static final String CRLF = "\r\n";
+
+	public static void main(String[] args) throws IOException
+	{
+		int blocks = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+
+		File directory = Files.createTempDirectory("importercheck").toFile();
+		int failures = 0;
+		try
+		{
+			Model ics = new Model();
+			File icsFile = new File(directory, "corpus.ics");
+			writeIcs(icsFile, blocks, ics);
+			failures += report("ics", check(icsFile, ics));
+
+			Model csv = new Model();
+			File csvFile = new File(directory, "corpus.csv");
+			writeCsv(csvFile, blocks, csv);
+			failures += report("csv", check(csvFile, csv));
+		}
+		finally
+		{
+			for (File file : directory.listFiles())
+			{
+				file.delete();
+			}
+			directory.delete();
+		}
+
+		if (failures > 0)
+		{
+			System.exit(1);
+		}
+	}
+
+	private static int report(String name, String failure)
+	{
+		System.out.println(name + ": " + (failure == null ? "ok" : failure));
+		return failure == null ? 0 : 1;
+	}
+
+	/*
+	 * Imports a file in small batches and compares the outcome with the model. Returns
+	 * null if they match, what differs otherwise.
+	 * */
+	private static String check(File file, Model model) throws IOException
+	{
+		CalendarManager manager = new CalendarManager("import");
+		CalendarImporter.Result result = new CalendarImporter(manager, 7).importFile(file);
+
+		if (result.getEvents() != model.events || result.getDaysOff() != model.daysOff
+				|| result.getMalformed() != model.malformed)
+		{
+			return "counted " + result.getEvents() + " events, " + result.getDaysOff() + " days off, "
+					+ result.getMalformed() + " malformed, expected " + model.events + ", " + model.daysOff
+					+ ", " + model.malformed;
+		}
+
+		final TreeMap<Long, List<String>> stored = new TreeMap<Long, List<String>>();
+		manager.forEachDay(day ->
+		{
+			List<String> events = new ArrayList<String>();
+			for (Event event : day.getEvents())
+			{
+				events.add(describe(event.getStart(), event.getEnd(), event.getName()));
+			}
+			if (!events.isEmpty())
+			{
+				Collections.sort(events);
+				stored.put(day.getEpochDay(), events);
+			}
+		});
+		for (List<String> events : model.days.values())
+		{
+			Collections.sort(events);
+		}
+		if (!stored.equals(model.days))
+		{
+			return "the manager holds other events than the file";
+		}
+
+		ExclusionIndex exclusions = manager.getExclusions();
+		long excluded = 0;
+		long[] ranges = exclusions.getRanges();
+		for (int i = 0; i < ranges.length; i += 2)
+		{
+			excluded += ranges[i + 1] - ranges[i] + 1;
+		}
+		if (excluded != model.excluded.size())
+		{
+			return excluded + " days excluded, expected " + model.excluded.size();
+		}
+		for (long epochDay : model.excluded)
+		{
+			if (!exclusions.contains(epochDay))
+			{
+				return "day " + epochDay + " is not excluded";
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Writes blocks of VEVENTs, each block on its own three days from January 6th 2020.
+	 * */
+	private static void writeIcs(File file, int blocks, Model model) throws IOException
+	{
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)))
+		{
+			out.write("BEGIN:VCALENDAR" + CRLF);
+			out.write("VERSION:2.0" + CRLF);
+
+			//Too long, but outside any VEVENT so nothing is lost
+			out.write("X-WR-CALDESC:" + filler(CalendarImporter.MAX_LINE) + CRLF);
+
+			for (int i = 0; i < blocks; i++)
+			{
+				long day = EpochDay.of(2020, Calendar.JANUARY, 6) + 3*i;
+				String date = icsDate(day);
+
+				//An all-day event before or after the timed events of its date
+				if (i % 2 == 1)
+				{
+					writeAllDay(out, "Birthday " + i, day, 1, model);
+				}
+
+				//Folded summary, continued once with a space and once with a tab
+				out.write("BEGIN:VEVENT" + CRLF);
+				out.write("SUMMARY:Planning" + CRLF + "  session" + CRLF + "\t " + i + CRLF);
+				out.write("DTSTART:" + date + "T090000" + CRLF);
+				out.write("DTEND:" + date + "T100000" + CRLF);
+				out.write("END:VEVENT" + CRLF);
+				model.addEvent(day, 9*60, 10*60, "Planning session " + i);
+
+				//The VALARM's DTSTART and SUMMARY belong to the alarm, not the event
+				out.write("BEGIN:VEVENT" + CRLF);
+				out.write("SUMMARY:Review " + i + CRLF);
+				out.write("DTSTART:" + date + "T110000" + CRLF);
+				out.write("BEGIN:VALARM" + CRLF);
+				out.write("TRIGGER:-PT15M" + CRLF);
+				out.write("DTSTART:19700101T000000" + CRLF);
+				out.write("SUMMARY:Alarm" + CRLF);
+				out.write("END:VALARM" + CRLF);
+				out.write("DTEND:" + date + "T113000" + CRLF);
+				out.write("END:VEVENT" + CRLF);
+				model.addEvent(day, 11*60, 11*60 + 30, "Review " + i);
+
+				//New York evening, early next morning in UTC
+				out.write("BEGIN:VEVENT" + CRLF);
+				out.write("SUMMARY:Call " + i + CRLF);
+				out.write("DTSTART;TZID=" + ZONE + ":" + date + "T200000" + CRLF);
+				out.write("DTEND;TZID=\"" + ZONE + "\":" + date + "T213000" + CRLF);
+				out.write("END:VEVENT" + CRLF);
+				model.addZonedEvent(day, 20*60, 21*60 + 30, "Call " + i);
+
+				out.write("BEGIN:VEVENT" + CRLF);
+				out.write("SUMMARY:Sync\\, remote " + i + CRLF);
+				out.write("DTSTART:" + date + "T140000Z" + CRLF);
+				out.write("DTEND:" + date + "T150000Z" + CRLF);
+				out.write("END:VEVENT" + CRLF);
+				model.addEvent(day, 14*60, 15*60, "Sync, remote " + i);
+
+				if (i % 2 == 0)
+				{
+					writeAllDay(out, "Birthday " + i, day, 1, model);
+				}
+				if (i % 10 == 0)
+				{
+					writeAllDay(out, "Offsite " + i, day + 1, 2, model);
+				}
+
+				if (i % 25 == 0)
+				{
+					//A property line too long to be read
+					out.write("BEGIN:VEVENT" + CRLF);
+					out.write("SUMMARY:Long " + i + CRLF);
+					out.write("DESCRIPTION:" + filler(CalendarImporter.MAX_LINE + 10) + CRLF);
+					out.write("DTSTART:" + date + "T160000" + CRLF);
+					out.write("DTEND:" + date + "T170000" + CRLF);
+					out.write("END:VEVENT" + CRLF);
+					model.malformed += 1;
+
+					//Lines short enough on their own, too long once unfolded
+					out.write("BEGIN:VEVENT" + CRLF);
+					out.write("SUMMARY:" + filler(CalendarImporter.MAX_LINE/2) + CRLF);
+					out.write(" " + filler(CalendarImporter.MAX_LINE/2) + CRLF);
+					out.write("DTSTART:" + date + "T170000" + CRLF);
+					out.write("END:VEVENT" + CRLF);
+					model.malformed += 1;
+				}
+				if (i % 20 == 0)
+				{
+					out.write("BEGIN:VEVENT" + CRLF);
+					out.write("SUMMARY:No start " + i + CRLF);
+					out.write("END:VEVENT" + CRLF);
+					model.malformed += 1;
+				}
+			}
+
+			//Cut off by the end of the file
+			out.write("BEGIN:VEVENT" + CRLF);
+			out.write("SUMMARY:Cut off" + CRLF);
+			out.write("DTSTART:20200101T090000" + CRLF);
+			out.write("DTEND:20200101T1000");
+			model.malformed += 1;
+		}
+	}
+
+	private static void writeAllDay(Writer out, String summary, long day, int days, Model model) throws IOException
+	{
+		out.write("BEGIN:VEVENT" + CRLF);
+		out.write("SUMMARY:" + summary + CRLF);
+		out.write("DTSTART;VALUE=DATE:" + icsDate(day) + CRLF);
+		out.write("DTEND;VALUE=DATE:" + icsDate(day + days) + CRLF);
+		out.write("END:VEVENT" + CRLF);
+		model.addDaysOff(day, days);
+	}
+
+	/*
+	 * Writes blocks of CSV rows, each block on its own day from January 4th 2021.
+	 * */
+	private static void writeCsv(File file, int blocks, Model model) throws IOException
+	{
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)))
+		{
+			out.write("name,date,start,end\n");
+			for (int i = 0; i < blocks; i++)
+			{
+				long day = EpochDay.of(2021, Calendar.JANUARY, 4) + i;
+				String date = csvDate(day);
+
+				if (i % 2 == 1)
+				{
+					out.write("Holiday " + i + "," + date + ",,\n");
+					model.addDaysOff(day, 1);
+				}
+
+				out.write("Standup " + i + "," + date + ",09:00,09:15\n");
+				model.addEvent(day, 9*60, 9*60 + 15, "Standup " + i);
+
+				out.write("\"Review, \"\"weekly\"\" " + i + "\"," + date + ",14:00,15:00\r\n");
+				model.addEvent(day, 14*60, 15*60, "Review, \"weekly\" " + i);
+
+				out.write("  Lunch  ," + date + ",12:00,24:00\n");
+				model.addEvent(day, 12*60, 1440, "Lunch");
+
+				if (i % 2 == 0)
+				{
+					out.write("Holiday " + i + "," + date + ",,\n");
+					model.addDaysOff(day, 1);
+				}
+
+				if (i % 10 == 0)
+				{
+					out.write("\n");
+				}
+				if (i % 25 == 0)
+				{
+					out.write("Long " + filler(CalendarImporter.MAX_LINE) + "," + date + ",10:00,11:00\n");
+					model.malformed += 1;
+				}
+				if (i % 20 == 0)
+				{
+					out.write("No such day,2021-02-30,09:00,10:00\n");
+					out.write("\"Unterminated," + date + ",09:00,10:00\n");
+					out.write("Backwards," + date + ",10:00,09:00\n");
+					out.write("Too many," + date + ",09:00,10:00,extra\n");
+					model.malformed += 4;
+				}
+			}
+		}
+	}
+
+	private static String icsDate(long epochDay)
+	{
+		Calendar cal = Calendar.getInstance();
+		EpochDay.toCalendar(epochDay, cal);
+		return String.format("%04d%02d%02d", cal.get(Calendar.YEAR), cal.get(Calendar.MONTH) + 1,
+				cal.get(Calendar.DAY_OF_MONTH));
+	}
+
+	private static String csvDate(long epochDay)
+	{
+		String date = icsDate(epochDay);
+		return date.substring(0, 4) + "-" + date.substring(4, 6) + "-" + date.substring(6);
+	}
+
+	private static String filler(int length)
+	{
+		char[] chars = new char[length];
+		Arrays.fill(chars, 'x');
+		return new String(chars);
+	}
+
+	private static String describe(int start, int end, String name)
+	{
+		return start + "-" + end + " " + name;
+	}
+
+	/*
+	 * What an import has to end up with: the events of every day, the excluded days and
+	 * the counters of the Result.
+	 * */
+	private static class Model
+	{
+		private TreeMap<Long, List<String>> days = new TreeMap<Long, List<String>>();
+		private TreeSet<Long> excluded = new TreeSet<Long>();
+		private long events;
+		private long daysOff;
+		private long malformed;
+
+		void addEvent(long epochDay, int start, int end, String name)
+		{
+			List<String> events = days.get(epochDay);
+			if (events == null)
+			{
+				events = new ArrayList<String>();
+				days.put(epochDay, events);
+			}
+			events.add(describe(start, end, name));
+			this.events += 1;
+		}
+
+		/*
+		 * Adds an event given in New York time, on the UTC day and minutes it starts.
+		 * */
+		void addZonedEvent(long epochDay, int start, int end, String name)
+		{
+			Calendar zoned = Calendar.getInstance(TimeZone.getTimeZone(ZONE));
+			Calendar utc = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+			Calendar day = Calendar.getInstance();
+			EpochDay.toCalendar(epochDay, day);
+
+			//Wall clock times, days with a daylight saving change are not 1440 minutes long
+			zoned.clear();
+			zoned.set(day.get(Calendar.YEAR), day.get(Calendar.MONTH), day.get(Calendar.DAY_OF_MONTH), start/60, start%60);
+			utc.setTimeInMillis(zoned.getTimeInMillis());
+			long startDay = EpochDay.fromCalendar(utc);
+			int startMinute = utc.get(Calendar.HOUR_OF_DAY)*60 + utc.get(Calendar.MINUTE);
+
+			zoned.set(Calendar.HOUR_OF_DAY, end/60);
+			zoned.set(Calendar.MINUTE, end%60);
+			utc.setTimeInMillis(zoned.getTimeInMillis());
+			int endMinute = EpochDay.fromCalendar(utc) > startDay ? 1440
+					: utc.get(Calendar.HOUR_OF_DAY)*60 + utc.get(Calendar.MINUTE);
+			addEvent(startDay, startMinute, endMinute, name);
+		}
+
+		void addDaysOff(long epochDay, int count)
+		{
+			for (int i = 0; i < count; i++)
+			{
+				excluded.add(epochDay + i);
+			}
+			daysOff += count;
+		}
+	}
+}
@@ -0,0 +1,350 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/*
+ * ModelCheck
+ *
+ * Checks CalendarManager's occurrence counts against a plain model. Random events, days and
+ * days off are added both to a CalendarManager and to a map of days holding lists of
+ * events, and random events are removed or moved in both (removeEvent and updateEvent have
+ * to report the same thing the model does), then random weekly requests are answered by
+ * both. The model walks a request one
+ * week at a time with java.util.Calendar and tests every event of the day, which is slow
+ * but obviously right, so it does not share any code with the manager's walks (EpochDay,
+ * WeekBitSet, the event trees).
+ *
+ * Every storage mode of the manager is checked in turn:
+ *
+ *		plain		EventTree per day
+ *		bits		busy minute bitmaps (useBusyMinutes)
+ *		parallel	concurrent manager counting every request in parallel
+ *		compact		CompactEventTree per day (useCompactStorage)
+ *		compactbits	compact storage with busy minute bitmaps
+ *		offheap		OffHeapEventStore per day (useOffHeapStorage)
+ *		spill		plain storage spilled to disk a third and two thirds of the way through
+ *					the changes (spillBefore), so later changes and every request read
+ *					spilled days back
+ *
+ *		java ModelCheck [seed] [mode]
+ *
+ * Prints one line per mode and exits with status 1 if any count differs.
+ *
+ * */
+
+public class ModelCheck {
+
+	private static final String[] MODES = {"plain", "bits", "parallel", "compact", "compactbits", "offheap", "spill"};
+
+	private static final int CHANGES = 20000;
+	private static final int REQUESTS = 3000;
+	private static final int BATCH = 300;
+
+	public static void main(String[] args) throws IOException
+	{
+		long seed = args.length > 0 ? Long.parseLong(args[0]) : 1;
+		String[] modes = args.length > 1 ? new String[] {args[1]} : MODES;
+
+		int failures = 0;
+		for (String mode : modes)
+		{
+			int mismatches = check(mode, new Random(seed));
+			System.out.println(mode + ": " + (mismatches == 0 ? "ok" : mismatches + " mismatches"));
+			if (mismatches > 0)
+			{
+				failures += 1;
+			}
+		}
+
+		if (failures > 0)
+		{
+			System.exit(1);
+		}
+	}
+
+	/*
+	 * Runs the check for one mode in a temporary directory for spilled days.
+	 * */
+	private static int check(String mode, Random random) throws IOException
+	{
+		File directory = Files.createTempDirectory("modelcheck").toFile();
+		try
+		{
+			return check(mode, random, directory);
+		}
+		finally
+		{
+			for (File file : directory.listFiles())
+			{
+				file.delete();
+			}
+			directory.delete();
+		}
+	}
+
+	/*
+	 * Runs the check for one mode. Returns the number of removes and updates reported
+	 * differently, and of requests counted differently, by the manager and the model.
+	 * */
+	private static int check(String mode, Random random, File directory) throws IOException
+	{
+		CalendarManager manager = create(mode);
+		Model model = new Model();
+		List<Event> added = new ArrayList<Event>();
+
+		int mismatches = 0;
+		int spilled = 0;
+		for (int i = 0; i < CHANGES; i++)
+		{
+			//First the years before 2019, then (after more changes to them) every year
+			if (mode.equals("spill") && i == CHANGES/3)
+			{
+				spilled += manager.spillBefore(new GregorianCalendar(2019, Calendar.JANUARY, 1).getTime(), directory);
+			}
+			else if (mode.equals("spill") && i == 2*CHANGES/3)
+			{
+				spilled += manager.spillBefore(new GregorianCalendar(2025, Calendar.JANUARY, 1).getTime(), directory);
+			}
+
+			int dice = random.nextInt(10);
+			if (dice < 6 || added.isEmpty())
+			{
+				Event event = randomEvent(random, "e" + i);
+				manager.addEvent(event);
+				model.addEvent(event);
+				added.add(event);
+			}
+			else if (dice == 6)
+			{
+				//The event may be gone already, removed or replaced along with its day
+				Event event = added.get(random.nextInt(added.size()));
+				if (manager.removeEvent(event) != model.removeEvent(event))
+				{
+					mismatches += 1;
+				}
+			}
+			else if (dice == 7)
+			{
+				Event oldEvent = added.get(random.nextInt(added.size()));
+				Event newEvent = randomEvent(random, "e" + i);
+				boolean moved = model.removeEvent(oldEvent);
+				if (moved)
+				{
+					model.addEvent(newEvent);
+					added.add(newEvent);
+				}
+				if (manager.updateEvent(oldEvent, newEvent) != moved)
+				{
+					mismatches += 1;
+				}
+			}
+			else
+			{
+				Calendar cal = randomTime(random);
+				boolean dayOff = random.nextInt(4) != 0;
+				Day day = new Day(cal.get(Calendar.YEAR), cal.get(Calendar.MONTH), cal.get(Calendar.DAY_OF_MONTH), dayOff);
+				if (random.nextBoolean())
+				{
+					manager.addDayOff(day);
+				}
+				else
+				{
+					manager.addDay(day);
+				}
+				model.putDay(cal, dayOff);
+			}
+		}
+
+		//A spill mode that spilled nothing would only repeat the plain mode
+		if (mode.equals("spill") && spilled == 0)
+		{
+			mismatches += 1;
+		}
+
+		for (int i = 0; i < REQUESTS; i++)
+		{
+			MeetingRequest request = randomRequest(random, true);
+			if (manager.checkOccurrencesSchedule(request) != model.countSchedule(request)
+					|| manager.checkOccurrencesDaysOff(request) != model.countDaysOff(request))
+			{
+				mismatches += 1;
+			}
+		}
+
+		//Batches may hold requests ending before they start, which have no occurrences
+		List<MeetingRequest> batch = new ArrayList<MeetingRequest>();
+		for (int i = 0; i < BATCH; i++)
+		{
+			batch.add(randomRequest(random, random.nextBoolean()));
+		}
+		int[] counts = manager.checkOccurrencesSchedule(batch);
+		for (int i = 0; i < batch.size(); i++)
+		{
+			if (counts[i] != model.countSchedule(batch.get(i)))
+			{
+				mismatches += 1;
+			}
+		}
+		return mismatches;
+	}
+
+	private static CalendarManager create(String mode)
+	{
+		CalendarManager manager = new CalendarManager("model", mode.equals("parallel"));
+		switch (mode)
+		{
+			case "plain": break;
+			case "bits": manager.useBusyMinutes(); break;
+			case "parallel": manager.setParallelThreshold(1); break;
+			case "compact": manager.useCompactStorage(); break;
+			case "compactbits": manager.useCompactStorage(); manager.useBusyMinutes(); break;
+			case "offheap": manager.useOffHeapStorage(); break;
+			case "spill": break;
+			default: throw new IllegalArgumentException("unknown mode " + mode);
+		}
+		return manager;
+	}
+
+	private static Event randomEvent(Random random, String name)
+	{
+		Calendar cal = randomTime(random);
+		int start = random.nextInt(1400);
+		int end = Math.min(1440, start + random.nextInt(120));
+		return new Event(name, cal.getTime(), cal.get(Calendar.DAY_OF_WEEK), 0, start, 0, end);
+	}
+
+	/*
+	 * A time of day between 2015 and 2024, so requests start and end in the middle of a day.
+	 * */
+	private static Calendar randomTime(Random random)
+	{
+		Calendar cal = Calendar.getInstance();
+		cal.set(2015 + random.nextInt(10), random.nextInt(12), 1 + random.nextInt(28), random.nextInt(24),
+				random.nextInt(60), random.nextInt(60));
+		return cal;
+	}
+
+	private static MeetingRequest randomRequest(Random random, boolean ordered)
+	{
+		Date startDate = randomTime(random).getTime();
+		Date endDate = randomTime(random).getTime();
+		if (ordered && startDate.after(endDate))
+		{
+			Date swap = startDate;
+			startDate = endDate;
+			endDate = swap;
+		}
+		int start = random.nextInt(1400);
+		Event event = new Event("request", 1 + random.nextInt(7), 0, start, 0, Math.min(1440, start + random.nextInt(200)));
+		return new MeetingRequest(startDate, endDate, event);
+	}
+
+	/*
+	 * The model: every day that was added, by year, month and day of month.
+	 * */
+	private static class Model
+	{
+		private HashMap<Long, ModelDay> days = new HashMap<Long, ModelDay>();
+
+		void addEvent(Event event)
+		{
+			Calendar cal = Calendar.getInstance();
+			cal.setTime(event.getDate());
+			ModelDay day = days.get(key(cal));
+			if (day == null)
+			{
+				day = new ModelDay(false);
+				days.put(key(cal), day);
+			}
+			day.events.add(event);
+		}
+
+		//Every event has its own name, so the event itself is the one the manager removes
+		boolean removeEvent(Event event)
+		{
+			Calendar cal = Calendar.getInstance();
+			cal.setTime(event.getDate());
+			ModelDay day = days.get(key(cal));
+			return day != null && day.events.remove(event);
+		}
+
+		//A day added again replaces the old one, events and all
+		void putDay(Calendar cal, boolean dayOff)
+		{
+			days.put(key(cal), new ModelDay(dayOff));
+		}
+
+		/*
+		 * Occurrences of a request on days with no event overlapping its minutes (both
+		 * ends included, as in EventTree).
+		 * */
+		int countSchedule(MeetingRequest request)
+		{
+			int count = 0;
+			for (Calendar cal = firstOccurrence(request); !cal.getTime().after(request.endDate); cal.add(Calendar.DAY_OF_MONTH, 7))
+			{
+				ModelDay day = days.get(key(cal));
+				boolean free = true;
+				if (day != null)
+				{
+					for (Event event : day.events)
+					{
+						if (event.getStart() <= request.event.getEnd() && request.event.getStart() <= event.getEnd())
+						{
+							free = false;
+						}
+					}
+				}
+				if (free)
+				{
+					count += 1;
+				}
+			}
+			return count;
+		}
+
+		/*
+		 * Occurrences of a request on days that are not days off.
+		 * */
+		int countDaysOff(MeetingRequest request)
+		{
+			int count = 0;
+			for (Calendar cal = firstOccurrence(request); !cal.getTime().after(request.endDate); cal.add(Calendar.DAY_OF_MONTH, 7))
+			{
+				ModelDay day = days.get(key(cal));
+				if (day == null || !day.dayOff)
+				{
+					count += 1;
+				}
+			}
+			return count;
+		}
+
+		private static Calendar firstOccurrence(MeetingRequest request)
+		{
+			Calendar cal = Calendar.getInstance();
+			cal.setTime(request.startDate);
+			while (cal.get(Calendar.DAY_OF_WEEK) != request.event.getDayOfWeek())
+			{
+				cal.add(Calendar.DAY_OF_MONTH, 1);
+			}
+			return cal;
+		}
+
+		private static long key(Calendar cal)
+		{
+			return cal.get(Calendar.YEAR)*10000L + cal.get(Calendar.MONTH)*100 + cal.get(Calendar.DAY_OF_MONTH);
+		}
+	}
+
+	private static class ModelDay
+	{
+		private boolean dayOff;
+		private ArrayList<Event> events = new ArrayList<Event>();
+
+		ModelDay(boolean dayOff)
+		{
+			this.dayOff = dayOff;
+		}
+	}
+}
@@ -0,0 +1,81 @@
+import java.util.*;
+
+/*
+ * NameTable
+ *
+ * Interns event names into int ids so a CompactEventTree can store one int per event
+ * instead of a String reference, and every event with the same name shares one String.
+ * Ids are never given back, so the table suits calendars whose names repeat (meeting
+ * titles, room names) rather than ones with a unique name per event.
+ *
+ * SHARED is the table every CompactEventTree uses. null is id -1.
+ *
+ * */
+
+public final class NameTable {
+
+	/*
+	 * ------private members------
+	 *
+	 * (ids, HashMap<String, Integer>):
+	 * id of every interned name.
+	 *
+	 * (names, String[]):
+	 * name of every id, only the first count entries are used.
+	 *
+	 * (count, int):
+	 * number of interned names.
+	 *
+	 * */
+
+	public static final NameTable SHARED = new NameTable();
+
+	private HashMap<String, Integer> ids;
+	private String[] names;
+	private int count;
+
+	public NameTable()
+	{
+		this.ids = new HashMap<String, Integer>();
+		this.names = new String[64];
+		this.count = 0;
+	}
+
+	/*
+	 * Returns the id of a name, interning it if it is new.
+	 * */
+	public synchronized int id(String name)
+	{
+		if (name == null)
+		{
+			return -1;
+		}
+
+		Integer id = ids.get(name);
+		if (id != null)
+		{
+			return id;
+		}
+
+		if (count == names.length)
+		{
+			names = Arrays.copyOf(names, count*2);
+		}
+		names[count] = name;
+		ids.put(name, count);
+		return count++;
+	}
+
+	/*
+	 * Returns the name of an id handed out by id(), null for -1.
+	 * */
+	public synchronized String name(int id)
+	{
+		return id < 0 ? null : names[id];
+	}
+
+	public synchronized int size()
+	{
+		return this.count;
+	}
+}
@@ -0,0 +1,237 @@
+import java.util.*;
+
+/*
+ * OccurrenceCache
+ *
+ * Bounded cache of checkOccurrencesSchedule and checkOccurrencesDaysOff results for
+ * weekly meeting requests, kept by CalendarManager (see setCacheCapacity). Results are
+ * keyed by the kind of query, the weekday, the start and end minute of the meeting and
+ * the epoch days of its first and last occurrence, so requests asking the same thing hit
+ * the same entry. The least recently used entry is evicted once the cache is full.
+ *
+ * A change to a day only drops the entries it can affect: entries on the weekday of that
+ * day whose occurrence range holds the day. An added event only drops the schedule
+ * entries whose meeting time it overlaps, since it cannot change whether a day is off.
+ *
+ * All methods are synchronized, the cache is shared by every thread using the manager.
+ *
+ * */
+
+public class OccurrenceCache {
+
+	/*
+	 * ------private members------
+	 *
+	 * (entries, LinkedHashMap<Key, Integer>):
+	 * cached results in access order, the eldest entry is the least recently used.
+	 *
+	 * (keysOfWeek, ArrayList<HashSet<Key> >):
+	 * keys of the cached entries for each weekday (zero index), the entries a change to
+	 * a day is looked for in.
+	 *
+	 * (capacity, int):
+	 * maximum number of cached results.
+	 *
+	 * (hits, misses, evictions, invalidations, long):
+	 * counters for sizing the cache.
+	 *
+	 * */
+
+	public static final int SCHEDULE = 0;
+	public static final int DAYS_OFF = 1;
+
+	private LinkedHashMap<Key, Integer> entries;
+	private ArrayList<HashSet<Key> > keysOfWeek;
+	private int capacity;
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long invalidations;
+
+	/*
+	 * Constructor for OccurrenceCache holding at most capacity results.
+	 *
+	 * */
+	public OccurrenceCache(int capacity)
+	{
+		if (capacity < 1)
+		{
+			throw new IllegalArgumentException("capacity must be at least 1: " + capacity);
+		}
+		this.capacity = capacity;
+		this.keysOfWeek = new ArrayList<HashSet<Key> >(7);
+		for (int i = 0; i < 7; i++)
+		{
+			keysOfWeek.add(new HashSet<Key>());
+		}
+
+		this.entries = new LinkedHashMap<Key, Integer>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<Key, Integer> eldest)
+			{
+				if (size() > OccurrenceCache.this.capacity)
+				{
+					keysOfWeek.get(eldest.getKey().weekday).remove(eldest.getKey());
+					evictions += 1;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/*
+	 * Returns the cached result of a query, or -1 if it is not cached. weekday is zero
+	 * indexed, start and end are the meeting's minutes.
+	 * */
+	public synchronized int get(int kind, int weekday, int start, int end, long firstDay, long lastDay)
+	{
+		Integer result = entries.get(new Key(kind, weekday, start, end, firstDay, lastDay));
+		if (result == null)
+		{
+			misses += 1;
+			return -1;
+		}
+		hits += 1;
+		return result;
+	}
+
+	/*
+	 * Caches the result of a query. The caller holds the read lock of the weekday so no
+	 * change can slip in between computing the result and caching it.
+	 * */
+	public synchronized void put(int kind, int weekday, int start, int end, long firstDay, long lastDay, int result)
+	{
+		Key key = new Key(kind, weekday, start, end, firstDay, lastDay);
+		entries.put(key, result);
+		keysOfWeek.get(weekday).add(key);
+	}
+
+	/*
+	 * Drops every entry on a weekday (zero index) whose range holds epochDay. Called when
+	 * the Day stored for epochDay is replaced.
+	 * */
+	public synchronized void invalidateDay(int weekday, long epochDay)
+	{
+		invalidate(weekday, epochDay, null);
+	}
+
+	/*
+	 * Drops the schedule entries on a weekday (zero index) whose range holds epochDay and
+	 * whose meeting time overlaps event. Called when event is added to that day.
+	 * */
+	public synchronized void invalidateEvent(int weekday, long epochDay, Event event)
+	{
+		invalidate(weekday, epochDay, event);
+	}
+
+	private void invalidate(int weekday, long epochDay, Event event)
+	{
+		Iterator<Key> keys = keysOfWeek.get(weekday).iterator();
+		while (keys.hasNext())
+		{
+			Key key = keys.next();
+			if (key.firstDay > epochDay || key.lastDay < epochDay)
+			{
+				continue;
+			}
+
+			//An event can only change schedule results for meetings it overlaps
+			//(same inclusive check as Event.isOverlap)
+			if (event != null && (key.kind != SCHEDULE || key.start > event.getEnd() || event.getStart() > key.end))
+			{
+				continue;
+			}
+
+			keys.remove();
+			entries.remove(key);
+			invalidations += 1;
+		}
+	}
+
+	public synchronized void clear()
+	{
+		entries.clear();
+		for (HashSet<Key> keys : keysOfWeek)
+		{
+			keys.clear();
+		}
+	}
+
+	//Accessors
+
+	public synchronized int size()
+	{
+		return entries.size();
+	}
+
+	public int getCapacity()
+	{
+		return this.capacity;
+	}
+
+	public synchronized long getHits()
+	{
+		return this.hits;
+	}
+
+	public synchronized long getMisses()
+	{
+		return this.misses;
+	}
+
+	public synchronized long getEvictions()
+	{
+		return this.evictions;
+	}
+
+	public synchronized long getInvalidations()
+	{
+		return this.invalidations;
+	}
+
+	/*
+	 * Key of a cached result.
+	 * */
+	private static final class Key
+	{
+		private final int kind;
+		private final int weekday;
+		private final int start;
+		private final int end;
+		private final long firstDay;
+		private final long lastDay;
+
+		Key(int kind, int weekday, int start, int end, long firstDay, long lastDay)
+		{
+			this.kind = kind;
+			this.weekday = weekday;
+			this.start = start;
+			this.end = end;
+			this.firstDay = firstDay;
+			this.lastDay = lastDay;
+		}
+
+		public boolean equals(Object other)
+		{
+			if (!(other instanceof Key))
+			{
+				return false;
+			}
+			Key key = (Key) other;
+			return kind == key.kind && weekday == key.weekday && start == key.start && end == key.end
+					&& firstDay == key.firstDay && lastDay == key.lastDay;
+		}
+
+		public int hashCode()
+		{
+			int hash = kind*31 + weekday;
+			hash = hash*31 + start;
+			hash = hash*31 + end;
+			hash = hash*31 + Long.hashCode(firstDay);
+			return hash*31 + Long.hashCode(lastDay);
+		}
+	}
+}
@@ -0,0 +1,302 @@
+import java.lang.ref.*;
+import java.nio.*;
+import java.util.*;
+
+/*
+ * OffHeapArena
+ *
+ * Memory outside the Java heap for OffHeapEventStore. The arena reserves direct ByteBuffers
+ * of CHUNK_BYTES bytes (allocateDirect) and hands out blocks of a power of two bytes
+ * within them, so tens of millions of events take a few chunk objects on the heap instead
+ * of an object graph the garbage collector has to trace and copy.
+ *
+ * Blocks given back (release, resize, or their owner being garbage collected) go to a
+ * free list per size and are handed out again before the arena grows; chunks themselves
+ * are never returned to the system. An owner that is dropped without calling release,
+ * such as the store of a Day replaced in a CalendarManager, is noticed through a
+ * PhantomReference and its block is reclaimed on one of the next allocations.
+ *
+ * SHARED is the arena every OffHeapEventStore uses unless it is given another one.
+ *
+ * */
+
+public final class OffHeapArena {
+
+	/*
+	 * ------private members------
+	 *
+	 * (chunks, ByteBuffer[]):
+	 * the reserved chunks, only the first chunkCount are used.
+	 *
+	 * (chunkCount, int):
+	 * number of chunks reserved.
+	 *
+	 * (top, int):
+	 * bytes handed out from the last chunk, the rest of it is still untouched.
+	 *
+	 * (free, long[]):
+	 * first free block of every size (indexed by log2 of the size), NIL if there is none.
+	 * A free block holds the address of the next free block of its size in its first
+	 * 8 bytes.
+	 *
+	 * (live, Block):
+	 * first block handed out and not given back. Blocks are chained through prev/next so
+	 * they stay reachable, which a PhantomReference must be to ever be enqueued.
+	 *
+	 * (collected, ReferenceQueue<Object>):
+	 * blocks whose owner was garbage collected.
+	 *
+	 * (usedBytes, long):
+	 * bytes in blocks handed out and not given back.
+	 *
+	 * */
+
+	public static final int CHUNK_BYTES = 1 << 24;
+	private static final int MIN_BLOCK = 64;
+	private static final long NIL = -1;
+
+	public static final OffHeapArena SHARED = new OffHeapArena();
+
+	private ByteBuffer[] chunks;
+	private int chunkCount;
+	private int top;
+	private long[] free;
+	private Block live;
+	private ReferenceQueue<Object> collected;
+	private long usedBytes;
+
+	public OffHeapArena()
+	{
+		this.chunks = new ByteBuffer[4];
+		this.chunkCount = 0;
+		this.top = CHUNK_BYTES;
+		this.free = new long[Integer.numberOfTrailingZeros(CHUNK_BYTES) + 1];
+		Arrays.fill(free, NIL);
+		this.live = null;
+		this.collected = new ReferenceQueue<Object>();
+		this.usedBytes = 0;
+	}
+
+	/*
+	 * A block handed out by the arena. buffer and offset locate it, and change when the
+	 * block is resized.
+	 * */
+	public static final class Block extends PhantomReference<Object>
+	{
+		private long address;
+		private int bytes;
+		private ByteBuffer buffer;
+		private int offset;
+		private Block prev;
+		private Block next;
+
+		private Block(Object owner, ReferenceQueue<Object> queue)
+		{
+			super(owner, queue);
+		}
+
+		public ByteBuffer buffer()
+		{
+			return this.buffer;
+		}
+
+		public int offset()
+		{
+			return this.offset;
+		}
+
+		public int bytes()
+		{
+			return this.bytes;
+		}
+	}
+
+	/*
+	 * Hands out a block of at least the given number of bytes for owner. The block is
+	 * given back once owner is garbage collected, if release was not called before.
+	 * */
+	public synchronized Block allocate(Object owner, int bytes)
+	{
+		drain();
+
+		Block block = new Block(owner, collected);
+		place(block, take(sizeOf(bytes)), sizeOf(bytes));
+
+		block.next = live;
+		if (live != null)
+		{
+			live.prev = block;
+		}
+		live = block;
+		return block;
+	}
+
+	/*
+	 * Moves a block to one of at least the given number of bytes, copying as much of its
+	 * content as fits.
+	 * */
+	public synchronized void resize(Block block, int bytes)
+	{
+		drain();
+
+		int size = sizeOf(bytes);
+		long address = take(size);
+		ByteBuffer source = block.buffer.duplicate();
+		source.limit(block.offset + Math.min(block.bytes, size)).position(block.offset);
+		ByteBuffer target = chunk(address).duplicate();
+		target.position(offset(address));
+		target.put(source);
+
+		give(block.address, block.bytes);
+		place(block, address, size);
+	}
+
+	/*
+	 * Gives a block back. It must not be used afterwards.
+	 * */
+	public synchronized void release(Block block)
+	{
+		if (block.buffer == null)
+		{
+			return;
+		}
+
+		give(block.address, block.bytes);
+		unlink(block);
+		block.clear();
+	}
+
+	/*
+	 * Bytes in blocks handed out and not given back.
+	 * */
+	public synchronized long getUsedBytes()
+	{
+		return this.usedBytes;
+	}
+
+	/*
+	 * Bytes reserved outside the heap, used or not.
+	 * */
+	public synchronized long getReservedBytes()
+	{
+		return (long) chunkCount*CHUNK_BYTES;
+	}
+
+	/*
+	 * Gives back the blocks of owners that were garbage collected.
+	 * */
+	private void drain()
+	{
+		Reference<?> reference;
+		while ((reference = collected.poll()) != null)
+		{
+			Block block = (Block) reference;
+			if (block.buffer != null)
+			{
+				give(block.address, block.bytes);
+				unlink(block);
+			}
+		}
+	}
+
+	private void place(Block block, long address, int size)
+	{
+		block.address = address;
+		block.bytes = size;
+		block.buffer = chunk(address);
+		block.offset = offset(address);
+		usedBytes += size;
+	}
+
+	private void unlink(Block block)
+	{
+		if (block.prev != null)
+		{
+			block.prev.next = block.next;
+		}
+		else
+		{
+			live = block.next;
+		}
+		if (block.next != null)
+		{
+			block.next.prev = block.prev;
+		}
+		block.prev = null;
+		block.next = null;
+		block.buffer = null;
+	}
+
+	/*
+	 * Returns the address of a free block of size bytes (a power of two), reserving a
+	 * new chunk when neither a free block nor the rest of the last chunk will do.
+	 * */
+	private long take(int size)
+	{
+		int sizeClass = Integer.numberOfTrailingZeros(size);
+		long address = free[sizeClass];
+		if (address != NIL)
+		{
+			free[sizeClass] = chunk(address).getLong(offset(address));
+			return address;
+		}
+
+		if (top + size > CHUNK_BYTES)
+		{
+			//What is left of the last chunk is cut into blocks for the free lists
+			for (int rest = CHUNK_BYTES - top; rest >= MIN_BLOCK; rest = CHUNK_BYTES - top)
+			{
+				int piece = Integer.highestOneBit(rest);
+				push((long) (chunkCount - 1) << 32 | top, piece);
+				top += piece;
+			}
+
+			if (chunkCount == chunks.length)
+			{
+				chunks = Arrays.copyOf(chunks, chunkCount*2);
+			}
+			chunks[chunkCount++] = ByteBuffer.allocateDirect(CHUNK_BYTES).order(ByteOrder.nativeOrder());
+			top = 0;
+		}
+
+		address = (long) (chunkCount - 1) << 32 | top;
+		top += size;
+		return address;
+	}
+
+	private void give(long address, int size)
+	{
+		push(address, size);
+		usedBytes -= size;
+	}
+
+	private void push(long address, int size)
+	{
+		int sizeClass = Integer.numberOfTrailingZeros(size);
+		chunk(address).putLong(offset(address), free[sizeClass]);
+		free[sizeClass] = address;
+	}
+
+	private ByteBuffer chunk(long address)
+	{
+		return chunks[(int) (address >>> 32)];
+	}
+
+	private static int offset(long address)
+	{
+		return (int) address;
+	}
+
+	/*
+	 * Size of the block handed out for a request of bytes: the next power of two, at
+	 * least MIN_BLOCK.
+	 * */
+	private static int sizeOf(int bytes)
+	{
+		if (bytes > CHUNK_BYTES)
+		{
+			throw new IllegalArgumentException("block larger than a chunk: " + bytes);
+		}
+		return Math.max(MIN_BLOCK, Integer.highestOneBit(bytes - 1) << 1);
+	}
+}
@@ -0,0 +1,110 @@
+import java.nio.*;
+import java.util.*;
+
+/*
+ * OffHeapEventStore
+ *
+ * A CompactEventTree with its nodes in an OffHeapArena block instead of an int[], so the
+ * events of a day are not on the Java heap at all. A node is the same STRIDE ints
+ * (start/end minutes, name id, maxMinutes/height, children), read and written in place in
+ * the block, and every search walks that memory directly. The heap only holds the store
+ * itself and its Block, whatever the number of events.
+ *
+ * The tree itself is CompactEventTree's: it holds minutes from 0 to 65535 (see
+ * CompactEventTree.canHold), hands out events created on the fly with the Day's date, and
+ * reuses removed nodes. The block is given back by release, or by the arena once the
+ * store is garbage collected.
+ *
+ * */
+
+public class OffHeapEventStore extends CompactEventTree {
+
+	/*
+	 * ------private members------
+	 *
+	 * (blockNodes, BlockNodes):
+	 * the NodeArray holding the nodes, kept to give its block back.
+	 *
+	 * */
+
+	private BlockNodes blockNodes;
+
+	/*
+	 * Constructor for OffHeapEventStore, for the Day with the given date and weekday, with
+	 * its nodes in OffHeapArena.SHARED.
+	 *
+	 * */
+	public OffHeapEventStore(Date date, int dayOfWeek)
+	{
+		this(date, dayOfWeek, OffHeapArena.SHARED);
+	}
+
+	public OffHeapEventStore(Date date, int dayOfWeek, OffHeapArena arena)
+	{
+		this(date, dayOfWeek, new BlockNodes(arena, 4*STRIDE));
+	}
+
+	private OffHeapEventStore(Date date, int dayOfWeek, BlockNodes blockNodes)
+	{
+		super(date, dayOfWeek, blockNodes);
+		this.blockNodes = blockNodes;
+	}
+
+	/*
+	 * Gives the block back to the arena. The store must not be used afterwards.
+	 * */
+	public void release()
+	{
+		blockNodes.release();
+	}
+
+	/*
+	 * Nodes in an OffHeapArena block. The BlockNodes object owns the block, so the arena
+	 * reclaims it once the store holding this object is garbage collected.
+	 * */
+	private static final class BlockNodes implements NodeArray
+	{
+		private OffHeapArena arena;
+		private OffHeapArena.Block block;
+
+		//chunk and byte offset of block, copied here since every access needs them
+		private ByteBuffer buffer;
+		private int offset;
+
+		BlockNodes(OffHeapArena arena, int length)
+		{
+			this.arena = arena;
+			this.block = arena.allocate(this, length*4);
+			this.buffer = block.buffer();
+			this.offset = block.offset();
+		}
+
+		public int get(int index)
+		{
+			return buffer.getInt(offset + (index << 2));
+		}
+
+		public void set(int index, int value)
+		{
+			buffer.putInt(offset + (index << 2), value);
+		}
+
+		public int length()
+		{
+			return block.bytes()/4;
+		}
+
+		public void resize(int length)
+		{
+			arena.resize(block, length*4);
+			buffer = block.buffer();
+			offset = block.offset();
+		}
+
+		void release()
+		{
+			arena.release(block);
+			buffer = null;
+		}
+	}
+}
@@ -0,0 +1,284 @@
+import java.util.*;
+import java.util.function.*;
+
+/*
+ * PersistentDayIndex
+ *
+ * Immutable map from epoch day to a value, the persistent counterpart of DayIndex used by
+ * VersionedCalendar. It is an AVL tree keyed by epoch day: put and remove return a new
+ * index sharing every node off the changed path, so keeping an old version costs nothing
+ * and readers never need a lock.
+ *
+ * Being ordered, it also answers "the days between two epoch days" by walking only
+ * those days, which is what lets a weekly request be counted without looking up every
+ * week.
+ *
+ * */
+
+public final class PersistentDayIndex<V> {
+
+	/*
+	 * ------private members (Node)------
+	 *
+	 * (epochDay, long):
+	 * key of this node.
+	 *
+	 * (value, V):
+	 * value stored for the epoch day.
+	 *
+	 * (height, int):
+	 * height of the subtree rooted at this node (a leaf is 1).
+	 *
+	 * (leftChild, rightChild, Node):
+	 * the node's children, earlier days left.
+	 *
+	 * */
+
+	private static final class Node<V>
+	{
+		private final long epochDay;
+		private final V value;
+		private final int height;
+		private final Node<V> leftChild;
+		private final Node<V> rightChild;
+
+		Node(long epochDay, V value, Node<V> leftChild, Node<V> rightChild)
+		{
+			this.epochDay = epochDay;
+			this.value = value;
+			this.leftChild = leftChild;
+			this.rightChild = rightChild;
+			this.height = Math.max(height(leftChild), height(rightChild)) + 1;
+		}
+	}
+
+	//tree root
+	private final Node<V> root;
+
+	//number of days in the index
+	private final int size;
+
+	private PersistentDayIndex(Node<V> root, int size)
+	{
+		this.root = root;
+		this.size = size;
+	}
+
+	/*
+	 * Returns an index without any day.
+	 * */
+	public static <V> PersistentDayIndex<V> empty()
+	{
+		return new PersistentDayIndex<V>(null, 0);
+	}
+
+	/*
+	 * Returns the value stored for an epoch day, or null if there is none.
+	 * */
+	public V get(long epochDay)
+	{
+		Node<V> node = root;
+		while (node != null)
+		{
+			if (epochDay < node.epochDay)
+			{
+				node = node.leftChild;
+			}
+			else if (epochDay > node.epochDay)
+			{
+				node = node.rightChild;
+			}
+			else
+			{
+				return node.value;
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Returns an index that stores value for an epoch day, replacing any value this index
+	 * stores for it.
+	 * */
+	public PersistentDayIndex<V> put(long epochDay, V value)
+	{
+		boolean present = get(epochDay) != null;
+		return new PersistentDayIndex<V>(put(root, epochDay, value), present ? size : size + 1);
+	}
+
+	private static <V> Node<V> put(Node<V> node, long epochDay, V value)
+	{
+		if (node == null)
+		{
+			return new Node<V>(epochDay, value, null, null);
+		}
+
+		if (epochDay < node.epochDay)
+		{
+			return balance(node.epochDay, node.value, put(node.leftChild, epochDay, value), node.rightChild);
+		}
+		if (epochDay > node.epochDay)
+		{
+			return balance(node.epochDay, node.value, node.leftChild, put(node.rightChild, epochDay, value));
+		}
+		return new Node<V>(epochDay, value, node.leftChild, node.rightChild);
+	}
+
+	/*
+	 * Returns an index without the value of an epoch day, or this index itself if it
+	 * stores none.
+	 * */
+	public PersistentDayIndex<V> remove(long epochDay)
+	{
+		Node<V> removed = remove(root, epochDay);
+		return removed == root ? this : new PersistentDayIndex<V>(removed, size - 1);
+	}
+
+	private static <V> Node<V> remove(Node<V> node, long epochDay)
+	{
+		if (node == null)
+		{
+			return null;
+		}
+
+		if (epochDay < node.epochDay)
+		{
+			Node<V> left = remove(node.leftChild, epochDay);
+			return left == node.leftChild ? node : balance(node.epochDay, node.value, left, node.rightChild);
+		}
+		if (epochDay > node.epochDay)
+		{
+			Node<V> right = remove(node.rightChild, epochDay);
+			return right == node.rightChild ? node : balance(node.epochDay, node.value, node.leftChild, right);
+		}
+
+		if (node.leftChild == null)
+		{
+			return node.rightChild;
+		}
+		if (node.rightChild == null)
+		{
+			return node.leftChild;
+		}
+
+		Node<V> successor = node.rightChild;
+		while (successor.leftChild != null)
+		{
+			successor = successor.leftChild;
+		}
+		return balance(successor.epochDay, successor.value, node.leftChild, removeFirst(node.rightChild));
+	}
+
+	private static <V> Node<V> removeFirst(Node<V> node)
+	{
+		if (node.leftChild == null)
+		{
+			return node.rightChild;
+		}
+		return balance(node.epochDay, node.value, removeFirst(node.leftChild), node.rightChild);
+	}
+
+	public int size()
+	{
+		return this.size;
+	}
+
+	/*
+	 * Performs an action for every value, in order of epoch day.
+	 * */
+	public void forEach(Consumer<V> action)
+	{
+		Iterator<V> values = valuesBetween(Long.MIN_VALUE, Long.MAX_VALUE);
+		while (values.hasNext())
+		{
+			action.accept(values.next());
+		}
+	}
+
+	/*
+	 * Iterates in order of epoch day over the values stored for the epoch days from to
+	 * to (inclusive). Subtrees entirely outside the range are never entered.
+	 * */
+	public Iterator<V> valuesBetween(final long from, final long to)
+	{
+		return new Iterator<V>()
+		{
+			//nodes from on whose value and right subtree have not been visited yet
+			private ArrayDeque<Node<V>> path = leftPath(root, new ArrayDeque<Node<V>>());
+
+			private ArrayDeque<Node<V>> leftPath(Node<V> node, ArrayDeque<Node<V>> path)
+			{
+				while (node != null)
+				{
+					if (node.epochDay < from)
+					{
+						node = node.rightChild;
+						continue;
+					}
+					path.push(node);
+					node = node.leftChild;
+				}
+				return path;
+			}
+
+			public boolean hasNext()
+			{
+				return !path.isEmpty() && path.peek().epochDay <= to;
+			}
+
+			public V next()
+			{
+				if (!hasNext())
+				{
+					throw new NoSuchElementException();
+				}
+				Node<V> node = path.pop();
+				leftPath(node.rightChild, path);
+				return node.value;
+			}
+		};
+	}
+
+	private static int height(Node<?> node)
+	{
+		return node == null ? 0 : node.height;
+	}
+
+	/*
+	 * Same as PersistentEventTree.balance for day nodes.
+	 * */
+	private static <V> Node<V> balance(long epochDay, V value, Node<V> left, Node<V> right)
+	{
+		int balance = height(left) - height(right);
+
+		//Left heavy
+		if (balance > 1)
+		{
+			if (height(left.leftChild) >= height(left.rightChild))
+			{
+				return new Node<V>(left.epochDay, left.value, left.leftChild,
+						new Node<V>(epochDay, value, left.rightChild, right));
+			}
+			Node<V> middle = left.rightChild;
+			return new Node<V>(middle.epochDay, middle.value,
+					new Node<V>(left.epochDay, left.value, left.leftChild, middle.leftChild),
+					new Node<V>(epochDay, value, middle.rightChild, right));
+		}
+
+		//Right heavy
+		if (balance < -1)
+		{
+			if (height(right.rightChild) >= height(right.leftChild))
+			{
+				return new Node<V>(right.epochDay, right.value,
+						new Node<V>(epochDay, value, left, right.leftChild), right.rightChild);
+			}
+			Node<V> middle = right.leftChild;
+			return new Node<V>(middle.epochDay, middle.value,
+					new Node<V>(epochDay, value, left, middle.leftChild),
+					new Node<V>(right.epochDay, right.value, middle.rightChild, right.rightChild));
+		}
+
+		return new Node<V>(epochDay, value, left, right);
+	}
+}
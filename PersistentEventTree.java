@@ -0,0 +1,374 @@
+import java.util.*;
+
+/*
+ * PersistentEventTree
+ *
+ * Immutable version of EventTree. insert and remove leave the tree they are called on
+ * untouched and return a new tree that shares every node off the changed path with it
+ * (path copying), so a change costs O(log n) new nodes and any number of versions of a
+ * day can be kept side by side. Since no node ever changes, a tree can be read from any
+ * thread without locking.
+ *
+ * Nodes are ordered and balanced the same way as in EventTree (AVL, events with the same
+ * start minute go right) and carry the same maxMinutes, so the overlap queries prune
+ * the same subtrees.
+ *
+ * */
+
+public final class PersistentEventTree implements Iterable<Event> {
+
+	/*
+	 * ------private members (Node)------
+	 *
+	 * (event, Event):
+	 * the event of this node.
+	 *
+	 * (maxMinutes, int):
+	 * latest end minute of the subtree rooted at this node.
+	 *
+	 * (height, int):
+	 * height of the subtree rooted at this node (a leaf is 1).
+	 *
+	 * (leftChild, rightChild, Node):
+	 * the node's children.
+	 *
+	 * */
+
+	private static final class Node
+	{
+		private final Event event;
+		private final int maxMinutes;
+		private final int height;
+		private final Node leftChild;
+		private final Node rightChild;
+
+		Node(Event event, Node leftChild, Node rightChild)
+		{
+			this.event = event;
+			this.leftChild = leftChild;
+			this.rightChild = rightChild;
+			this.height = Math.max(height(leftChild), height(rightChild)) + 1;
+
+			int max = event.getEnd();
+			if (leftChild != null && leftChild.maxMinutes > max)
+			{
+				max = leftChild.maxMinutes;
+			}
+			if (rightChild != null && rightChild.maxMinutes > max)
+			{
+				max = rightChild.maxMinutes;
+			}
+			this.maxMinutes = max;
+		}
+	}
+
+	//the tree without events
+	public static final PersistentEventTree EMPTY = new PersistentEventTree(null, 0);
+
+	//tree root
+	private final Node root;
+
+	//number of events in the tree
+	private final int size;
+
+	private PersistentEventTree(Node root, int size)
+	{
+		this.root = root;
+		this.size = size;
+	}
+
+	/*
+	 * Returns a tree holding the events of this tree and newEvent.
+	 * */
+	public PersistentEventTree insert(Event newEvent)
+	{
+		return new PersistentEventTree(insert(root, newEvent), size + 1);
+	}
+
+	private static Node insert(Node node, Event newEvent)
+	{
+		if (node == null)
+		{
+			return new Node(newEvent, null, null);
+		}
+
+		if (newEvent.getStart() < node.event.getStart())
+		{
+			return balance(node.event, insert(node.leftChild, newEvent), node.rightChild);
+		}
+		return balance(node.event, node.leftChild, insert(node.rightChild, newEvent));
+	}
+
+	/*
+	 * Returns a tree without one event with the same start minute, end minute and name
+	 * as event, or this tree itself if it holds no such event.
+	 * */
+	public PersistentEventTree remove(Event event)
+	{
+		Node removed = remove(root, event);
+		return removed == root ? this : new PersistentEventTree(removed, size - 1);
+	}
+
+	/*
+	 * Returns the subtree without the event, or node itself if the event is not in it.
+	 * As in EventTree, both sides are searched on a tie of start minutes and subtrees
+	 * ending before the event are skipped.
+	 * */
+	private static Node remove(Node node, Event event)
+	{
+		if (node == null || node.maxMinutes < event.getEnd())
+		{
+			return node;
+		}
+
+		if (event.getStart() < node.event.getStart())
+		{
+			Node left = remove(node.leftChild, event);
+			return left == node.leftChild ? node : balance(node.event, left, node.rightChild);
+		}
+		if (event.getStart() > node.event.getStart())
+		{
+			Node right = remove(node.rightChild, event);
+			return right == node.rightChild ? node : balance(node.event, node.leftChild, right);
+		}
+		if (EventTree.sameEvent(node.event, event))
+		{
+			return removeNode(node);
+		}
+
+		Node left = remove(node.leftChild, event);
+		if (left != node.leftChild)
+		{
+			return balance(node.event, left, node.rightChild);
+		}
+		Node right = remove(node.rightChild, event);
+		return right == node.rightChild ? node : balance(node.event, node.leftChild, right);
+	}
+
+	/*
+	 * Returns the subtree of a node without the node, its successor taking its place when
+	 * it has two children.
+	 * */
+	private static Node removeNode(Node node)
+	{
+		if (node.leftChild == null)
+		{
+			return node.rightChild;
+		}
+		if (node.rightChild == null)
+		{
+			return node.leftChild;
+		}
+
+		Node successor = node.rightChild;
+		while (successor.leftChild != null)
+		{
+			successor = successor.leftChild;
+		}
+		return balance(successor.event, node.leftChild, removeFirst(node.rightChild));
+	}
+
+	private static Node removeFirst(Node node)
+	{
+		if (node.leftChild == null)
+		{
+			return node.rightChild;
+		}
+		return balance(node.event, removeFirst(node.leftChild), node.rightChild);
+	}
+
+	/*
+	 * Builds a balanced tree from events sorted by start minute in linear time.
+	 * */
+	public static PersistentEventTree build(List<Event> sorted)
+	{
+		return new PersistentEventTree(build(sorted, 0, sorted.size()), sorted.size());
+	}
+
+	private static Node build(List<Event> sorted, int from, int to)
+	{
+		if (from >= to)
+		{
+			return null;
+		}
+
+		int middle = (from + to) >>> 1;
+		return new Node(sorted.get(middle), build(sorted, from, middle), build(sorted, middle + 1, to));
+	}
+
+	/*
+	 * Returns an event overlapping searchEvent, or null if there is none.
+	 * */
+	public Event overlapSearch(Event searchEvent)
+	{
+		Node node = root;
+		while (node != null)
+		{
+			if (node.event.isOverlap(searchEvent))
+			{
+				return node.event;
+			}
+
+			if (node.leftChild != null && node.leftChild.maxMinutes >= searchEvent.getStart())
+			{
+				node = node.leftChild;
+			}
+			else
+			{
+				node = node.rightChild;
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Same as overlapSearch for the minutes start to end, without creating any object.
+	 * */
+	public boolean hasOverlap(int start, int end)
+	{
+		Node node = root;
+		while (node != null)
+		{
+			if (node.event.getStart() <= end && start <= node.event.getEnd())
+			{
+				return true;
+			}
+
+			if (node.leftChild != null && node.leftChild.maxMinutes >= start)
+			{
+				node = node.leftChild;
+			}
+			else
+			{
+				node = node.rightChild;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * Iterates in order of start minute over every event overlapping the minutes start to
+	 * end, pruning by maxMinutes the same way EventTree.overlaps does.
+	 * */
+	public Iterator<Event> overlaps(final int start, final int end)
+	{
+		return new Iterator<Event>()
+		{
+			//nodes whose event and right subtree have not been visited yet
+			private ArrayDeque<Node> path = prunedPath(root, new ArrayDeque<Node>());
+			private Event next = advance();
+
+			private ArrayDeque<Node> prunedPath(Node node, ArrayDeque<Node> path)
+			{
+				while (node != null && node.maxMinutes >= start)
+				{
+					path.push(node);
+					node = node.leftChild;
+				}
+				return path;
+			}
+
+			private Event advance()
+			{
+				while (!path.isEmpty())
+				{
+					Node node = path.pop();
+					if (node.event.getStart() > end)
+					{
+						path.clear();
+						return null;
+					}
+					prunedPath(node.rightChild, path);
+					if (node.event.getEnd() >= start)
+					{
+						return node.event;
+					}
+				}
+				return null;
+			}
+
+			public boolean hasNext()
+			{
+				return next != null;
+			}
+
+			public Event next()
+			{
+				if (next == null)
+				{
+					throw new NoSuchElementException();
+				}
+				Event event = next;
+				next = advance();
+				return event;
+			}
+		};
+	}
+
+	/*
+	 * Iterates over the events of the tree in order of start minute.
+	 * */
+	public Iterator<Event> iterator()
+	{
+		return overlaps(Integer.MIN_VALUE, Integer.MAX_VALUE);
+	}
+
+	public int size()
+	{
+		return this.size;
+	}
+
+	public boolean isEmpty()
+	{
+		return this.size == 0;
+	}
+
+	/*
+	 * Height of the tree, 0 for an empty tree.
+	 * */
+	public int height()
+	{
+		return height(root);
+	}
+
+	private static int height(Node node)
+	{
+		return node == null ? 0 : node.height;
+	}
+
+	/*
+	 * Returns a node for event with the given children, rotated so that the AVL property
+	 * holds again when the children differ in height by two. Rotations create new nodes
+	 * instead of relinking the old ones, which may still belong to other versions.
+	 * */
+	private static Node balance(Event event, Node left, Node right)
+	{
+		int balance = height(left) - height(right);
+
+		//Left heavy
+		if (balance > 1)
+		{
+			if (height(left.leftChild) >= height(left.rightChild))
+			{
+				return new Node(left.event, left.leftChild, new Node(event, left.rightChild, right));
+			}
+			Node middle = left.rightChild;
+			return new Node(middle.event, new Node(left.event, left.leftChild, middle.leftChild),
+					new Node(event, middle.rightChild, right));
+		}
+
+		//Right heavy
+		if (balance < -1)
+		{
+			if (height(right.rightChild) >= height(right.leftChild))
+			{
+				return new Node(right.event, new Node(event, left, right.leftChild), right.rightChild);
+			}
+			Node middle = right.leftChild;
+			return new Node(middle.event, new Node(event, left, middle.leftChild),
+					new Node(right.event, middle.rightChild, right.rightChild));
+		}
+
+		return new Node(event, left, right);
+	}
+}
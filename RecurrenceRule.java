@@ -0,0 +1,385 @@
+import java.util.*;
+
+/*
+ * RecurrenceRule
+ *
+ * Describes on which days a reoccurring meeting takes place, for meetings that do not
+ * simply repeat every week on the weekday of their Event. A rule is one of:
+ *
+ *		daily(n[, start])				every n days
+ *		weekly(dayOfWeek, n[, start])	every n weeks on a weekday
+ *		monthly(nth, dayOfWeek)			the nth weekday of every month (LAST for the last one)
+ *		yearly(month, day)				every year on a date (February 29th only in leap years)
+ *
+ * plus any number of exception dates the meeting is skipped on. Daily and weekly rules
+ * count their intervals from a day of their own, the anchor, whatever range they are asked
+ * about: a meeting every other week takes place on the same weeks in every query. With a
+ * start date the anchor is the first occurrence on or after it and the rule has no
+ * occurrences before it. Without one the anchor is January 1st 1970 (for a weekly rule
+ * the first of its weekdays from then) and the rule has no first occurrence.
+ *
+ * Occurrences are produced lazily by an OccurrenceIterator as epoch days (see EpochDay),
+ * so a query only pays for the occurrences it visits and nothing is boxed or collected.
+ *
+ * */
+
+public class RecurrenceRule {
+
+	/*
+	 * ------private members------
+	 *
+	 * (frequency, int):
+	 * DAILY, WEEKLY, MONTHLY or YEARLY.
+	 *
+	 * (step, int):
+	 * days between occurrences of a daily or weekly rule.
+	 *
+	 * (anchor, long):
+	 * epoch day a daily or weekly rule falls on, every other occurrence is a multiple of
+	 * step away from it.
+	 *
+	 * (startDay, long):
+	 * epoch day before which the rule has no occurrences, Long.MIN_VALUE for none.
+	 *
+	 * (dayOfWeek, int):
+	 * weekday (1-7, Sunday is 1) of a weekly or monthly rule.
+	 *
+	 * (nth, int):
+	 * which weekday of the month a monthly rule falls on (1-5 or LAST).
+	 *
+	 * (month, int):
+	 * month (0-11) of a yearly rule.
+	 *
+	 * (dayOfMonth, int):
+	 * day of the month of a yearly rule.
+	 *
+	 * (exceptions, long[]):
+	 * epoch days the meeting is skipped on, sorted. Only the first exceptionCount
+	 * entries are used.
+	 *
+	 * (exceptionCount, int):
+	 * number of exception days.
+	 *
+	 * */
+
+	public static final int DAILY = 0;
+	public static final int WEEKLY = 1;
+	public static final int MONTHLY = 2;
+	public static final int YEARLY = 3;
+
+	//nth value of a monthly rule falling on the last weekday of the month
+	public static final int LAST = -1;
+
+	private int frequency;
+	private int step;
+	private long anchor;
+	private long startDay;
+	private int dayOfWeek;
+	private int nth;
+	private int month;
+	private int dayOfMonth;
+	private long[] exceptions;
+	private int exceptionCount;
+
+	private RecurrenceRule(int frequency, int step, int dayOfWeek, int nth, int month, int dayOfMonth)
+	{
+		this.frequency = frequency;
+		this.step = step;
+		this.anchor = frequency == WEEKLY ? EpochDay.nextOrSame(0, dayOfWeek) : 0;
+		this.startDay = Long.MIN_VALUE;
+		this.dayOfWeek = dayOfWeek;
+		this.nth = nth;
+		this.month = month;
+		this.dayOfMonth = dayOfMonth;
+		this.exceptions = new long[0];
+		this.exceptionCount = 0;
+	}
+
+	/*
+	 * A meeting every intervalDays days, counted from January 1st 1970.
+	 * */
+	public static RecurrenceRule daily(int intervalDays)
+	{
+		if (intervalDays < 1)
+		{
+			throw new IllegalArgumentException("interval must be at least 1: " + intervalDays);
+		}
+		return new RecurrenceRule(DAILY, intervalDays, 0, 0, 0, 0);
+	}
+
+	/*
+	 * A meeting every intervalDays days, the first one on the day of start.
+	 * */
+	public static RecurrenceRule daily(int intervalDays, Date start)
+	{
+		return daily(intervalDays).startingOn(EpochDay.fromDate(start));
+	}
+
+	/*
+	 * A meeting on a weekday (1-7, Sunday is 1) every intervalWeeks weeks, counted from
+	 * the first such weekday from January 1st 1970.
+	 * */
+	public static RecurrenceRule weekly(int dayOfWeek, int intervalWeeks)
+	{
+		checkDayOfWeek(dayOfWeek);
+		if (intervalWeeks < 1)
+		{
+			throw new IllegalArgumentException("interval must be at least 1: " + intervalWeeks);
+		}
+		return new RecurrenceRule(WEEKLY, 7*intervalWeeks, dayOfWeek, 0, 0, 0);
+	}
+
+	/*
+	 * A meeting on a weekday (1-7, Sunday is 1) every intervalWeeks weeks, the first one
+	 * on the first such weekday on or after the day of start.
+	 * */
+	public static RecurrenceRule weekly(int dayOfWeek, int intervalWeeks, Date start)
+	{
+		return weekly(dayOfWeek, intervalWeeks).startingOn(EpochDay.fromDate(start));
+	}
+
+	private RecurrenceRule startingOn(long epochDay)
+	{
+		this.anchor = frequency == WEEKLY ? EpochDay.nextOrSame(epochDay, dayOfWeek) : epochDay;
+		this.startDay = epochDay;
+		return this;
+	}
+
+	/*
+	 * A meeting on the nth (1-5, or LAST) weekday (1-7, Sunday is 1) of every month. Months
+	 * without a 5th such weekday are skipped.
+	 * */
+	public static RecurrenceRule monthly(int nth, int dayOfWeek)
+	{
+		checkDayOfWeek(dayOfWeek);
+		if (nth != LAST && (nth < 1 || nth > 5))
+		{
+			throw new IllegalArgumentException("nth must be 1-5 or LAST: " + nth);
+		}
+		return new RecurrenceRule(MONTHLY, 0, dayOfWeek, nth, 0, 0);
+	}
+
+	/*
+	 * A meeting every year on a month (0-11, same as java.util.Calendar) and day of the
+	 * month. Years the date does not exist in are skipped.
+	 * */
+	public static RecurrenceRule yearly(int month, int dayOfMonth)
+	{
+		if (month < 0 || month > 11 || dayOfMonth < 1 || dayOfMonth > 31)
+		{
+			throw new IllegalArgumentException("no such date: " + month + "/" + dayOfMonth);
+		}
+		return new RecurrenceRule(YEARLY, 0, 0, 0, month, dayOfMonth);
+	}
+
+	private static void checkDayOfWeek(int dayOfWeek)
+	{
+		if (dayOfWeek < 1 || dayOfWeek > 7)
+		{
+			throw new IllegalArgumentException("dayOfWeek must be 1-7: " + dayOfWeek);
+		}
+	}
+
+	//Mutators
+
+	/*
+	 * Skips the meeting on the day of date. Exceptions are meant to be added before the
+	 * rule is used in queries.
+	 * */
+	public void addException(Date date)
+	{
+		long epochDay = EpochDay.fromDate(date);
+		int index = Arrays.binarySearch(exceptions, 0, exceptionCount, epochDay);
+		if (index >= 0)
+		{
+			return;
+		}
+
+		//Kept sorted so an OccurrenceIterator can walk them alongside the occurrences
+		index = -index - 1;
+		if (exceptionCount == exceptions.length)
+		{
+			exceptions = Arrays.copyOf(exceptions, Math.max(4, exceptionCount*2));
+		}
+		System.arraycopy(exceptions, index, exceptions, index + 1, exceptionCount - index);
+		exceptions[index] = epochDay;
+		exceptionCount += 1;
+	}
+
+	//Accessors
+
+	public int getFrequency()
+	{
+		return this.frequency;
+	}
+
+	public boolean isException(long epochDay)
+	{
+		return Arrays.binarySearch(exceptions, 0, exceptionCount, epochDay) >= 0;
+	}
+
+	/*
+	 * Returns an iterator over the occurrences from firstDay to lastDay (inclusive epoch
+	 * days), in order.
+	 * */
+	public OccurrenceIterator occurrences(long firstDay, long lastDay)
+	{
+		return new OccurrenceIterator(this, firstDay, lastDay);
+	}
+
+	/*
+	 * Epoch day the rule falls on in a month (a monthIndex, see EpochDay), or
+	 * Long.MIN_VALUE if it does not fall on any day of that month.
+	 * */
+	private long dayInMonth(int monthIndex)
+	{
+		long first = EpochDay.firstOfMonth(monthIndex);
+		long firstOfNext = EpochDay.firstOfMonth(monthIndex + 1);
+
+		long day;
+		if (frequency == YEARLY)
+		{
+			day = first + dayOfMonth - 1;
+		}
+		else if (nth == LAST)
+		{
+			day = EpochDay.previousOrSame(firstOfNext - 1, dayOfWeek);
+		}
+		else
+		{
+			day = EpochDay.nextOrSame(first, dayOfWeek) + 7L*(nth - 1);
+		}
+		return day < firstOfNext ? day : Long.MIN_VALUE;
+	}
+
+	/*
+	 * Lazy iterator over the occurrences of a rule, returned as primitive epoch days.
+	 *
+	 * */
+	public static class OccurrenceIterator
+	{
+		/*
+		 * ------private members------
+		 *
+		 * (rule, RecurrenceRule):
+		 * rule the occurrences come from.
+		 *
+		 * (lastDay, long):
+		 * last epoch day to return occurrences for.
+		 *
+		 * (cursor, long):
+		 * next candidate epoch day of a daily or weekly rule (always a multiple of step
+		 * from its anchor), next candidate monthIndex of a monthly or yearly rule.
+		 *
+		 * (exceptionIndex, int):
+		 * first exception of the rule that is not before the last candidate.
+		 *
+		 * (next, long):
+		 * occurrence returned by the next call to nextDay, Long.MAX_VALUE when there is none.
+		 *
+		 * */
+
+		private RecurrenceRule rule;
+		private long lastDay;
+		private long cursor;
+		private int exceptionIndex;
+		private long next;
+
+		private OccurrenceIterator(RecurrenceRule rule, long firstDay, long lastDay)
+		{
+			this.rule = rule;
+			this.lastDay = lastDay;
+			this.exceptionIndex = 0;
+
+			firstDay = Math.max(firstDay, rule.startDay);
+			switch (rule.frequency)
+			{
+				//The first day from firstDay on a multiple of step from the anchor, which is
+				//on the rule's weekday for a weekly rule
+				case DAILY:
+				case WEEKLY:
+					cursor = firstDay + Math.floorMod(rule.anchor - firstDay, (long) rule.step);
+					break;
+				case MONTHLY:
+					cursor = EpochDay.monthIndex(firstDay);
+					break;
+				default:
+					cursor = Math.floorDiv(EpochDay.monthIndex(firstDay), 12)*12 + rule.month;
+					break;
+			}
+			this.next = find(firstDay);
+		}
+
+		public boolean hasNext()
+		{
+			return next != Long.MAX_VALUE;
+		}
+
+		/*
+		 * Returns the next occurrence as an epoch day.
+		 * */
+		public long nextDay()
+		{
+			if (next == Long.MAX_VALUE)
+			{
+				throw new NoSuchElementException();
+			}
+			long day = next;
+			next = find(day + 1);
+			return day;
+		}
+
+		/*
+		 * Returns the first occurrence on or after from that is not an exception, or
+		 * Long.MAX_VALUE if there is none up to lastDay.
+		 * */
+		private long find(long from)
+		{
+			while (true)
+			{
+				long day = candidate();
+				if (day > lastDay)
+				{
+					return Long.MAX_VALUE;
+				}
+				if (day < from)
+				{
+					continue;
+				}
+
+				while (exceptionIndex < rule.exceptionCount && rule.exceptions[exceptionIndex] < day)
+				{
+					exceptionIndex += 1;
+				}
+				if (exceptionIndex < rule.exceptionCount && rule.exceptions[exceptionIndex] == day)
+				{
+					continue;
+				}
+				return day;
+			}
+		}
+
+		/*
+		 * Returns the next day the rule falls on and moves the cursor past it. Returns
+		 * Long.MIN_VALUE for a month the rule skips, and a day past lastDay once the
+		 * cursor has passed it.
+		 * */
+		private long candidate()
+		{
+			if (rule.frequency == DAILY || rule.frequency == WEEKLY)
+			{
+				long day = cursor;
+				cursor += rule.step;
+				return day;
+			}
+
+			int monthIndex = (int) cursor;
+			cursor += rule.frequency == MONTHLY ? 1 : 12;
+			if (EpochDay.firstOfMonth(monthIndex) > lastDay)
+			{
+				return Long.MAX_VALUE;
+			}
+			return rule.dayInMonth(monthIndex);
+		}
+	}
+}
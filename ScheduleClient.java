@@ -0,0 +1,249 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.util.*;
+
+/*
+ * ScheduleClient
+ *
+ * Load generator for ScheduleServer. A number of connections each send their share of
+ * requests, keeping up to pipeline requests sent and not yet answered, and the time from
+ * sending a request to reading its answer is recorded. Once all are answered the client
+ * prints throughput and latency percentiles.
+ *
+ * Requests are spread over users and over 2020 and 2021: a quarter add an event, one in
+ * twenty adds a day off, the rest are SCHEDULE and DAYSOFF requests of 1 to 52 weeks.
+ * Requests answered BUSY are counted, not retried.
+ *
+ *		java ScheduleClient [-host localhost] [-port N] [-connections 16] [-requests 200000]
+ *				[-pipeline 8] [-users 100] [-inflight N]
+ *
+ * Without -port the client starts a ScheduleServer of its own on a free port, so the whole
+ * run stays on localhost in one process. -inflight sets that server's maxInFlight, a low
+ * value shows requests being answered BUSY.
+ *
+ * */
+
+public class ScheduleClient {
+
+	private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+	public static void main(String[] args) throws Exception
+	{
+		String host = "localhost";
+		int port = 0;
+		int connections = 16;
+		int requests = 200000;
+		int pipeline = 8;
+		int users = 100;
+		int maxInFlight = ScheduleServer.DEFAULT_MAX_IN_FLIGHT;
+		for (int i = 0; i + 1 < args.length; i += 2)
+		{
+			String value = args[i + 1];
+			switch (args[i])
+			{
+				case "-host": host = value; break;
+				case "-port": port = Integer.parseInt(value); break;
+				case "-connections": connections = Integer.parseInt(value); break;
+				case "-requests": requests = Integer.parseInt(value); break;
+				case "-pipeline": pipeline = Integer.parseInt(value); break;
+				case "-users": users = Integer.parseInt(value); break;
+				case "-inflight": maxInFlight = Integer.parseInt(value); break;
+				default: throw new IllegalArgumentException("unknown option " + args[i]);
+			}
+		}
+
+		ScheduleServer server = null;
+		if (port == 0)
+		{
+			server = new ScheduleServer(maxInFlight, ScheduleServer.DEFAULT_MAX_CONNECTIONS);
+			port = server.start(0);
+			System.out.println("started a server on localhost:" + port + " ("
+					+ (server.usesVirtualThreads() ? "virtual" : "platform") + " threads)");
+		}
+
+		Connection[] clients = new Connection[connections];
+		Thread[] threads = new Thread[connections];
+		for (int i = 0; i < connections; i++)
+		{
+			int share = requests/connections + (i < requests%connections ? 1 : 0);
+			clients[i] = new Connection(host, port, share, pipeline, users, new Random(31 + i));
+			threads[i] = new Thread(clients[i], "schedule-client-" + i);
+		}
+
+		long start = System.nanoTime();
+		for (Thread thread : threads)
+		{
+			thread.start();
+		}
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+		long elapsed = System.nanoTime() - start;
+
+		if (server != null)
+		{
+			server.close();
+		}
+		report(clients, elapsed);
+	}
+
+	/*
+	 * Prints counts, throughput and percentiles over every connection.
+	 * */
+	private static void report(Connection[] clients, long elapsed) throws IOException
+	{
+		int answered = 0;
+		long busy = 0;
+		long errors = 0;
+		for (Connection client : clients)
+		{
+			if (client.failure != null)
+			{
+				throw client.failure;
+			}
+			answered += client.answered;
+			busy += client.busy;
+			errors += client.errors;
+		}
+
+		long[] latencies = new long[answered];
+		int filled = 0;
+		for (Connection client : clients)
+		{
+			System.arraycopy(client.latencies, 0, latencies, filled, client.answered);
+			filled += client.answered;
+		}
+		Arrays.sort(latencies);
+
+		System.out.printf("%d requests in %.2f s, %.0f requests/s, %d busy, %d errors%n",
+				answered, elapsed/1e9, answered/(elapsed/1e9), busy, errors);
+		for (double percentile : PERCENTILES)
+		{
+			String label = percentile == Math.rint(percentile) ? String.valueOf((int) percentile) : String.valueOf(percentile);
+			System.out.printf("p%-5s %10.1f us%n", label, percentile(latencies, percentile)/1e3);
+		}
+		System.out.printf("max    %10.1f us%n", latencies.length == 0 ? 0 : latencies[latencies.length - 1]/1e3);
+	}
+
+	private static double percentile(long[] sorted, double percentile)
+	{
+		if (sorted.length == 0)
+		{
+			return 0;
+		}
+		int index = (int) Math.ceil(percentile/100*sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+
+	/*
+	 * One connection sending its requests, pipelined.
+	 * */
+	private static class Connection implements Runnable
+	{
+		private String host;
+		private int port;
+		private int requests;
+		private int pipeline;
+		private int users;
+		private Random random;
+
+		//send time of every request not answered yet, oldest first
+		private ArrayDeque<Long> sent;
+
+		private long[] latencies;
+		private int answered;
+		private long busy;
+		private long errors;
+		private IOException failure;
+
+		Connection(String host, int port, int requests, int pipeline, int users, Random random)
+		{
+			this.host = host;
+			this.port = port;
+			this.requests = requests;
+			this.pipeline = Math.max(1, pipeline);
+			this.users = users;
+			this.random = random;
+			this.sent = new ArrayDeque<Long>();
+			this.latencies = new long[requests];
+		}
+
+		public void run()
+		{
+			try (Socket socket = new Socket(host, port))
+			{
+				socket.setTcpNoDelay(true);
+				BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+				Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+
+				int written = 0;
+				while (answered < requests)
+				{
+					//Fill the pipeline, then wait for the oldest answer
+					while (written < requests && sent.size() < pipeline)
+					{
+						out.write(nextRequest());
+						out.write('\n');
+						sent.add(System.nanoTime());
+						written += 1;
+					}
+					out.flush();
+
+					String answer = in.readLine();
+					if (answer == null)
+					{
+						throw new EOFException("server closed the connection");
+					}
+					latencies[answered++] = System.nanoTime() - sent.poll();
+					if (answer.equals("BUSY"))
+					{
+						busy += 1;
+					}
+					else if (!answer.startsWith("OK"))
+					{
+						errors += 1;
+					}
+				}
+			}
+			catch (IOException e)
+			{
+				failure = e;
+			}
+		}
+
+		private String nextRequest()
+		{
+			String user = "user" + random.nextInt(users);
+			int dice = random.nextInt(20);
+			int start = random.nextInt(22*60);
+			String times = time(start) + " " + time(start + 15 + random.nextInt(106));
+			long day = EpochDay.of(2020, 0, 1) + random.nextInt(731);
+
+			if (dice < 5)
+			{
+				return "EVENT " + user + " " + date(day) + " " + times + " meeting";
+			}
+			if (dice == 5)
+			{
+				return "DAYOFF " + user + " " + date(day);
+			}
+			String command = dice < 13 ? "SCHEDULE " : "DAYSOFF ";
+			return command + user + " " + date(day) + " " + date(day + 7*(1 + random.nextInt(52)) - 1) + " " + times;
+		}
+
+		private static String time(int minutes)
+		{
+			return String.format("%02d:%02d", minutes/60, minutes%60);
+		}
+
+		private static String date(long epochDay)
+		{
+			Calendar cal = Calendar.getInstance();
+			EpochDay.toCalendar(epochDay, cal);
+			return String.format("%04d-%02d-%02d", cal.get(Calendar.YEAR), cal.get(Calendar.MONTH) + 1,
+					cal.get(Calendar.DAY_OF_MONTH));
+		}
+	}
+}
@@ -0,0 +1,510 @@
+import java.io.*;
+import java.lang.reflect.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/*
+ * ScheduleServer
+ *
+ * Serves the CalendarManagers of many users over a line protocol on a local TCP socket.
+ * Each request is one line of space separated words and is answered by one line, in the
+ * order the requests were sent:
+ *
+ *		EVENT user date start end [name]		adds an event			OK
+ *		DAYOFF user date						adds a day off			OK
+ *		EXCLUDE user fromDate toDate			adds an exclusion		OK
+ *		SCHEDULE user startDate endDate start end	weekly request		OK meetings
+ *		DAYSOFF user startDate endDate start end	weekly request		OK meetings
+ *		PING									OK
+ *
+ * Dates are yyyy-MM-dd and times HH:mm, as in CalendarImporter. Meeting requests repeat
+ * on the weekday of startDate. A malformed request is answered with ERR and a message, and
+ * so is a date that does not exist, a time past 24:00 or a span that does not end after
+ * it starts (a date span may end on the day it starts).
+ *
+ * Every connection is handled by a thread of its own: a virtual thread when the JVM has
+ * them (Java 21 on), a platform thread otherwise. A client may pipeline requests, that is
+ * send many of them without waiting for the answers; answers to requests already read are
+ * written together and flushed once the connection has nothing more to read.
+ *
+ * Overload is answered rather than queued. At most maxInFlight requests are executed at
+ * once across all connections, a request arriving when they all run is answered BUSY
+ * without being executed, and a connection beyond maxConnections is sent BUSY and closed.
+ * Clients retry BUSY requests later.
+ *
+ * Managers are created in concurrent mode the first time a user is named. See
+ * ScheduleClient for a load generator reporting latency percentiles.
+ *
+ * */
+
+public class ScheduleServer implements Closeable {
+
+	/*
+	 * ------private members------
+	 *
+	 * (managers, ConcurrentHashMap<String, CalendarManager>):
+	 * manager of every user named so far.
+	 *
+	 * (serverSocket, ServerSocket):
+	 * socket accepting connections, null until start is called.
+	 *
+	 * (executor, ExecutorService):
+	 * runs one task per connection (see connectionExecutor).
+	 *
+	 * (virtualThreads, boolean):
+	 * whether executor starts virtual threads.
+	 *
+	 * (inFlight, Semaphore):
+	 * a permit per request that can be executed at once.
+	 *
+	 * (connectionPermits, Semaphore):
+	 * a permit per connection that can be open at once.
+	 *
+	 * (connections, Set<Socket>):
+	 * connections accepted and not closed yet, closed by close.
+	 *
+	 * (requests, rejected, AtomicLong):
+	 * requests answered, and requests and connections answered BUSY.
+	 *
+	 * */
+
+	public static final int DEFAULT_PORT = 7300;
+
+	//requests executed at once and connections open at once unless told otherwise. Requests
+	//are short but a thread can be preempted holding a permit, so there are several per core
+	public static final int DEFAULT_MAX_IN_FLIGHT = Math.max(64, Runtime.getRuntime().availableProcessors()*16);
+	public static final int DEFAULT_MAX_CONNECTIONS = 10000;
+
+	private ConcurrentHashMap<String, CalendarManager> managers;
+	private ServerSocket serverSocket;
+	private ExecutorService executor;
+	private boolean virtualThreads;
+	private Semaphore inFlight;
+	private Semaphore connectionPermits;
+	private Set<Socket> connections;
+	private AtomicLong requests;
+	private AtomicLong rejected;
+
+	/*
+	 * Constructor for ScheduleServer. Nothing is bound until start is called.
+	 *
+	 * */
+	public ScheduleServer(int maxInFlight, int maxConnections)
+	{
+		this.managers = new ConcurrentHashMap<String, CalendarManager>();
+		this.inFlight = new Semaphore(maxInFlight);
+		this.connectionPermits = new Semaphore(maxConnections);
+		this.connections = ConcurrentHashMap.newKeySet();
+		this.requests = new AtomicLong();
+		this.rejected = new AtomicLong();
+	}
+
+	/*
+	 * Binds to port on the loopback address (0 picks a free port) and starts accepting
+	 * connections. Returns the port bound.
+	 * */
+	public synchronized int start(int port) throws IOException
+	{
+		serverSocket = new ServerSocket(port, 1024, InetAddress.getLoopbackAddress());
+		executor = connectionExecutor();
+
+		Thread acceptor = new Thread(() -> accept(), "schedule-server-accept");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		return serverSocket.getLocalPort();
+	}
+
+	/*
+	 * A virtual thread per task on Java 21 and later. The method is looked up reflectively
+	 * so the server still compiles and runs on Java 8, where (as on 19 and 20 without
+	 * preview features) connections get a daemon platform thread each.
+	 * */
+	private ExecutorService connectionExecutor()
+	{
+		try
+		{
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			virtualThreads = true;
+			return (ExecutorService) method.invoke(null);
+		}
+		catch (ReflectiveOperationException | UnsupportedOperationException e)
+		{
+			virtualThreads = false;
+			return Executors.newCachedThreadPool(task ->
+			{
+				Thread thread = new Thread(task, "schedule-server-connection");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	private void accept()
+	{
+		while (!serverSocket.isClosed())
+		{
+			Socket socket;
+			try
+			{
+				socket = serverSocket.accept();
+			}
+			catch (IOException e)
+			{
+				//The server socket was closed
+				return;
+			}
+
+			//Registered before anything else is done with it, so close either finds the socket
+			//in connections or has closed the server socket before it was registered
+			connections.add(socket);
+			if (serverSocket.isClosed())
+			{
+				refuse(socket);
+				return;
+			}
+
+			if (!connectionPermits.tryAcquire())
+			{
+				rejected.incrementAndGet();
+				refuse(socket);
+				continue;
+			}
+			try
+			{
+				executor.execute(() -> serve(socket));
+			}
+			catch (RejectedExecutionException e)
+			{
+				connectionPermits.release();
+				refuse(socket);
+			}
+		}
+	}
+
+	/*
+	 * Tells a connection the server is busy and closes it.
+	 * */
+	private void refuse(Socket socket)
+	{
+		connections.remove(socket);
+		try
+		{
+			socket.getOutputStream().write("BUSY\n".getBytes(StandardCharsets.UTF_8));
+			socket.close();
+		}
+		catch (IOException e)
+		{
+			//The client is gone already
+		}
+	}
+
+	/*
+	 * Reads requests from a connection until it is closed and answers each of them.
+	 * */
+	private void serve(Socket socket)
+	{
+		try
+		{
+			socket.setTcpNoDelay(true);
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+
+			String line;
+			while ((line = in.readLine()) != null)
+			{
+				out.write(handle(line));
+				out.write('\n');
+
+				//Pipelined requests already received are answered before anything is sent
+				if (!in.ready())
+				{
+					out.flush();
+				}
+			}
+			out.flush();
+		}
+		catch (IOException e)
+		{
+			//The connection was reset or the server closed it
+		}
+		finally
+		{
+			connections.remove(socket);
+			connectionPermits.release();
+			try
+			{
+				socket.close();
+			}
+			catch (IOException e)
+			{
+				//Nothing left to do with the socket
+			}
+		}
+	}
+
+	/*
+	 * Answers one request line, BUSY if maxInFlight requests are being executed.
+	 * */
+	String handle(String line)
+	{
+		if (!inFlight.tryAcquire())
+		{
+			rejected.incrementAndGet();
+			return "BUSY";
+		}
+		try
+		{
+			requests.incrementAndGet();
+			return execute(line.trim().split(" +"));
+		}
+		catch (RuntimeException e)
+		{
+			return "ERR " + e.getMessage();
+		}
+		finally
+		{
+			inFlight.release();
+		}
+	}
+
+	private String execute(String[] words)
+	{
+		String command = words[0];
+
+		if (command.equals("PING"))
+		{
+			return "OK";
+		}
+
+		if (command.equals("EVENT"))
+		{
+			expect(words, 5, 6);
+			long epochDay = parseDate(words[2]);
+			int start = parseTime(words[3]);
+			int end = parseTime(words[4]);
+			expectOrder(start, end, "end time before start time");
+			Event event = new Event(words.length > 5 ? words[5] : null, EpochDay.toDate(epochDay),
+					EpochDay.dayOfWeek(epochDay), 0, start, 0, end);
+			manager(words[1]).addEvent(event);
+			return "OK";
+		}
+
+		if (command.equals("DAYOFF"))
+		{
+			expect(words, 3, 3);
+			Calendar cal = Calendar.getInstance();
+			EpochDay.toCalendar(parseDate(words[2]), cal);
+			manager(words[1]).addDayOff(new Day(cal.get(Calendar.YEAR), cal.get(Calendar.MONTH),
+					cal.get(Calendar.DAY_OF_MONTH), true));
+			return "OK";
+		}
+
+		if (command.equals("EXCLUDE"))
+		{
+			expect(words, 4, 4);
+			long fromDay = parseDate(words[2]);
+			long toDay = parseDate(words[3]);
+			expectOrder(fromDay, toDay + 1, "toDate before fromDate");
+			manager(words[1]).addExclusion(EpochDay.toDate(fromDay), EpochDay.toDate(toDay));
+			return "OK";
+		}
+
+		if (command.equals("SCHEDULE") || command.equals("DAYSOFF"))
+		{
+			expect(words, 6, 6);
+			long startDay = parseDate(words[2]);
+			long endDay = parseDate(words[3]);
+			int start = parseTime(words[4]);
+			int end = parseTime(words[5]);
+			expectOrder(startDay, endDay + 1, "endDate before startDate");
+			expectOrder(start, end, "end time before start time");
+			Event event = new Event("request", EpochDay.dayOfWeek(startDay), 0, start, 0, end);
+			MeetingRequest request = new MeetingRequest(EpochDay.toDate(startDay), EpochDay.toDate(endDay), event);
+
+			CalendarManager manager = manager(words[1]);
+			int meetings = command.equals("SCHEDULE") ? manager.checkOccurrencesSchedule(request)
+					: manager.checkOccurrencesDaysOff(request);
+			return "OK " + meetings;
+		}
+
+		throw new IllegalArgumentException("unknown command " + command);
+	}
+
+	private CalendarManager manager(String user)
+	{
+		return managers.computeIfAbsent(user, name -> new CalendarManager(name, true));
+	}
+
+	private static void expect(String[] words, int min, int max)
+	{
+		if (words.length < min || words.length > max)
+		{
+			throw new IllegalArgumentException(words[0] + " takes " + (min - 1)
+					+ (max > min ? " or " + (max - 1) : "") + " arguments");
+		}
+	}
+
+	/*
+	 * Fails unless first is before last.
+	 * */
+	private static void expectOrder(long first, long last, String message)
+	{
+		if (last <= first)
+		{
+			throw new IllegalArgumentException(message);
+		}
+	}
+
+	/*
+	 * Epoch day of a yyyy-MM-dd date. A date that does not exist (2021-02-30) is refused
+	 * rather than rolled over into the next month.
+	 * */
+	private static long parseDate(String value)
+	{
+		if (value.length() != 10 || value.charAt(4) != '-' || value.charAt(7) != '-')
+		{
+			throw new IllegalArgumentException("bad date " + value);
+		}
+		int year = parseDigits(value, 0, 4);
+		int month = parseDigits(value, 5, 7);
+		int day = parseDigits(value, 8, 10);
+		if (month < 1 || month > 12 || day < 1)
+		{
+			throw new IllegalArgumentException("bad date " + value);
+		}
+
+		long epochDay = EpochDay.of(year, month - 1, day);
+		Calendar cal = Calendar.getInstance();
+		EpochDay.toCalendar(epochDay, cal);
+		if (cal.get(Calendar.MONTH) != month - 1 || cal.get(Calendar.DAY_OF_MONTH) != day)
+		{
+			throw new IllegalArgumentException("bad date " + value);
+		}
+		return epochDay;
+	}
+
+	/*
+	 * Minute of the day of a HH:mm time, 24:00 being the end of the day.
+	 * */
+	private static int parseTime(String value)
+	{
+		int colon = value.indexOf(':');
+		if (colon < 1 || value.length() - colon != 3)
+		{
+			throw new IllegalArgumentException("bad time " + value);
+		}
+		int hours = parseDigits(value, 0, colon);
+		int minutes = parseDigits(value, colon + 1, value.length());
+		if (minutes >= 60 || hours*60 + minutes > 1440)
+		{
+			throw new IllegalArgumentException("bad time " + value);
+		}
+		return hours*60 + minutes;
+	}
+
+	/*
+	 * Value of the decimal digits from begin to end of a string. Unlike Integer.parseInt
+	 * no sign is taken, and at most four digits are.
+	 * */
+	private static int parseDigits(String value, int begin, int end)
+	{
+		if (end - begin > 4)
+		{
+			throw new IllegalArgumentException("bad number " + value);
+		}
+		int number = 0;
+		for (int i = begin; i < end; i++)
+		{
+			char c = value.charAt(i);
+			if (c < '0' || c > '9')
+			{
+				throw new IllegalArgumentException("bad number " + value);
+			}
+			number = number*10 + (c - '0');
+		}
+		return number;
+	}
+
+	//Accessors
+
+	/*
+	 * Whether connections are handled on virtual threads, known once start was called.
+	 * */
+	public boolean usesVirtualThreads()
+	{
+		return this.virtualThreads;
+	}
+
+	public long getRequestCount()
+	{
+		return requests.get();
+	}
+
+	public long getRejectedCount()
+	{
+		return rejected.get();
+	}
+
+	/*
+	 * Manager of a user, null if the user was never named.
+	 * */
+	public CalendarManager getManager(String user)
+	{
+		return managers.get(user);
+	}
+
+	/*
+	 * Stops accepting connections and closes the open ones.
+	 * */
+	public synchronized void close() throws IOException
+	{
+		if (serverSocket == null)
+		{
+			return;
+		}
+		serverSocket.close();
+		for (Socket socket : connections)
+		{
+			socket.close();
+		}
+		executor.shutdown();
+	}
+
+	/*
+	 * Runs a server until the process is stopped:
+	 *
+	 *		java ScheduleServer [-port 7300] [-inflight N] [-connections N]
+	 *
+	 * */
+	public static void main(String[] args) throws IOException, InterruptedException
+	{
+		int port = DEFAULT_PORT;
+		int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+		int maxConnections = DEFAULT_MAX_CONNECTIONS;
+		for (int i = 0; i + 1 < args.length; i += 2)
+		{
+			if (args[i].equals("-port"))
+			{
+				port = Integer.parseInt(args[i + 1]);
+			}
+			else if (args[i].equals("-inflight"))
+			{
+				maxInFlight = Integer.parseInt(args[i + 1]);
+			}
+			else if (args[i].equals("-connections"))
+			{
+				maxConnections = Integer.parseInt(args[i + 1]);
+			}
+		}
+
+		ScheduleServer server = new ScheduleServer(maxInFlight, maxConnections);
+		port = server.start(port);
+		System.out.println("listening on localhost:" + port + " ("
+				+ (server.usesVirtualThreads() ? "virtual" : "platform") + " threads, "
+				+ maxInFlight + " requests in flight)");
+		Thread.currentThread().join();
+	}
+}
@@ -0,0 +1,410 @@
+import java.io.*;
+import java.util.*;
+import java.util.function.*;
+
+/*
+ * SegmentedDayIndex
+ *
+ * The days of one weekday bucket of CalendarManager, partitioned by time. Epoch days are
+ * split into segments of SEGMENT_DAYS days (52 weeks, about a year), each segment with its
+ * own DayIndex, so a growing calendar only ever rehashes the segment it grows in, range
+ * queries only visit the segments they cover, and whole past segments can be dropped
+ * (evictBefore) or written to disk (spillBefore).
+ *
+ * A spilled segment is kept as a file in the EventLog format and read back the first time
+ * one of its days is needed, so queries over a spilled range return the same counts as
+ * before, they just pay for reading the file once. Loading is synchronized per segment, so
+ * concurrent readers holding the weekday's read lock can trigger it safely.
+ *
+ * */
+
+public class SegmentedDayIndex {
+
+	/*
+	 * ------private members------
+	 *
+	 * (segments, Segment[]):
+	 * the segments, null where no day is stored. segments[i] covers segment number
+	 * firstSegment + i.
+	 *
+	 * (firstSegment, long):
+	 * segment number (epoch day / SEGMENT_DAYS) of segments[0].
+	 *
+	 * (size, int):
+	 * number of days held, in memory or spilled.
+	 *
+	 * (onLoad, Consumer<Day>):
+	 * called for every day read back from a spilled segment before it is used.
+	 *
+	 * */
+
+	public static final int SEGMENT_DAYS = 52*7;
+
+	private Segment[] segments;
+	private long firstSegment;
+	private int size;
+	private Consumer<Day> onLoad;
+
+	/*
+	 * Constructor for SegmentedDayIndex. onLoad prepares the days read back from disk the
+	 * way the owner prepares the days it stores (busy minutes, compact storage).
+	 *
+	 * */
+	public SegmentedDayIndex(Consumer<Day> onLoad)
+	{
+		this.segments = new Segment[0];
+		this.firstSegment = 0;
+		this.size = 0;
+		this.onLoad = onLoad;
+	}
+
+	/*
+	 * First epoch day of the segment holding an epoch day.
+	 * */
+	public static long segmentStart(long epochDay)
+	{
+		return Math.floorDiv(epochDay, SEGMENT_DAYS)*SEGMENT_DAYS;
+	}
+
+	/*
+	 * Returns the Day stored for an epoch day, or null if there is none. Reads the
+	 * segment back from disk if it was spilled.
+	 * */
+	public Day get(long epochDay)
+	{
+		Segment segment = segment(Math.floorDiv(epochDay, SEGMENT_DAYS));
+		if (segment == null)
+		{
+			return null;
+		}
+
+		DayIndex days = segment.days;
+		if (days == null)
+		{
+			days = segment.load(onLoad);
+		}
+		return days.get(epochDay);
+	}
+
+	/*
+	 * Returns the DayIndex of the segment holding an epoch day, reading it back from disk
+	 * if it was spilled, or null if the segment holds no day. Lets a walk over many weeks
+	 * look a segment up once instead of once per week.
+	 * */
+	public DayIndex segmentAt(long epochDay)
+	{
+		Segment segment = segment(Math.floorDiv(epochDay, SEGMENT_DAYS));
+		if (segment == null)
+		{
+			return null;
+		}
+
+		DayIndex days = segment.days;
+		return days != null ? days : segment.load(onLoad);
+	}
+
+	/*
+	 * Stores a Day for an epoch day, replacing any Day already stored for it. Returns
+	 * the replaced Day or null.
+	 * */
+	public Day put(long epochDay, Day day)
+	{
+		long number = Math.floorDiv(epochDay, SEGMENT_DAYS);
+		Segment segment = segment(number);
+		if (segment == null)
+		{
+			ensureSegment(number);
+			segment = new Segment(number);
+			segments[(int) (number - firstSegment)] = segment;
+		}
+
+		DayIndex days = segment.days;
+		if (days == null)
+		{
+			days = segment.load(onLoad);
+		}
+
+		Day replaced = days.put(epochDay, day);
+		if (replaced == null)
+		{
+			size += 1;
+			segment.count += 1;
+		}
+		return replaced;
+	}
+
+	/*
+	 * Removes the Day stored for an epoch day, dropping its segment once it is empty.
+	 * Returns the removed Day or null.
+	 * */
+	public Day remove(long epochDay)
+	{
+		long number = Math.floorDiv(epochDay, SEGMENT_DAYS);
+		Segment segment = segment(number);
+		if (segment == null)
+		{
+			return null;
+		}
+
+		DayIndex days = segment.days;
+		if (days == null)
+		{
+			days = segment.load(onLoad);
+		}
+
+		Day removed = days.remove(epochDay);
+		if (removed != null)
+		{
+			size -= 1;
+			segment.count -= 1;
+			if (segment.count == 0)
+			{
+				segments[(int) (number - firstSegment)] = null;
+			}
+		}
+		return removed;
+	}
+
+	public int size()
+	{
+		return this.size;
+	}
+
+	/*
+	 * Performs an action for every Day, in no particular order. Spilled segments are read
+	 * from disk for the call but stay spilled.
+	 * */
+	public void forEach(Consumer<Day> action)
+	{
+		for (Segment segment : segments)
+		{
+			if (segment != null)
+			{
+				segment.visit(action);
+			}
+		}
+	}
+
+	/*
+	 * Performs an action for every Day held in memory, in no particular order.
+	 * */
+	public void forEachResident(Consumer<Day> action)
+	{
+		for (Segment segment : segments)
+		{
+			DayIndex days = segment == null ? null : segment.days;
+			if (days != null)
+			{
+				days.forEach(action);
+			}
+		}
+	}
+
+	/*
+	 * Returns the days stored for the epoch days from to to (inclusive), sorted by
+	 * epoch day. Only the segments covering the range are visited.
+	 * */
+	public Day[] daysBetween(long from, long to)
+	{
+		long low = Math.max(Math.floorDiv(from, SEGMENT_DAYS), firstSegment);
+		long high = Math.min(Math.floorDiv(to, SEGMENT_DAYS), firstSegment + segments.length - 1);
+
+		//Segments are in epoch day order, so concatenating their sorted days keeps the order
+		ArrayList<Day> days = new ArrayList<Day>();
+		for (long number = low; number <= high; number++)
+		{
+			Segment segment = segments[(int) (number - firstSegment)];
+			if (segment == null)
+			{
+				continue;
+			}
+
+			DayIndex index = segment.days;
+			if (index == null)
+			{
+				index = segment.load(onLoad);
+			}
+			Collections.addAll(days, index.daysBetween(from, to));
+		}
+		return days.toArray(new Day[days.size()]);
+	}
+
+	/*
+	 * Drops every segment that ends before an epoch day, along with its spill file. The
+	 * segment holding epochDay itself is kept, so days from segmentStart(epochDay) on stay.
+	 * Returns the number of days dropped.
+	 * */
+	public int evictBefore(long epochDay)
+	{
+		long keep = Math.floorDiv(epochDay, SEGMENT_DAYS);
+		int evicted = 0;
+		for (int i = 0; i < segments.length && firstSegment + i < keep; i++)
+		{
+			Segment segment = segments[i];
+			if (segment != null)
+			{
+				if (segment.file != null)
+				{
+					segment.file.delete();
+				}
+				evicted += segment.count;
+				segments[i] = null;
+			}
+		}
+		size -= evicted;
+		return evicted;
+	}
+
+	/*
+	 * Writes every segment in memory that ends before an epoch day to directory, as
+	 * <prefix>-<segment number>.days, and frees its days. Returns the number of days
+	 * spilled.
+	 * */
+	public int spillBefore(long epochDay, File directory, String prefix) throws IOException
+	{
+		long keep = Math.floorDiv(epochDay, SEGMENT_DAYS);
+		int spilled = 0;
+		for (int i = 0; i < segments.length && firstSegment + i < keep; i++)
+		{
+			Segment segment = segments[i];
+			if (segment != null && segment.days != null)
+			{
+				spilled += segment.spill(new File(directory, prefix + "-" + segment.number + ".days"));
+			}
+		}
+		return spilled;
+	}
+
+	/*
+	 * Returns the segment with a segment number, or null if there is none.
+	 * */
+	private Segment segment(long number)
+	{
+		long i = number - firstSegment;
+		if (i < 0 || i >= segments.length)
+		{
+			return null;
+		}
+		return segments[(int) i];
+	}
+
+	/*
+	 * Grows the segments array (in either direction) so that it covers a segment number,
+	 * the same way WeekBitSet grows its words.
+	 * */
+	private void ensureSegment(long number)
+	{
+		if (segments.length == 0)
+		{
+			segments = new Segment[4];
+			firstSegment = number;
+			return;
+		}
+
+		long lastSegment = firstSegment + segments.length - 1;
+		if (number >= firstSegment && number <= lastSegment)
+		{
+			return;
+		}
+
+		long newFirst = Math.min(firstSegment, number);
+		long newLast = Math.max(lastSegment, number);
+		int length = segments.length;
+		while (length < newLast - newFirst + 1)
+		{
+			length *= 2;
+		}
+
+		//Growing downwards leaves the spare room below the new first segment
+		if (number < firstSegment)
+		{
+			newFirst = newLast - length + 1;
+		}
+
+		Segment[] grown = new Segment[length];
+		System.arraycopy(segments, 0, grown, (int) (firstSegment - newFirst), segments.length);
+		segments = grown;
+		firstSegment = newFirst;
+	}
+
+	/*
+	 * The days of one segment, either in memory (days) or spilled to a file (days is null).
+	 * */
+	private static class Segment
+	{
+		private long number;
+		private volatile DayIndex days;
+		private File file;
+		private int count;
+
+		Segment(long number)
+		{
+			this.number = number;
+			this.days = new DayIndex();
+			this.file = null;
+			this.count = 0;
+		}
+
+		/*
+		 * Reads a spilled segment back into memory and removes its file. A Day changed
+		 * after loading has to be written again anyway, the file would only be stale.
+		 * */
+		synchronized DayIndex load(Consumer<Day> onLoad)
+		{
+			if (days != null)
+			{
+				return days;
+			}
+
+			try
+			{
+				List<Day> loaded = EventLog.readDays(file);
+				DayIndex index = new DayIndex(loaded.size());
+				for (Day day : loaded)
+				{
+					onLoad.accept(day);
+					index.put(day.getEpochDay(), day);
+				}
+				file.delete();
+				file = null;
+				days = index;
+				return index;
+			}
+			catch (IOException e)
+			{
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		/*
+		 * Performs an action for every Day of the segment without loading it for good.
+		 * */
+		synchronized void visit(Consumer<Day> action)
+		{
+			if (days != null)
+			{
+				days.forEach(action);
+				return;
+			}
+
+			try
+			{
+				EventLog.readDays(file).forEach(action);
+			}
+			catch (IOException e)
+			{
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		synchronized int spill(File target) throws IOException
+		{
+			ArrayList<Day> all = new ArrayList<Day>(count);
+			days.forEach(day -> all.add(day));
+			EventLog.writeDays(target, all);
+			file = target;
+			days = null;
+			return all.size();
+		}
+	}
+}
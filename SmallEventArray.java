@@ -0,0 +1,303 @@
+import java.util.*;
+
+/*
+ * SmallEventArray
+ *
+ * The EventStore a Day starts with. Most days hold a handful of events, and for those a
+ * tree of Node objects is slower to search than a sorted array. The events are kept
+ * sorted by start minute, STRIDE ints per event in one int[]:
+ *
+ *		START		start minute of the event
+ *		END			end minute of the event
+ *		REACH		latest end minute of the events up to and including this one
+ *
+ * and the Event objects themselves in an Event[] in the same order, handed out as they
+ * were inserted.
+ *
+ * reach never decreases, so the first event that can overlap a window starting at start
+ * is the first one whose reach is at least start, found with a binary search. That event
+ * ends at or after start by construction, so it overlaps unless it starts after the
+ * window, and no later event can do better. Up to LINEAR_SCAN events a plain scan is
+ * cheaper than the search; it reads one int[] front to back and nothing else, which the
+ * JIT unrolls.
+ *
+ * Inserts and removes shift the arrays, which is linear, so a Day moves its events into
+ * an EventTree once it holds more than CAPACITY of them (see Day.addEventNode). The
+ * crossover can be measured with CalendarBenchmark's "small" section.
+ *
+ * */
+
+public class SmallEventArray implements EventStore {
+
+	/*
+	 * ------private members------
+	 *
+	 * (spans, int[]):
+	 * start minute, end minute and latest end so far of the events, STRIDE ints each,
+	 * sorted by start minute. Only the first size events are used.
+	 *
+	 * (events, Event[]):
+	 * the events, in the same order.
+	 *
+	 * (size, int):
+	 * number of events.
+	 *
+	 * */
+
+	//events a Day keeps in a SmallEventArray before moving to an EventTree
+	public static final int CAPACITY = 16;
+
+	//up to this many events overlaps are found with a scan instead of a binary search
+	private static final int LINEAR_SCAN = 8;
+
+	private static final int STRIDE = 3;
+	private static final int START = 0;
+	private static final int END = 1;
+	private static final int REACH = 2;
+
+	private int[] spans;
+	private Event[] events;
+	private int size;
+
+	/*
+	 * Default constructor for SmallEventArray.
+	 *
+	 * */
+	public SmallEventArray()
+	{
+		this.spans = new int[2*STRIDE];
+		this.events = new Event[2];
+		this.size = 0;
+	}
+
+	/*
+	 * Whether the array holds CAPACITY events or more, and a Day should move them into an
+	 * EventTree before adding more.
+	 * */
+	public boolean isFull()
+	{
+		return size >= CAPACITY;
+	}
+
+	/*
+	 * Inserts after every event with the same or an earlier start minute, the same order
+	 * EventTree keeps equal start minutes in.
+	 * */
+	public void insert(Event newEvent)
+	{
+		if (size == events.length)
+		{
+			grow(size*2);
+		}
+
+		int start = newEvent.getStart();
+		int index = size;
+		while (index > 0 && spans[(index - 1)*STRIDE + START] > start)
+		{
+			index -= 1;
+		}
+
+		System.arraycopy(spans, index*STRIDE, spans, (index + 1)*STRIDE, (size - index)*STRIDE);
+		System.arraycopy(events, index, events, index + 1, size - index);
+		spans[index*STRIDE + START] = start;
+		spans[index*STRIDE + END] = newEvent.getEnd();
+		events[index] = newEvent;
+		size += 1;
+		updateReach(index);
+	}
+
+	public boolean remove(Event event)
+	{
+		for (int i = 0; i < size && spans[i*STRIDE + START] <= event.getStart(); i++)
+		{
+			if (spans[i*STRIDE + START] == event.getStart() && EventTree.sameEvent(events[i], event))
+			{
+				System.arraycopy(spans, (i + 1)*STRIDE, spans, i*STRIDE, (size - i - 1)*STRIDE);
+				System.arraycopy(events, i + 1, events, i, size - i - 1);
+				size -= 1;
+				events[size] = null;
+				updateReach(i);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public void rebuild(List<Event> sorted)
+	{
+		if (sorted.size() > events.length)
+		{
+			grow(sorted.size());
+		}
+		if (sorted.size() < size)
+		{
+			Arrays.fill(events, sorted.size(), size, null);
+		}
+
+		size = sorted.size();
+		for (int i = 0; i < size; i++)
+		{
+			Event event = sorted.get(i);
+			spans[i*STRIDE + START] = event.getStart();
+			spans[i*STRIDE + END] = event.getEnd();
+			events[i] = event;
+		}
+		updateReach(0);
+	}
+
+	public Event overlapSearch(Event searchEvent)
+	{
+		int index = first(searchEvent.getStart(), searchEvent.getEnd());
+		return index < 0 ? null : events[index];
+	}
+
+	public boolean hasOverlap(int start, int end)
+	{
+		return first(start, end) >= 0;
+	}
+
+	/*
+	 * Index of the first event overlapping the minutes start to end, -1 if there is none.
+	 * */
+	private int first(int start, int end)
+	{
+		if (size <= LINEAR_SCAN)
+		{
+			for (int i = 0; i < size && spans[i*STRIDE + START] <= end; i++)
+			{
+				if (spans[i*STRIDE + END] >= start)
+				{
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		int index = firstReaching(start);
+		return index < size && spans[index*STRIDE + START] <= end ? index : -1;
+	}
+
+	/*
+	 * Index of the first event whose reach is at least start, size if there is none.
+	 * Every event before it ends before start.
+	 * */
+	private int firstReaching(int start)
+	{
+		int low = 0;
+		int high = size;
+		while (low < high)
+		{
+			int middle = (low + high) >>> 1;
+			if (spans[middle*STRIDE + REACH] < start)
+			{
+				low = middle + 1;
+			}
+			else
+			{
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/*
+	 * Starts at the first event reaching start and scans until the events start after end.
+	 * */
+	public Iterator<Event> overlaps(final int start, final int end)
+	{
+		return new Iterator<Event>()
+		{
+			private int next = advance(firstReaching(start));
+
+			private int advance(int index)
+			{
+				for (; index < size && spans[index*STRIDE + START] <= end; index++)
+				{
+					if (spans[index*STRIDE + END] >= start)
+					{
+						return index;
+					}
+				}
+				return -1;
+			}
+
+			public boolean hasNext()
+			{
+				return next >= 0;
+			}
+
+			public Event next()
+			{
+				if (next < 0)
+				{
+					throw new NoSuchElementException();
+				}
+				Event event = events[next];
+				next = advance(next + 1);
+				return event;
+			}
+		};
+	}
+
+	/*
+	 * Iterates over the events in order of start minute.
+	 * */
+	public Iterator<Event> iterator()
+	{
+		return new Iterator<Event>()
+		{
+			private int next = 0;
+
+			public boolean hasNext()
+			{
+				return next < size;
+			}
+
+			public Event next()
+			{
+				if (next >= size)
+				{
+					throw new NoSuchElementException();
+				}
+				return events[next++];
+			}
+		};
+	}
+
+	public int size()
+	{
+		return this.size;
+	}
+
+	public boolean isEmpty()
+	{
+		return this.size == 0;
+	}
+
+	/*
+	 * The array is flat: 1 when it holds events, 0 when it is empty.
+	 * */
+	public int height()
+	{
+		return size == 0 ? 0 : 1;
+	}
+
+	/*
+	 * Recomputes reach from an index on, after the events from there changed.
+	 * */
+	private void updateReach(int from)
+	{
+		int max = from == 0 ? Integer.MIN_VALUE : spans[(from - 1)*STRIDE + REACH];
+		for (int i = from; i < size; i++)
+		{
+			max = Math.max(max, spans[i*STRIDE + END]);
+			spans[i*STRIDE + REACH] = max;
+		}
+	}
+
+	private void grow(int capacity)
+	{
+		spans = Arrays.copyOf(spans, capacity*STRIDE);
+		events = Arrays.copyOf(events, capacity);
+	}
+}
@@ -0,0 +1,518 @@
+import java.util.*;
+
+/*
+ * VersionedCalendar
+ *
+ * A calendar for what-if scheduling. Its days live in one PersistentDayIndex per weekday
+ * and its events in PersistentEventTrees, so a version of the whole calendar is a handful
+ * of references and every change makes a new version that shares all untouched days and
+ * events with the old one.
+ *
+ * That makes three operations O(1):
+ *
+ * snapshot() freezes the current version. Reading it never takes a lock and never sees a
+ * later change, whatever other threads do to the calendar.
+ *
+ * fork() starts a tentative branch. Changes to the fork (try booking 40 meetings, count
+ * what is left) are invisible to the calendar it was forked from, and discarding them is
+ * just dropping the fork.
+ *
+ * commit() publishes a fork's version to its parent, provided the parent did not change
+ * since the fork was made (or last committed). Otherwise it returns false and changes
+ * nothing, and the caller forks again and retries with what is current.
+ *
+ * Changes to one VersionedCalendar are serialized; queries read the volatile current
+ * version once and work on it without any lock. copyOf(manager) imports the days of a
+ * CalendarManager once, after which the planning happens here.
+ *
+ * Excluded days (see ExclusionIndex) are not versioned. copyOf copies the manager's own
+ * index and references the shared ones, as the manager does, and every fork and snapshot
+ * keeps the indexes of the calendar it was made from. A change to a shared index shows
+ * in all of them at once.
+ *
+ * */
+
+public class VersionedCalendar {
+
+	/*
+	 * ------private members------
+	 *
+	 * (userName, String):
+	 * user of the calendar, copied from the CalendarManager it was made from.
+	 *
+	 * (current, Version):
+	 * the latest version, replaced (never changed) by every change.
+	 *
+	 * (parent, VersionedCalendar):
+	 * calendar this one was forked from, null for a calendar that was not forked.
+	 *
+	 * (base, Version):
+	 * version of the parent this fork starts from, what commit expects the parent to
+	 * still be at.
+	 *
+	 * (readOnly, boolean):
+	 * whether this is a snapshot, which refuses changes.
+	 *
+	 * (exclusions, ExclusionIndex[]):
+	 * indexes of excluded days checkOccurrencesDaysOff counts, empty unless the calendar
+	 * was copied from a CalendarManager using some.
+	 *
+	 * */
+
+	private String userName;
+	private volatile Version current;
+	private VersionedCalendar parent;
+	private Version base;
+	private boolean readOnly;
+	private ExclusionIndex[] exclusions;
+
+	/*
+	 * Constructor for an empty VersionedCalendar.
+	 *
+	 * */
+	public VersionedCalendar(String user)
+	{
+		this(user, new Version(), null, false, new ExclusionIndex[0]);
+	}
+
+	private VersionedCalendar(String user, Version version, VersionedCalendar parent, boolean readOnly,
+			ExclusionIndex[] exclusions)
+	{
+		this.userName = user;
+		this.current = version;
+		this.parent = parent;
+		this.base = version;
+		this.readOnly = readOnly;
+		this.exclusions = exclusions;
+	}
+
+	/*
+	 * Returns a VersionedCalendar holding the days, events and excluded days a
+	 * CalendarManager holds now. Each day's events are read in order and built into a
+	 * tree in linear time.
+	 * */
+	public static VersionedCalendar copyOf(CalendarManager manager)
+	{
+		final Version version = new Version();
+		manager.forEachDay(day ->
+		{
+			ArrayList<Event> sorted = new ArrayList<Event>(day.getEventCount());
+			for (Event event : day.getEvents())
+			{
+				sorted.add(event);
+			}
+			int weekday = day.getDayOfWeek()-1;
+			version.weekdays[weekday] = version.weekdays[weekday].put(day.getEpochDay(),
+					new DayVersion(day.getEpochDay(), day.isDayOff(), PersistentEventTree.build(sorted)));
+		});
+
+		//The manager's own index keeps changing with it, the shared ones are meant to be
+		//referenced
+		ExclusionIndex[] exclusions = manager.getExclusionIndexes().clone();
+		for (int i = 0; i < exclusions.length; i++)
+		{
+			if (exclusions[i] == manager.getExclusions())
+			{
+				exclusions[i] = exclusions[i].copy();
+			}
+		}
+		return new VersionedCalendar(manager.getUser(), version, null, false, exclusions);
+	}
+
+	//Versions
+
+	/*
+	 * Returns a read-only calendar frozen at the current version.
+	 * */
+	public VersionedCalendar snapshot()
+	{
+		return new VersionedCalendar(userName, current, null, true, exclusions);
+	}
+
+	/*
+	 * Returns a calendar starting at the current version whose changes stay its own until
+	 * it is committed.
+	 * */
+	public VersionedCalendar fork()
+	{
+		return new VersionedCalendar(userName, current, this, false, exclusions);
+	}
+
+	/*
+	 * Makes the version of this fork the current version of its parent. Returns false,
+	 * and leaves the parent alone, if the parent changed since the fork was made or last
+	 * committed. A fork of a snapshot can be changed but not committed, this and a change
+	 * to a snapshot both throw IllegalStateException.
+	 * */
+	public synchronized boolean commit()
+	{
+		if (parent == null)
+		{
+			throw new IllegalStateException("only a fork can be committed");
+		}
+		if (parent.readOnly)
+		{
+			throw new IllegalStateException("cannot commit into a snapshot");
+		}
+
+		synchronized (parent)
+		{
+			if (parent.current != base)
+			{
+				return false;
+			}
+			parent.current = current;
+			base = current;
+			return true;
+		}
+	}
+
+	/*
+	 * Number of changes made to reach the current version, counted from the empty
+	 * calendar or the copied CalendarManager.
+	 * */
+	public long getVersion()
+	{
+		return current.number;
+	}
+
+	//Mutators
+
+	/*
+	 * Stores a day, replacing whatever was stored for its date, with a copy of its events.
+	 * */
+	public void addDay(Day day)
+	{
+		ArrayList<Event> sorted = new ArrayList<Event>(day.getEventCount());
+		for (Event event : day.getEvents())
+		{
+			sorted.add(event);
+		}
+		DayVersion stored = new DayVersion(day.getEpochDay(), day.isDayOff(), PersistentEventTree.build(sorted));
+
+		synchronized (this)
+		{
+			checkWritable();
+			Version version = current;
+			current = version.with(stored);
+		}
+	}
+
+	public void addDayOff(Day day)
+	{
+		addDay(day);
+	}
+
+	/*
+	 * Adds an event to its day, creating the day if needed, the same as
+	 * CalendarManager.addEvent.
+	 * */
+	public synchronized void addEvent(Event event)
+	{
+		checkWritable();
+		current = insert(current, event);
+	}
+
+	/*
+	 * Adds many events as one change, so a snapshot or commit sees all of them or none.
+	 * */
+	public synchronized void addEvents(Iterable<? extends Event> events)
+	{
+		checkWritable();
+		Version version = current;
+		for (Event event : events)
+		{
+			version = insert(version, event);
+		}
+		current = version;
+	}
+
+	/*
+	 * Removes an event with the same date, minutes and name. A day left without events
+	 * that is not a day off is removed as well. Returns false if there is no such event.
+	 * */
+	public synchronized boolean removeEvent(Event event)
+	{
+		checkWritable();
+		Version removed = delete(current, event);
+		if (removed == null)
+		{
+			return false;
+		}
+		current = removed;
+		return true;
+	}
+
+	/*
+	 * Replaces an event with newEvent as one change. Returns false, and adds nothing, if
+	 * there is no event like oldEvent.
+	 * */
+	public synchronized boolean updateEvent(Event oldEvent, Event newEvent)
+	{
+		checkWritable();
+		Version removed = delete(current, oldEvent);
+		if (removed == null)
+		{
+			return false;
+		}
+		current = insert(removed, newEvent);
+		return true;
+	}
+
+	private void checkWritable()
+	{
+		if (readOnly)
+		{
+			throw new IllegalStateException("a snapshot cannot be changed");
+		}
+	}
+
+	/*
+	 * Returns version with event added to its day.
+	 * */
+	private static Version insert(Version version, Event event)
+	{
+		long epochDay = EpochDay.fromDate(event.getDate());
+		DayVersion day = version.weekdays[EpochDay.dayOfWeek(epochDay)-1].get(epochDay);
+		if (day == null)
+		{
+			return version.with(new DayVersion(epochDay, false, PersistentEventTree.EMPTY.insert(event)));
+		}
+		return version.with(new DayVersion(epochDay, day.dayOff, day.events.insert(event)));
+	}
+
+	/*
+	 * Returns version without event, or null if it holds no such event.
+	 * */
+	private static Version delete(Version version, Event event)
+	{
+		long epochDay = EpochDay.fromDate(event.getDate());
+		int weekday = EpochDay.dayOfWeek(epochDay)-1;
+		DayVersion day = version.weekdays[weekday].get(epochDay);
+		if (day == null)
+		{
+			return null;
+		}
+
+		PersistentEventTree events = day.events.remove(event);
+		if (events == day.events)
+		{
+			return null;
+		}
+
+		//An empty day that is not a day off holds nothing a query could see
+		if (events.isEmpty() && !day.dayOff)
+		{
+			return version.without(weekday, epochDay);
+		}
+		return version.with(new DayVersion(epochDay, day.dayOff, events));
+	}
+
+	//Accessors
+
+	public String getUser()
+	{
+		return this.userName;
+	}
+
+	/*
+	 * Number of days stored in the current version.
+	 * */
+	public int getDayCount()
+	{
+		Version version = current;
+		int count = 0;
+		for (PersistentDayIndex<DayVersion> days : version.weekdays)
+		{
+			count += days.size();
+		}
+		return count;
+	}
+
+	/*
+	 * Returns the events of a date in order of start minute, empty if no day is stored
+	 * for it.
+	 * */
+	public Iterable<Event> getEvents(Date date)
+	{
+		long epochDay = EpochDay.fromDate(date);
+		DayVersion day = current.weekdays[EpochDay.dayOfWeek(epochDay)-1].get(epochDay);
+		return day == null ? PersistentEventTree.EMPTY : day.events;
+	}
+
+	/*
+	 * Same as CalendarManager.checkOccurrencesSchedule. A weekly request only visits the
+	 * days stored within its range instead of looking up every week.
+	 * */
+	public int checkOccurrencesSchedule(MeetingRequest request)
+	{
+		Version version = current;
+		int start = request.event.getStart();
+		int end = request.event.getEnd();
+
+		if (request.rule != null)
+		{
+			int numMeetings = 0;
+			RecurrenceRule.OccurrenceIterator occurrences = request.rule.occurrences(
+					EpochDay.fromDate(request.startDate), EpochDay.lastDay(request.startDate, request.endDate));
+			while (occurrences.hasNext())
+			{
+				long epochDay = occurrences.nextDay();
+				DayVersion day = version.weekdays[EpochDay.dayOfWeek(epochDay)-1].get(epochDay);
+				if (day == null || !day.events.hasOverlap(start, end))
+				{
+					numMeetings += 1;
+				}
+			}
+			return numMeetings;
+		}
+
+		int dayOfWeek = request.event.getDayOfWeek();
+		long firstDay = EpochDay.nextOrSame(EpochDay.fromDate(request.startDate), dayOfWeek);
+		long lastDay = EpochDay.previousOrSame(EpochDay.lastDay(request.startDate, request.endDate), dayOfWeek);
+		if (lastDay < firstDay)
+		{
+			return 0;
+		}
+
+		//Every stored day of the weekday within the range is an occurrence
+		int numMeetings = (int) ((lastDay - firstDay)/7 + 1);
+		Iterator<DayVersion> days = version.weekdays[dayOfWeek-1].valuesBetween(firstDay, lastDay);
+		while (days.hasNext())
+		{
+			if (days.next().events.hasOverlap(start, end))
+			{
+				numMeetings -= 1;
+			}
+		}
+		return numMeetings;
+	}
+
+	/*
+	 * Same as CalendarManager.checkOccurrencesDaysOff: occurrences on a day off or on an
+	 * excluded day are not meetings.
+	 * */
+	public int checkOccurrencesDaysOff(MeetingRequest request)
+	{
+		Version version = current;
+		ExclusionIndex[] exclusions = this.exclusions;
+
+		if (request.rule != null)
+		{
+			int numMeetings = 0;
+			RecurrenceRule.OccurrenceIterator occurrences = request.rule.occurrences(
+					EpochDay.fromDate(request.startDate), EpochDay.lastDay(request.startDate, request.endDate));
+			while (occurrences.hasNext())
+			{
+				long epochDay = occurrences.nextDay();
+				DayVersion day = version.weekdays[EpochDay.dayOfWeek(epochDay)-1].get(epochDay);
+				if ((day == null || !day.dayOff) && !isExcluded(exclusions, epochDay))
+				{
+					numMeetings += 1;
+				}
+			}
+			return numMeetings;
+		}
+
+		int dayOfWeek = request.event.getDayOfWeek();
+		long firstDay = EpochDay.nextOrSame(EpochDay.fromDate(request.startDate), dayOfWeek);
+		long lastDay = EpochDay.previousOrSame(EpochDay.lastDay(request.startDate, request.endDate), dayOfWeek);
+		if (lastDay < firstDay)
+		{
+			return 0;
+		}
+
+		//Excluded occurrences are counted range by range, then the days off among the stored
+		//days that no index excludes, so a day is never counted twice
+		int numMeetings = (int) ((lastDay - firstDay)/7 + 1);
+		if (exclusions.length > 0)
+		{
+			numMeetings -= ExclusionIndex.countOccurrences(exclusions, firstDay, lastDay, null);
+		}
+		Iterator<DayVersion> days = version.weekdays[dayOfWeek-1].valuesBetween(firstDay, lastDay);
+		while (days.hasNext())
+		{
+			DayVersion day = days.next();
+			if (day.dayOff && !isExcluded(exclusions, day.epochDay))
+			{
+				numMeetings -= 1;
+			}
+		}
+		return numMeetings;
+	}
+
+	private static boolean isExcluded(ExclusionIndex[] exclusions, long epochDay)
+	{
+		for (ExclusionIndex exclusion : exclusions)
+		{
+			if (exclusion.contains(epochDay))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * One immutable version of the calendar: a PersistentDayIndex per weekday (zero
+	 * index) and the number of changes that led to it.
+	 * */
+	private static final class Version
+	{
+		private final PersistentDayIndex<DayVersion>[] weekdays;
+		private final long number;
+
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		Version()
+		{
+			this.weekdays = new PersistentDayIndex[7];
+			for (int i = 0; i < 7; i++)
+			{
+				weekdays[i] = PersistentDayIndex.empty();
+			}
+			this.number = 0;
+		}
+
+		private Version(PersistentDayIndex<DayVersion>[] weekdays, long number)
+		{
+			this.weekdays = weekdays;
+			this.number = number;
+		}
+
+		/*
+		 * Returns the next version with a day stored. Only the array of seven weekday
+		 * roots is copied.
+		 * */
+		Version with(DayVersion day)
+		{
+			PersistentDayIndex<DayVersion>[] changed = weekdays.clone();
+			int weekday = EpochDay.dayOfWeek(day.epochDay)-1;
+			changed[weekday] = changed[weekday].put(day.epochDay, day);
+			return new Version(changed, number + 1);
+		}
+
+		Version without(int weekday, long epochDay)
+		{
+			PersistentDayIndex<DayVersion>[] changed = weekdays.clone();
+			changed[weekday] = changed[weekday].remove(epochDay);
+			return new Version(changed, number + 1);
+		}
+	}
+
+	/*
+	 * One immutable version of a day.
+	 * */
+	private static final class DayVersion
+	{
+		private final long epochDay;
+		private final boolean dayOff;
+		private final PersistentEventTree events;
+
+		DayVersion(long epochDay, boolean dayOff, PersistentEventTree events)
+		{
+			this.epochDay = epochDay;
+			this.dayOff = dayOff;
+			this.events = events;
+		}
+	}
+}
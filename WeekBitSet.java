@@ -0,0 +1,152 @@
+/*
+ * WeekBitSet
+ *
+ * Bit set indexed by week number (floor of epoch day / 7), one instance per weekday in
+ * CalendarManager. A set bit means the weekday of that week is a day off. Since two
+ * occurrences of the same weekday are always exactly one week apart, the days off of a
+ * weekly meeting between two dates are a contiguous run of bits and can be counted with
+ * Long.bitCount over the masked words of that run.
+ *
+ * Bits are backed by a long[] covering only the words that were ever set, starting at
+ * firstWord, so weeks before 1970 (negative week numbers) work as well.
+ *
+ * */
+
+public class WeekBitSet {
+
+	/*
+	 * ------private members------
+	 *
+	 * (words, long[]):
+	 * the bits, 64 weeks per word.
+	 *
+	 * (firstWord, long):
+	 * word number (week number / 64) of words[0].
+	 *
+	 * */
+
+	private long[] words;
+	private long firstWord;
+
+	/*
+	 * Default constructor for WeekBitSet.
+	 *
+	 * */
+	public WeekBitSet()
+	{
+		this.words = new long[0];
+		this.firstWord = 0;
+	}
+
+	/*
+	 * Sets or clears the bit for a week.
+	 * */
+	public void set(long week, boolean value)
+	{
+		long word = week >> 6;
+
+		if (value)
+		{
+			ensureWord(word);
+			words[(int) (word - firstWord)] |= 1L << (week & 63);
+		}
+		else if (word >= firstWord && word < firstWord + words.length)
+		{
+			words[(int) (word - firstWord)] &= ~(1L << (week & 63));
+		}
+	}
+
+	/*
+	 * Clears the bits of every week before a week.
+	 * */
+	public void clearBefore(long week)
+	{
+		long word = week >> 6;
+		for (long w = firstWord; w < word && w < firstWord + words.length; w++)
+		{
+			words[(int) (w - firstWord)] = 0;
+		}
+		if (word >= firstWord && word < firstWord + words.length)
+		{
+			words[(int) (word - firstWord)] &= -1L << (week & 63);
+		}
+	}
+
+	public boolean get(long week)
+	{
+		long word = week >> 6;
+		if (word < firstWord || word >= firstWord + words.length)
+		{
+			return false;
+		}
+		return (words[(int) (word - firstWord)] & (1L << (week & 63))) != 0;
+	}
+
+	/*
+	 * Counts the set bits for the weeks fromWeek to toWeek (inclusive).
+	 * */
+	public int count(long fromWeek, long toWeek)
+	{
+		if (fromWeek > toWeek)
+		{
+			return 0;
+		}
+
+		long fromWord = fromWeek >> 6;
+		long toWord = toWeek >> 6;
+
+		//Only words that are actually stored can have bits set
+		long low = Math.max(fromWord, firstWord);
+		long high = Math.min(toWord, firstWord + words.length - 1);
+
+		int count = 0;
+		for (long word = low; word <= high; word++)
+		{
+			long bits = words[(int) (word - firstWord)];
+			if (word == fromWord)
+			{
+				bits &= -1L << (fromWeek & 63);
+			}
+			if (word == toWord)
+			{
+				bits &= -1L >>> (63 - (toWeek & 63));
+			}
+			count += Long.bitCount(bits);
+		}
+		return count;
+	}
+
+	/*
+	 * Grows the words array (in either direction) so that it covers a word number.
+	 * */
+	private void ensureWord(long word)
+	{
+		if (words.length == 0)
+		{
+			words = new long[4];
+			firstWord = word;
+			return;
+		}
+
+		long lastWord = firstWord + words.length - 1;
+		if (word >= firstWord && word <= lastWord)
+		{
+			return;
+		}
+
+		long newFirst = Math.min(firstWord, word);
+		long newLast = Math.max(lastWord, word);
+		int length = Math.max(words.length*2, (int) (newLast - newFirst + 1));
+
+		//Leave the extra room on the side that had to grow
+		if (word < firstWord)
+		{
+			newFirst = newLast - length + 1;
+		}
+
+		long[] newWords = new long[length];
+		System.arraycopy(words, 0, newWords, (int) (firstWord - newFirst), words.length);
+		words = newWords;
+		firstWord = newFirst;
+	}
+}